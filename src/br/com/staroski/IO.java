@@ -2,7 +2,13 @@ package br.com.staroski;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 /**
  * Generic purpose I/O operations class
@@ -11,6 +17,14 @@ import java.io.IOException;
  */
 public final class IO {
 
+    /**
+     * Something written to a stream, like a report too large to be kept in memory
+     */
+    public interface Content {
+
+        void writeTo(OutputStream out) throws IOException;
+    }
+
     public static boolean readBoolean(DataInputStream in) {
         try {
             return in.readBoolean();
@@ -27,6 +41,14 @@ public final class IO {
         }
     }
 
+    public static byte[] readBytes(File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        }
+    }
+
     public static char readChar(DataInputStream in) {
         try {
             return in.readChar();
@@ -87,6 +109,55 @@ public final class IO {
         }
     }
 
+    public static String readUTF(DataInputStream in) {
+        try {
+            return in.readUTF();
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        }
+    }
+
+    /**
+     * Writes to a temporary file in the same directory and then renames it, so the given file is never left incomplete
+     */
+    public static void writeAtomically(File file, final byte[] data) {
+        writeAtomically(file, new Content() {
+
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(data);
+            }
+        });
+    }
+
+    /**
+     * @see #writeAtomically(File, byte[])
+     */
+    public static void writeAtomically(File file, Content content) {
+        try {
+            File directory = file.getAbsoluteFile().getParentFile();
+            directory.mkdirs();
+            File temporary = File.createTempFile(file.getName() + ".", ".tmp", directory);
+            try {
+                OutputStream out = new FileOutputStream(temporary);
+                try {
+                    content.writeTo(out);
+                } finally {
+                    out.close();
+                }
+                try {
+                    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                temporary.delete(); // only exists if the write failed
+            }
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        }
+    }
+
     public static void writeBoolean(DataOutputStream out, boolean value) {
         try {
             out.writeBoolean(value);
@@ -163,5 +234,13 @@ public final class IO {
         }
     }
 
+    public static void writeUTF(DataOutputStream out, String value) {
+        try {
+            out.writeUTF(value);
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        }
+    }
+
     private IO() {}
 }
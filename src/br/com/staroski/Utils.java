@@ -83,6 +83,20 @@ public final class Utils {
         return text.toString();
     }
 
+    public static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return String.format("%d B", bytes);
+        }
+        final String[] units = new String[] { "KB", "MB", "GB", "TB", "PB" };
+        double value = bytes;
+        int unit = -1;
+        while (value >= 1024 && unit < units.length - 1) {
+            value /= 1024;
+            unit++;
+        }
+        return String.format("%.1f %s", value, units[unit]);
+    }
+
     private static boolean equals(String a, String b, boolean ignoreCase) {
         if (a == b) {
             return true;
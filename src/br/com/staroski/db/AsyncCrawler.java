@@ -0,0 +1,164 @@
+package br.com.staroski.db;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import br.com.staroski.Utils;
+
+/**
+ * This class runs the blocking operations of {@link Database} on an {@link Executor}, returning {@link CompletableFuture}s<br>
+ * By default it runs on virtual threads when the JDK has them (21 or newer), so one process can watch hundreds of databases without hundreds
+ * of platform threads, on older JDKs a cached pool of daemon threads is used<br>
+ * A database has a single JDBC connection, so the operations over the same database should be chained, not started at the same time
+ *
+ * @author Ricardo Artur Staroski
+ */
+public final class AsyncCrawler {
+
+    /**
+     * Created only when the default executor is first used
+     */
+    private static final class DefaultExecutor {
+
+        static final Executor INSTANCE = create();
+
+        private static Executor create() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                return Executors.newCachedThreadPool(new DaemonThreadFactory("async-crawler"));
+            }
+        }
+    }
+
+    /**
+     * @return The executor used by {@link #AsyncCrawler()}, with virtual threads on JDK 21 or newer
+     */
+    public static Executor defaultExecutor() {
+        return DefaultExecutor.INSTANCE;
+    }
+
+    private final Executor executor;
+
+    public AsyncCrawler() {
+        this(defaultExecutor());
+    }
+
+    public AsyncCrawler(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        this.executor = executor;
+    }
+
+    public CompletableFuture<SchemaDiff> compare(Schema schema, Schema other, Schema... moreSchemas) {
+        return compare(null, Utils.asList(schema, other, moreSchemas));
+    }
+
+    /**
+     * @param schemas The first schema is compared with the others, as in {@link Schema#compareWith(DiffFilter, Collection)}
+     */
+    public CompletableFuture<SchemaDiff> compare(final DiffFilter filter, final List<Schema> schemas) {
+        return supply(new Supplier<SchemaDiff>() {
+
+            @Override
+            public SchemaDiff get() {
+                return schemas.get(0).compareWith(filter, schemas.subList(1, schemas.size()));
+            }
+        });
+    }
+
+    /**
+     * @see Database#connect(String, String, String, int, String, String, String)
+     */
+    public CompletableFuture<Database> connect(final String driver, final String protocol, final String host, final int port,
+            final String databaseName, final String user, final String pass) {
+        return supply(new Supplier<Database>() {
+
+            @Override
+            public Database get() {
+                return Database.connect(driver, protocol, host, port, databaseName, user, pass);
+            }
+        });
+    }
+
+    /**
+     * Loads all catalogs, schemas, tables, columns and keys of the given database, so the returned database does not block anymore
+     */
+    public CompletableFuture<Database> crawl(final Database database) {
+        return supply(new Supplier<Database>() {
+
+            @Override
+            public Database get() {
+                for (Catalog catalog : database.getCatalogs()) {
+                    for (Schema schema : catalog.getSchemas()) {
+                        crawl(schema);
+                    }
+                }
+                return database;
+            }
+        });
+    }
+
+    public CompletableFuture<Database> disconnect(final Database database) {
+        return supply(new Supplier<Database>() {
+
+            @Override
+            public Database get() {
+                database.disconnect();
+                return database;
+            }
+        });
+    }
+
+    public CompletableFuture<List<Catalog>> getCatalogs(final Database database) {
+        return supply(new Supplier<List<Catalog>>() {
+
+            @Override
+            public List<Catalog> get() {
+                return database.getCatalogs();
+            }
+        });
+    }
+
+    public CompletableFuture<List<Schema>> getSchemas(final Catalog catalog) {
+        return supply(new Supplier<List<Schema>>() {
+
+            @Override
+            public List<Schema> get() {
+                return catalog.getSchemas();
+            }
+        });
+    }
+
+    /**
+     * Loads the tables of the given schema with their columns and keys
+     */
+    public CompletableFuture<List<Table>> getTables(final Schema schema) {
+        return supply(new Supplier<List<Table>>() {
+
+            @Override
+            public List<Table> get() {
+                return crawl(schema);
+            }
+        });
+    }
+
+    private List<Table> crawl(Schema schema) {
+        List<Table> tables = schema.getTables();
+        for (Table table : tables) {
+            table.getColumns();
+            table.getPrimaryKey(); // the keys of the whole schema are loaded at once
+        }
+        return tables;
+    }
+
+    private <T> CompletableFuture<T> supply(Supplier<T> supplier) {
+        return CompletableFuture.supplyAsync(supplier, executor);
+    }
+}
@@ -0,0 +1,41 @@
+package br.com.staroski.db;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class keeps the most recently used blocks of a {@link SnapshotStore} in memory, up to a maximum number of bytes
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class BlockCache {
+
+    private final Map<String, byte[]> blocks = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private final long maxBytes;
+    private long bytes;
+
+    BlockCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized byte[] get(String hash) {
+        return blocks.get(hash);
+    }
+
+    synchronized void put(String hash, byte[] block) {
+        if (block.length > maxBytes) {
+            return;
+        }
+        byte[] previous = blocks.put(hash, block);
+        if (previous != null) {
+            bytes -= previous.length;
+        }
+        bytes += block.length;
+        Iterator<byte[]> eldest = blocks.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+}
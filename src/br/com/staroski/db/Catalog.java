@@ -1,7 +1,6 @@
 package br.com.staroski.db;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -22,14 +21,14 @@ import br.com.staroski.Utils;
  */
 public final class Catalog {
 
-    static Catalog readFrom(DataInputStream in) {
+    static Catalog readFrom(DataInputStream in, int version) {
         String name = IO.readString(in);
         List<Schema> schemas = new LinkedList<Schema>();
         Map<String, Schema> schemaMap = new HashMap<String, Schema>();
         Catalog catalog = new Catalog(name, schemas, schemaMap);
         int schemaCount = IO.readInt(in);
         for (int i = 0; i < schemaCount; i++) {
-            Schema schema = Schema.readFrom(in).setCatalog(catalog);
+            Schema schema = Schema.readFrom(in, version).setCatalog(catalog);
             schemas.add(schema);
             schemaMap.put(schema.getName(), schema);
         }
@@ -43,7 +42,7 @@ public final class Catalog {
     private List<Schema> schemas;
     private Map<String, Schema> schemaMap;
 
-    private Catalog(String name, List<Schema> schemas, Map<String, Schema> schemaMap) {
+    Catalog(String name, List<Schema> schemas, Map<String, Schema> schemaMap) {
         this.name = name;
         this.schemas = Collections.unmodifiableList(schemas);
         this.schemaMap = new HashMap<String, Schema>();
@@ -115,13 +114,4 @@ public final class Catalog {
         this.database = database;
         return this;
     }
-
-    void writeTo(DataOutputStream out) {
-        IO.writeString(out, name);
-        List<Schema> schemas = getSchemas();
-        IO.writeInt(out, schemas.size());
-        for (Schema schema : schemas) {
-            schema.writeTo(out);
-        }
-    }
 }
@@ -27,12 +27,21 @@ public final class Column implements Comparable<Column> {
     private final int scale;
     private final int javaSqlType;
 
+    private final int typeCode;
+    private final int typeSize;
+    private final int typeScale;
+
     Column(String name, String type, int size, int scale, int javaSqlType) {
         this.name = name;
         this.type = type;
         this.size = size;
         this.scale = scale;
         this.javaSqlType = javaSqlType;
+        TypeNormalizer normalizer = TypeNormalizer.getDefault();
+        String canonicalName = normalizer.normalize(type, javaSqlType);
+        this.typeCode = TypeNormalizer.codeOf(canonicalName);
+        this.typeSize = normalizer.canonicalSize(canonicalName, size, scale);
+        this.typeScale = normalizer.canonicalScale(canonicalName, size, scale);
     }
 
     @Override
@@ -99,6 +108,26 @@ public final class Column implements Comparable<Column> {
         return type;
     }
 
+    /**
+     * @return The {@link TypeNormalizer#codeOf(String) code} of the canonical type of this column
+     */
+    public int getTypeCode() {
+        return typeCode;
+    }
+
+    /**
+     * @return The type followed by the size and scale, when they apply, like <code>VARCHAR(14)</code> or <code>NUMERIC(10,2)</code>
+     */
+    public String getTypeSignature() {
+        if (size <= 0) {
+            return type;
+        }
+        if (scale <= 0) {
+            return type + "(" + size + ")";
+        }
+        return type + "(" + size + "," + scale + ")";
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
@@ -108,11 +137,31 @@ public final class Column implements Comparable<Column> {
         return result;
     }
 
+    /**
+     * Two columns have the same definition when they have the same canonical type, size and scale, no matter their names and how each
+     * vendor names the type
+     */
+    public boolean hasSameDefinition(Column other) {
+        if (other == null) {
+            return false;
+        }
+        return typeCode == other.typeCode && typeSize == other.typeSize && typeScale == other.typeScale;
+    }
+
     @Override
     public String toString() {
         return String.format("%s[%s]", Column.class.getSimpleName(), getName());
     }
 
+    /**
+     * Writes what the comparisons use, the canonical type, size and scale given by the normalizer active when this column was created
+     */
+    void writeCanonicalTypeTo(DataOutputStream out) {
+        IO.writeInt(out, typeCode);
+        IO.writeInt(out, typeSize);
+        IO.writeInt(out, typeScale);
+    }
+
     void writeTo(DataOutputStream out) {
         IO.writeString(out, name);
         IO.writeString(out, type);
@@ -0,0 +1,223 @@
+package br.com.staroski.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import br.com.staroski.IO;
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class records the progress of {@link Database#crawl(File)}, so a crawl that fails can be resumed<br>
+ * The file is a journal: a header with the database URL and the format of the tables, followed by one record for each table loaded and one for each schema completed,
+ * each record is written at once and carries its length, so a record left incomplete by a crash is discarded when the journal is opened
+ * again
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class CrawlCheckpoint {
+
+    private static final byte CHECKPOINT_MARKER = (byte) 0xC7;
+    private static final int CHECKPOINT_VERSION = 2;
+
+    /**
+     * The {@link Database#FORMAT_VERSION format} of the tables of the checkpoints of version 1, which did not record it
+     */
+    private static final int CHECKPOINT_V1_FORMAT_VERSION = 3;
+
+    private static final byte TABLE_RECORD = 1;
+    private static final byte SCHEMA_DONE_RECORD = 2;
+
+    static CrawlCheckpoint open(File file, String url, String user) {
+        CrawlCheckpoint checkpoint = new CrawlCheckpoint(file);
+        try {
+            long validLength = file.isFile() ? checkpoint.read(url, user) : 0;
+            if (checkpoint.upgraded != null) {
+                validLength = 0; // the journal is written again in the current format, so it never mixes two formats
+            }
+            checkpoint.out = new RandomAccessFile(file, "rw");
+            checkpoint.out.setLength(validLength);
+            checkpoint.out.seek(validLength);
+            if (validLength == 0) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream header = new DataOutputStream(bytes);
+                IO.writeByte(header, CHECKPOINT_MARKER);
+                IO.writeInt(header, CHECKPOINT_VERSION);
+                IO.writeString(header, url);
+                IO.writeString(header, user);
+                IO.writeInt(header, Database.FORMAT_VERSION);
+                checkpoint.out.write(bytes.toByteArray());
+            }
+            if (checkpoint.upgraded != null) {
+                checkpoint.out.write(checkpoint.upgraded.toByteArray());
+                checkpoint.upgraded = null;
+            }
+        } catch (IOException e) {
+            checkpoint.close();
+            throw UncheckedException.wrap(e);
+        }
+        return checkpoint;
+    }
+
+    private static String key(String catalogName, String schemaName) {
+        return catalogName + "\u0000" + schemaName;
+    }
+
+    /**
+     * @return The given data framed as a record of the journal
+     */
+    private static byte[] record(byte kind, byte[] data) {
+        byte[] record = new byte[data.length + 5];
+        record[0] = kind;
+        record[1] = (byte) (data.length >>> 24);
+        record[2] = (byte) (data.length >>> 16);
+        record[3] = (byte) (data.length >>> 8);
+        record[4] = (byte) data.length;
+        System.arraycopy(data, 0, record, 5, data.length);
+        return record;
+    }
+
+    private static byte[] tableRecord(String catalogName, String schemaName, Table table) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        IO.writeString(record, catalogName);
+        IO.writeString(record, schemaName);
+        table.writeDefinitionTo(record);
+        return bytes.toByteArray();
+    }
+
+    private final File file;
+    private final Map<String, List<Table>> tables = new HashMap<String, List<Table>>();
+    private final Set<String> doneSchemas = new HashSet<String>();
+
+    private RandomAccessFile out;
+    private int formatVersion = Database.FORMAT_VERSION;
+    private ByteArrayOutputStream upgraded;
+
+    private CrawlCheckpoint(File file) {
+        this.file = file;
+    }
+
+    void addTable(String catalogName, String schemaName, Table table) {
+        write(TABLE_RECORD, tableRecord(catalogName, schemaName, table));
+    }
+
+    void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // nothing to do, every record was already written
+            }
+            out = null;
+        }
+    }
+
+    void delete() {
+        close();
+        file.delete();
+    }
+
+    /**
+     * @return The tables recorded for the given schema, in the order they were loaded
+     */
+    List<Table> getTables(String catalogName, String schemaName) {
+        List<Table> recorded = tables.get(key(catalogName, schemaName));
+        return recorded == null ? new ArrayList<Table>() : recorded;
+    }
+
+    boolean isDone(String catalogName, String schemaName) {
+        return doneSchemas.contains(key(catalogName, schemaName));
+    }
+
+    void setDone(String catalogName, String schemaName) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        IO.writeString(record, catalogName);
+        IO.writeString(record, schemaName);
+        write(SCHEMA_DONE_RECORD, bytes.toByteArray());
+    }
+
+    /**
+     * @return The length of the journal up to its last complete record
+     */
+    private long read(String url, String user) throws IOException {
+        byte[] journal = IO.readBytes(file);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal));
+        try {
+            byte marker = IO.readByte(in);
+            int version = IO.readInt(in);
+            if (marker != CHECKPOINT_MARKER || version > CHECKPOINT_VERSION) {
+                throw new IllegalArgumentException("not a crawl checkpoint: " + file);
+            }
+            if (!url.equals(IO.readString(in)) || !String.valueOf(user).equals(String.valueOf(IO.readString(in)))) {
+                throw new IllegalArgumentException("the checkpoint was recorded from another database: " + file);
+            }
+            formatVersion = version >= 2 ? IO.readInt(in) : CHECKPOINT_V1_FORMAT_VERSION;
+            if (formatVersion > Database.FORMAT_VERSION) {
+                throw new IllegalArgumentException("unsupported format version: " + formatVersion);
+            }
+            if (formatVersion != Database.FORMAT_VERSION) {
+                upgraded = new ByteArrayOutputStream();
+            }
+        } catch (RuntimeException e) {
+            if (e.getCause() instanceof EOFException) {
+                return 0; // the header itself is incomplete, the crawl starts over
+            }
+            throw e;
+        }
+        long validLength = journal.length - in.available();
+        while (true) {
+            byte kind;
+            byte[] data;
+            try {
+                kind = in.readByte();
+                data = new byte[in.readInt()];
+                in.readFully(data);
+            } catch (EOFException e) {
+                return validLength;
+            }
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(data));
+            String catalogName = IO.readString(record);
+            String schemaName = IO.readString(record);
+            String key = key(catalogName, schemaName);
+            if (kind == TABLE_RECORD) {
+                List<Table> recorded = tables.get(key);
+                if (recorded == null) {
+                    recorded = new ArrayList<Table>();
+                    tables.put(key, recorded);
+                }
+                Table table = Table.readDefinitionFrom(record, formatVersion);
+                recorded.add(table);
+                if (upgraded != null) {
+                    upgraded.write(record(kind, tableRecord(catalogName, schemaName, table)));
+                }
+            } else if (kind == SCHEMA_DONE_RECORD) {
+                doneSchemas.add(key);
+                if (upgraded != null) {
+                    upgraded.write(record(kind, data));
+                }
+            }
+            validLength = journal.length - in.available();
+        }
+    }
+
+    private void write(byte kind, byte[] data) {
+        try {
+            out.write(record(kind, data)); // a single write, so a crash leaves at most the last record incomplete
+        } catch (IOException e) {
+            throw UncheckedException.wrap(e);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package br.com.staroski.db;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * This class writes a diff as CSV, with one row per table and one row per item (column, key or index) that is not equal in all schemas<br>
+ * Each compared schema has a status column and a definition column
+ * 
+ * @author Ricardo Artur Staroski
+ */
+public final class CsvDiffWriter extends DiffWriter {
+
+    private final char separator;
+
+    public CsvDiffWriter(OutputStream out) {
+        this(out, ',');
+    }
+
+    public CsvDiffWriter(OutputStream out, char separator) {
+        super(out);
+        this.separator = separator;
+    }
+
+    public CsvDiffWriter(Writer out, char separator) {
+        super(out);
+        this.separator = separator;
+    }
+
+    @Override
+    protected void writeBegin(List<String> schemaNames) throws IOException {
+        cell("Table");
+        out.write(separator);
+        cell("Kind");
+        out.write(separator);
+        cell("Name");
+        for (String schemaName : schemaNames) {
+            out.write(separator);
+            cell(schemaName + " status");
+            out.write(separator);
+            cell(schemaName + " definition");
+        }
+        out.write("\r\n");
+    }
+
+    @Override
+    protected void writeEnd(int tableCount, int differentCount, int missingCount) throws IOException {
+        // the summary is derived from the rows, CSV has no place for it
+    }
+
+    @Override
+    protected void writeEntry(DiffEntry entry, List<Item> items) throws IOException {
+        cell(entry.tableName);
+        out.write(separator);
+        cell("TABLE");
+        out.write(separator);
+        cell(entry.tableName);
+        for (int i = 0, count = entry.tables.size(); i < count; i++) {
+            Table table = entry.tables.get(i);
+            out.write(separator);
+            cell(entry.getStatus(i).name());
+            out.write(separator);
+            cell(table == null ? renameOf(entry, i) : table.getType());
+        }
+        out.write("\r\n");
+        for (Item item : items) {
+            if (item.isEqual()) {
+                continue;
+            }
+            cell(entry.tableName);
+            out.write(separator);
+            cell(item.kind);
+            out.write(separator);
+            cell(item.name);
+            for (int i = 0; i < item.status.length; i++) {
+                out.write(separator);
+                cell(item.status[i].name());
+                out.write(separator);
+                cell(item.definitions[i]);
+            }
+            out.write("\r\n");
+        }
+    }
+
+    private void cell(String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quoted = false;
+        for (int i = 0, length = value.length(); i < length && !quoted; i++) {
+            char c = value.charAt(i);
+            quoted = c == separator || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quoted) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+}
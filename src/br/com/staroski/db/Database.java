@@ -1,18 +1,28 @@
 package br.com.staroski.db;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import br.com.staroski.IO;
 import br.com.staroski.UncheckedException;
@@ -25,37 +35,222 @@ import br.com.staroski.Utils;
  */
 public final class Database {
 
+    /**
+     * Version of the format written by {@link #writeTo(OutputStream)}<br>
+     * Version 0 is the original format, without the format marker<br>
+     * Version 1 adds primary keys, indexes and foreign keys to the tables<br>
+     * Version 2 adds the optional table statistics<br>
+     * Version 3 has the same layout, but the tables of each schema are always written in ascending name order<br>
+     * Version 4 adds the optional table profiles<br>
+     * Version 5 writes the tables of each schema in segments, encoded and decoded in parallel, see {@link SegmentedSnapshot}
+     */
+    static final int FORMAT_VERSION = 5;
+
+    /**
+     * Marks a versioned snapshot, the unversioned ones always start with a boolean, which is written as 0 or 1
+     */
+    private static final byte FORMAT_MARKER = (byte) 0xDB;
+
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Map<String, QueryRateLimiter> HOST_RATE_LIMITERS = new ConcurrentHashMap<String, QueryRateLimiter>();
+
     public static Database connect(String driver, String protocol, String host, int port, String databaseName, String user, String pass) {
         return new Database(driver, protocol, host, port, databaseName, user, pass);
     }
 
+    /**
+     * Connects through a complete JDBC URL, for the databases whose URL has no host and port, like the embedded ones
+     * (<code>jdbc:h2:mem:test</code>, <code>jdbc:derby:memory:test</code>)<br>
+     * The protocol is the URL up to its second colon and the database name is the rest of it
+     */
+    public static Database connect(String driver, String url, String user, String pass) {
+        int colon = url.indexOf(':', url.indexOf(':') + 1);
+        if (colon < 0) {
+            throw new IllegalArgumentException("invalid JDBC URL: " + url);
+        }
+        return new Database(driver, url.substring(0, colon), null, 0, url.substring(colon + 1), user, pass);
+    }
+
+    /**
+     * Limits the queries sent to all databases of the given host, together, in addition to the limiter of each database
+     *
+     * @param limiter The limiter, <code>null</code> removes the limit of the host
+     */
+    public static void setHostRateLimiter(String host, QueryRateLimiter limiter) {
+        String key = host.toLowerCase();
+        if (limiter == null) {
+            HOST_RATE_LIMITERS.remove(key);
+        } else {
+            HOST_RATE_LIMITERS.put(key, limiter);
+        }
+    }
+
+    /**
+     * Streams the tables of a single schema of a snapshot written by {@link #writeTo(OutputStream)}, without loading the whole database<br>
+     * The returned source closes the given stream when it is closed
+     */
+    public static TableSource readTablesFrom(InputStream in, String catalogName, String schemaName) {
+        return new SnapshotTableSource(in, catalogName, schemaName);
+    }
+
+    /**
+     * Like {@link #readTablesFrom(InputStream, String, String)}, but the tables of the snapshots older than format version 3, which may not
+     * be sorted, are sorted by a {@link SpillingTableSource} with the given memory budget, in bytes
+     */
+    public static TableSource readTablesFrom(InputStream in, String catalogName, String schemaName, long memoryBudget) {
+        SnapshotTableSource source = new SnapshotTableSource(in, catalogName, schemaName);
+        return source.isSorted() ? source : new SpillingTableSource(source, memoryBudget);
+    }
+
     public static Database readFrom(InputStream in) {
+        return readFrom(in, 0);
+    }
+
+    /**
+     * @param parallelism The number of threads that decode the tables, 1 decodes them on the caller thread, 0 uses the common
+     *            {@link java.util.concurrent.ForkJoinPool}
+     */
+    public static Database readFrom(InputStream in, int parallelism) {
         DataInputStream dataInput = in instanceof DataInputStream
                 ? (DataInputStream) in
                 : new DataInputStream(in);
-        return readFrom(dataInput);
+        return readFrom(dataInput, parallelism);
     }
 
-    static Database readFrom(DataInputStream in) {
-        String driver = IO.readString(in);
-        String protocol = IO.readString(in);
-        String host = IO.readString(in);
-        int port = IO.readInt(in);
-        String name = IO.readString(in);
-        String user = IO.readString(in);
-        String alias = IO.readString(in);
+    static Database readFrom(DataInputStream in, int parallelism) {
         List<Catalog> catalogs = new LinkedList<Catalog>();
         Map<String, Catalog> catalogMap = new HashMap<String, Catalog>();
-        Database database = new Database(driver, protocol, host, port, name, user, alias, catalogs, catalogMap);
+        Database database = readHeader(in, catalogs, catalogMap);
+        if (database.formatVersion >= 5) {
+            SegmentedSnapshot.read(in, database, catalogs, catalogMap, database.formatVersion, parallelism);
+            return database;
+        }
         int catalogCount = IO.readInt(in);
         for (int i = 0; i < catalogCount; i++) {
-            Catalog catalog = Catalog.readFrom(in).setDatabase(database);
+            Catalog catalog = Catalog.readFrom(in, database.formatVersion).setDatabase(database);
             catalogs.add(catalog);
             catalogMap.put(catalog.getName(), catalog);
         }
         return database;
     }
 
+    /**
+     * Creates a database that was not read from a connection nor from a snapshot, like the ones read from DDL scripts
+     */
+    static Database create(String protocol, String name, List<Catalog> catalogs) {
+        Map<String, Catalog> catalogMap = new HashMap<String, Catalog>();
+        Database database = new Database(null, protocol, null, 0, name, null, name, catalogs, catalogMap);
+        for (Catalog catalog : catalogs) {
+            catalog.setDatabase(database);
+            catalogMap.put(catalog.getName(), catalog);
+        }
+        return database;
+    }
+
+    /**
+     * Joins the segments of the same database, each one with some of its schemas, into a single snapshot, with the header of the first
+     * segment, a schema found in more than one segment is taken from the first of them
+     */
+    static Database merge(List<Database> segments) {
+        Database first = segments.get(0);
+        List<Catalog> catalogs = new ArrayList<Catalog>();
+        Map<String, Catalog> catalogMap = new HashMap<String, Catalog>();
+        Database database = new Database(first.driver, first.protocol, first.host, first.port, first.name, first.user, first.alias, catalogs,
+                catalogMap);
+        Map<String, List<Schema>> schemasByCatalog = new LinkedHashMap<String, List<Schema>>();
+        for (Database segment : segments) {
+            for (Catalog catalog : segment.getCatalogs()) {
+                List<Schema> schemas = schemasByCatalog.get(catalog.getName());
+                if (schemas == null) {
+                    schemas = new ArrayList<Schema>();
+                    schemasByCatalog.put(catalog.getName(), schemas);
+                }
+                for (Schema schema : catalog.getSchemas()) {
+                    if (!containsSchema(schemas, schema.getName())) {
+                        schemas.add(schema);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, List<Schema>> entry : schemasByCatalog.entrySet()) {
+            List<Schema> schemas = entry.getValue();
+            Collections.sort(schemas, new Comparator<Schema>() {
+
+                @Override
+                public int compare(Schema a, Schema b) {
+                    return compareNames(a.getName(), b.getName());
+                }
+            });
+            Catalog catalog = new Catalog(entry.getKey(), schemas, new HashMap<String, Schema>()).setDatabase(database);
+            for (Schema schema : schemas) {
+                schema.setCatalog(catalog);
+            }
+            catalogs.add(catalog);
+            catalogMap.put(catalog.getName(), catalog);
+        }
+        Collections.sort(catalogs, new Comparator<Catalog>() {
+
+            @Override
+            public int compare(Catalog a, Catalog b) {
+                return compareNames(a.getName(), b.getName());
+            }
+        });
+        return database;
+    }
+
+    /**
+     * Reads everything written by {@link #writeHeader(DataOutputStream)}, the returned database has the given catalog list, which is still
+     * empty
+     */
+    static Database readHeader(DataInputStream in, List<Catalog> catalogs, Map<String, Catalog> catalogMap) {
+        final int version;
+        final String driver;
+        byte first = IO.readByte(in);
+        if (first == FORMAT_MARKER) {
+            version = IO.readInt(in);
+            if (version > FORMAT_VERSION) {
+                throw new IllegalArgumentException("unsupported snapshot format version: " + version);
+            }
+            driver = IO.readString(in);
+        } else {
+            version = 0;
+            driver = first != 0 ? IO.readUTF(in) : null;
+        }
+        String protocol = IO.readString(in);
+        String host = IO.readString(in);
+        int port = IO.readInt(in);
+        String name = IO.readString(in);
+        String user = IO.readString(in);
+        String alias = IO.readString(in);
+        Database database = new Database(driver, protocol, host, port, name, user, alias, catalogs, catalogMap);
+        database.formatVersion = version;
+        return database;
+    }
+
+    private static int compareNames(String a, String b) {
+        if (a == null || b == null) {
+            return a == null ? (b == null ? 0 : -1) : 1;
+        }
+        return a.compareTo(b);
+    }
+
+    private static boolean containsSchema(List<Schema> schemas, String name) {
+        for (Schema schema : schemas) {
+            if (Utils.areEqualsIgnoreCase(name, schema.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String urlOf(String protocol, String host, int port, String name) {
+        if (host == null) {
+            return protocol + ":" + name;
+        }
+        return protocol + "://" + host + ":" + port + "/" + name;
+    }
+
     private final String driver;
 
     private final String protocol;
@@ -65,11 +260,25 @@ public final class Database {
     private final String name;
     private final String url;
     private final String user;
+    private final String pass;
+    private final Map<String, TableStatistics> statistics = new ConcurrentHashMap<String, TableStatistics>();
+    private final Map<String, TableProfile> profiles = new ConcurrentHashMap<String, TableProfile>();
 
     private Connection connection;
     private String alias;
     private List<Catalog> catalogs;
     private Map<String, Catalog> catalogMap;
+    private Dialect dialect;
+    private int formatVersion = FORMAT_VERSION;
+    private volatile String snapshotHash;
+    private volatile QueryRateLimiter rateLimiter;
+    private volatile int maxRetries = 3;
+    private volatile long retryDelay = TimeUnit.SECONDS.toMillis(1);
+
+    /**
+     * Set while the thread runs a step of the crawl, which is retried as a whole, so its queries are not retried too
+     */
+    private final ThreadLocal<Boolean> inRetriedStep = new ThreadLocal<Boolean>();
 
     private Database(String driver, String protocol, String host, int port, String name, String user, String pass) {
         try {
@@ -80,9 +289,10 @@ public final class Database {
             this.port = port;
             this.name = name;
             this.user = user;
+            this.pass = pass;
             this.alias = name;
-            this.url = protocol + "://" + host + ":" + port + "/" + name;
-            connection = DriverManager.getConnection(url, user, pass);
+            this.url = urlOf(protocol, host, port, name);
+            connection = openConnection();
         } catch (Exception e) {
             throw UncheckedException.wrap(e);
         }
@@ -96,12 +306,95 @@ public final class Database {
         this.port = port;
         this.name = name;
         this.user = user;
+        this.pass = null;
         this.alias = alias;
-        this.url = protocol + "://" + host + ":" + port + "/" + name;
+        this.url = urlOf(protocol, host, port, name);
         this.catalogs = Collections.unmodifiableList(catalogs);
         this.catalogMap = catalogMap;
     }
 
+    /**
+     * Rebuilds the newer snapshot from this one and a delta written by {@link #writeDeltaTo(Database, OutputStream)}<br>
+     * The deltas of several days are applied one after the other, each one to the database returned by the previous one
+     *
+     * @return A new database, this one is not changed
+     * @throws IllegalArgumentException If the delta was not written from a snapshot equal to this one
+     */
+    public Database applyDelta(InputStream delta) {
+        DataInputStream dataInput = delta instanceof DataInputStream
+                ? (DataInputStream) delta
+                : new DataInputStream(delta);
+        return SnapshotDelta.apply(this, dataInput);
+    }
+
+    /**
+     * Starts profiling the data of all tables of this database, a single pass over the rows of each table that keeps only a summary of each
+     * column, see {@link ColumnProfile}<br>
+     * The tables are read through their own connections, like the {@link #collectStatistics(int) statistics}
+     *
+     * @param maxConnections Maximum number of tables read at the same time
+     * @param maxRowsPerTable Maximum number of rows read from each table, the first ones returned by the database, 0 reads all rows
+     * @return A {@link Future} that completes when the profiles of all tables are available through {@link Table#getProfile()}
+     */
+    public Future<Database> collectProfiles(int maxConnections, int maxRowsPerTable) {
+        if (connection == null) {
+            throw new IllegalStateException("profiles can only be collected from a connected database");
+        }
+        return new ProfileCollector(this, maxConnections, maxRowsPerTable).start();
+    }
+
+    /**
+     * Starts collecting the row counts and sizes of all tables of this database<br>
+     * The statistics are read through their own connections, so the structural crawl is not blocked by them
+     *
+     * @param maxConnections Maximum number of connections used to count the rows of the tables that have no catalog statistics
+     * @return A {@link Future} that completes when the statistics of all tables are available through {@link Table#getStatistics()}
+     */
+    public Future<Database> collectStatistics(int maxConnections) {
+        if (connection == null) {
+            throw new IllegalStateException("statistics can only be collected from a connected database");
+        }
+        return new StatisticsCollector(this, maxConnections).start();
+    }
+
+    /**
+     * Loads all catalogs, schemas, tables, columns and keys of this database, recording each table loaded in the given checkpoint file<br>
+     * If the crawl fails, even after the retries, calling this method again with the same checkpoint, from this or from another process,
+     * queries only the schemas and tables not recorded yet<br>
+     * The checkpoint is deleted when the crawl completes, the statistics are not recorded, see {@link #collectStatistics(int)}
+     *
+     * @throws IllegalArgumentException If the checkpoint was recorded from another database
+     */
+    public Database crawl(File checkpoint) {
+        if (connection == null) {
+            return this; // a snapshot is always loaded
+        }
+        CrawlCheckpoint journal = CrawlCheckpoint.open(checkpoint, url, user);
+        try {
+            for (final Catalog catalog : retry(new Callable<List<Catalog>>() {
+
+                @Override
+                public List<Catalog> call() {
+                    return getCatalogs();
+                }
+            })) {
+                for (final Schema schema : retry(new Callable<List<Schema>>() {
+
+                    @Override
+                    public List<Schema> call() {
+                        return catalog.getSchemas();
+                    }
+                })) {
+                    crawl(journal, catalog, schema);
+                }
+            }
+        } finally {
+            journal.close();
+        }
+        journal.delete();
+        return this;
+    }
+
     public void disconnect() {
         if (connection != null) {
             try {
@@ -177,19 +470,214 @@ public final class Database {
         return this;
     }
 
+    /**
+     * Sets how the queries that fail with a transient error, like a lost connection or a timeout, are retried<br>
+     * The delay doubles at each retry, up to a minute, and is randomly shortened by up to a half, by default there are 3 retries starting at
+     * 1 second
+     *
+     * @param maxRetries Maximum number of retries of each query, 0 fails at the first error, the queries of a step of a
+     *            {@link #crawl(File) crawl} are not retried one by one, the whole step is retried instead
+     */
+    public Database setRetries(int maxRetries, long initialDelay, TimeUnit unit) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("the number of retries can't be negative: " + maxRetries);
+        }
+        this.maxRetries = maxRetries;
+        this.retryDelay = unit.toMillis(initialDelay);
+        return this;
+    }
+
+    /**
+     * Limits the metadata and statistics queries sent by this database, including the ones sent through the statistics connections
+     *
+     * @param limiter The limiter, <code>null</code> removes the limit
+     */
+    public Database setRateLimiter(QueryRateLimiter limiter) {
+        this.rateLimiter = limiter;
+        return this;
+    }
+
     @Override
     public String toString() {
         return String.format("%s[user=%s, url=%s, driver=%s]", Database.class.getSimpleName(), user, url, driver);
     }
 
+    /**
+     * Writes only the tables and columns added, removed or changed since the given base snapshot, see {@link #applyDelta(InputStream)}
+     */
+    public void writeDeltaTo(Database base, OutputStream out) {
+        DataOutputStream dataOutput = out instanceof DataOutputStream
+                ? (DataOutputStream) out
+                : new DataOutputStream(out);
+        SnapshotDelta.write(base, this, dataOutput);
+    }
+
     public void writeTo(OutputStream out) {
+        writeTo(out, 0);
+    }
+
+    /**
+     * The bytes written do not depend on the parallelism, the tables of a connected database are always encoded on the caller thread
+     *
+     * @param parallelism The number of threads that encode the tables, 1 encodes them on the caller thread, 0 uses the common
+     *            {@link java.util.concurrent.ForkJoinPool}
+     */
+    public void writeTo(OutputStream out, int parallelism) {
         DataOutputStream dataOutput = out instanceof DataOutputStream
                 ? (DataOutputStream) out
                 : new DataOutputStream(out);
-        writeTo(dataOutput);
+        writeTo(dataOutput, parallelism);
     }
 
-    void writeTo(DataOutputStream out) {
+    /**
+     * Loads the tables of a single schema, like {@link #crawl(File)} does for all schemas, so a database can be crawled by several
+     * {@link FleetWorker}s, one schema each
+     *
+     * @throws IllegalArgumentException If the schema does not exist
+     */
+    void crawlSchema(File checkpoint, String catalogName, String schemaName) {
+        CrawlCheckpoint journal = CrawlCheckpoint.open(checkpoint, url, user);
+        try {
+            Schema schema = findSchema(catalogName, schemaName);
+            crawl(journal, schema.getCatalog(), schema);
+        } finally {
+            journal.close();
+        }
+        journal.delete();
+    }
+
+    /**
+     * Records the latency of a query started by {@link #beforeQuery()}
+     */
+    void afterQuery(long start) {
+        long latency = System.nanoTime() - start;
+        QueryRateLimiter hostLimiter = getHostRateLimiter();
+        if (hostLimiter != null) {
+            hostLimiter.record(latency);
+        }
+        QueryRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.record(latency);
+        }
+    }
+
+    /**
+     * Waits before the given retry
+     */
+    void backoff(int attempt) {
+        long delay = Math.min(MAX_RETRY_DELAY, retryDelay << Math.min(attempt, 20));
+        delay -= (long) (delay / 2 * ThreadLocalRandom.current().nextDouble());
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw UncheckedException.wrap(e);
+        }
+    }
+
+    /**
+     * Blocks until the limiters of this database and of its host allow another query
+     *
+     * @return The start time of the query, to be given to {@link #afterQuery(long)}
+     */
+    long beforeQuery() {
+        QueryRateLimiter hostLimiter = getHostRateLimiter();
+        if (hostLimiter != null) {
+            hostLimiter.acquire();
+        }
+        QueryRateLimiter limiter = rateLimiter;
+        if (limiter != null) {
+            limiter.acquire();
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * @return The connection of this database, <code>null</code> if it was read from a snapshot
+     */
+    Connection getConnection() {
+        return connection;
+    }
+
+    Dialect getDialect() {
+        if (dialect == null) {
+            dialect = Dialect.forProtocol(protocol);
+        }
+        return dialect;
+    }
+
+    /**
+     * @return The retries of a single query, none inside a step of the crawl, which is retried as a whole
+     */
+    int getMaxRetries() {
+        return inRetriedStep.get() != null ? 0 : maxRetries;
+    }
+
+    TableProfile getProfile(String catalogName, String schemaName, String tableName) {
+        return profiles.get(statisticsKey(catalogName, schemaName, tableName));
+    }
+
+    /**
+     * @return The hash of the snapshot written by {@link #writeTo(OutputStream)}, kept once computed, or taken from the delta this
+     *         database was rebuilt from, except for a connected database, whose tables may still be loaded
+     */
+    String getSnapshotHash() {
+        String hash = snapshotHash;
+        if (hash == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            writeTo(new DataOutputStream(bytes));
+            hash = SnapshotStore.hash(bytes.toByteArray());
+            if (connection == null) {
+                snapshotHash = hash;
+            }
+        }
+        return hash;
+    }
+
+    TableStatistics getStatistics(String catalogName, String schemaName, String tableName) {
+        return statistics.get(statisticsKey(catalogName, schemaName, tableName));
+    }
+
+    /**
+     * @return <code>true</code> if the server is too slow even at the minimum rate, so the optional queries should not be sent
+     */
+    boolean isOverloaded() {
+        QueryRateLimiter hostLimiter = getHostRateLimiter();
+        QueryRateLimiter limiter = rateLimiter;
+        return (hostLimiter != null && hostLimiter.isOverloaded()) || (limiter != null && limiter.isOverloaded());
+    }
+
+    Connection openConnection() throws SQLException {
+        return ManagedConnection.wrap(openRawConnection(), this);
+    }
+
+    Connection openRawConnection() throws SQLException {
+        return DriverManager.getConnection(url, user, pass);
+    }
+
+    void putProfile(String catalogName, String schemaName, String tableName, TableProfile tableProfile) {
+        profiles.put(statisticsKey(catalogName, schemaName, tableName), tableProfile);
+    }
+
+    void putStatistics(String catalogName, String schemaName, String tableName, TableStatistics tableStatistics) {
+        statistics.put(statisticsKey(catalogName, schemaName, tableName), tableStatistics);
+    }
+
+    Database setSnapshotHash(String hash) {
+        this.snapshotHash = hash;
+        return this;
+    }
+
+    /**
+     * @return The format version of the snapshot this database was read from, or the current version if it was not read from a snapshot
+     */
+    int getFormatVersion() {
+        return formatVersion;
+    }
+
+    void writeHeader(DataOutputStream out) {
+        IO.writeByte(out, FORMAT_MARKER);
+        IO.writeInt(out, FORMAT_VERSION);
         IO.writeString(out, driver);
         IO.writeString(out, protocol);
         IO.writeString(out, host);
@@ -197,10 +685,122 @@ public final class Database {
         IO.writeString(out, name);
         IO.writeString(out, user);
         IO.writeString(out, alias);
-        List<Catalog> catalogs = getCatalogs();
-        IO.writeInt(out, catalogs.size());
-        for (Catalog catalog : catalogs) {
-            catalog.writeTo(out);
+    }
+
+    /**
+     * Writes a snapshot of this database with only the given schema, a segment to be {@link #merge(List) merged} with the others
+     */
+    void writeSchemaTo(DataOutputStream out, String catalogName, String schemaName) {
+        Schema schema = findSchema(catalogName, schemaName);
+        writeHeader(out);
+        Map<String, List<Schema>> schemasByCatalog = new LinkedHashMap<String, List<Schema>>();
+        schemasByCatalog.put(schema.getCatalog().getName(), Collections.singletonList(schema));
+        SegmentedSnapshot.write(out, this, schemasByCatalog, 0);
+    }
+
+    void writeTo(DataOutputStream out) {
+        writeTo(out, 0);
+    }
+
+    void writeTo(DataOutputStream out, int parallelism) {
+        writeHeader(out);
+        Map<String, List<Schema>> schemasByCatalog = new LinkedHashMap<String, List<Schema>>();
+        for (Catalog catalog : getCatalogs()) {
+            schemasByCatalog.put(catalog.getName(), catalog.getSchemas());
+        }
+        SegmentedSnapshot.write(out, this, schemasByCatalog, parallelism);
+    }
+
+    private void crawl(CrawlCheckpoint journal, Catalog catalog, final Schema schema) {
+        List<Table> recorded = journal.getTables(catalog.getName(), schema.getName());
+        if (journal.isDone(catalog.getName(), schema.getName())) {
+            schema.restoreTables(recorded);
+            return;
+        }
+        Map<String, Table> recordedMap = new HashMap<String, Table>();
+        for (Table table : recorded) {
+            recordedMap.put(table.getName(), table);
+        }
+        List<Table> tables = retry(new Callable<List<Table>>() {
+
+            @Override
+            public List<Table> call() {
+                return schema.getTables();
+            }
+        });
+        for (final Table table : tables) {
+            Table saved = recordedMap.get(table.getName());
+            if (saved != null) {
+                table.restoreDefinition(saved);
+                continue;
+            }
+            retry(new Callable<Table>() {
+
+                @Override
+                public Table call() {
+                    table.getColumns();
+                    table.getPrimaryKey(); // the keys of the whole schema are loaded at once
+                    return table;
+                }
+            });
+            journal.addTable(catalog.getName(), schema.getName(), table);
+        }
+        journal.setDone(catalog.getName(), schema.getName());
+    }
+
+    private Schema findSchema(final String catalogName, final String schemaName) {
+        Schema schema = retry(new Callable<Schema>() {
+
+            @Override
+            public Schema call() {
+                Catalog catalog = getCatalog(catalogName);
+                return catalog == null ? null : catalog.getSchema(schemaName);
+            }
+        });
+        if (schema == null) {
+            throw new IllegalArgumentException("schema not found: " + catalogName + "." + schemaName);
+        }
+        return schema;
+    }
+
+    private QueryRateLimiter getHostRateLimiter() {
+        return host == null || HOST_RATE_LIMITERS.isEmpty() ? null : HOST_RATE_LIMITERS.get(host.toLowerCase());
+    }
+
+    /**
+     * Runs a step of the crawl again when it fails with a transient error, like a connection lost while its results were read, which the
+     * retries of the queries do not cover<br>
+     * The queries of the step are not retried by themselves meanwhile, so a failure is tried at most <code>maxRetries + 1</code> times
+     */
+    private <T> T retry(Callable<T> step) {
+        if (inRetriedStep.get() != null) {
+            try {
+                return step.call(); // a step inside another one, only the outer step is retried
+            } catch (Exception e) {
+                throw UncheckedException.wrap(e);
+            }
+        }
+        for (int attempt = 0;; attempt++) {
+            inRetriedStep.set(Boolean.TRUE);
+            try {
+                return step.call();
+            } catch (Exception e) {
+                if (attempt >= maxRetries || !ManagedConnection.isTransient(e)) {
+                    throw UncheckedException.wrap(e);
+                }
+            } finally {
+                inRetriedStep.remove();
+            }
+            backoff(attempt);
+            try {
+                ManagedConnection.reconnectIfBroken(connection);
+            } catch (SQLException e) {
+                // the step fails again and is retried, or the error is thrown when there are no retries left
+            }
         }
     }
+
+    private String statisticsKey(String catalogName, String schemaName, String tableName) {
+        return catalogName + "\u0000" + schemaName + "\u0000" + tableName;
+    }
 }
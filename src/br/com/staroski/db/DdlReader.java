@@ -0,0 +1,1143 @@
+package br.com.staroski.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class reads the tables defined by DDL scripts, so a schema kept as versioned DDL can be compared by
+ * {@link Schema#compareWith(Schema, Schema...)} without being applied to a database first<br>
+ * The scripts are read one statement at a time and only the statements that define tables are kept:
+ * <ul>
+ * <li><code>CREATE TABLE</code>, with its columns, primary key, unique constraints, indexes and foreign keys</li>
+ * <li><code>CREATE INDEX</code>, <code>DROP INDEX</code> and <code>DROP TABLE</code></li>
+ * <li><code>ALTER TABLE</code> adding, changing, renaming or dropping columns and constraints</li>
+ * <li><code>CREATE SCHEMA</code> and the statements that change the current schema, like <code>SET search_path</code> and
+ * <code>USE</code></li>
+ * </ul>
+ * Any other statement, like views, procedures and grants, is skipped, as the tables created without a column list<br>
+ * A name with one part belongs to the current schema, a name with two parts is <code>schema.table</code> and a name with three parts is
+ * <code>catalog.schema.table</code><br>
+ * The keys and indexes without a name get the name the database would give them, see {@link KeyNaming}, because the keys are compared by
+ * name
+ *
+ * @author Ricardo Artur Staroski
+ */
+public final class DdlReader {
+
+    /**
+     * How the names that are not quoted are read, each vendor folds them to upper or lower case, so the tables read match the crawled ones
+     */
+    public enum IdentifierCase {
+        AS_WRITTEN,
+        UPPER,
+        LOWER
+    }
+
+    /**
+     * How the keys and indexes created without a name are named, the same way as the database the scripts are written for<br>
+     * The other databases give them random names, like <code>SYS_C0012</code> or <code>FK__orders__custo__3A81B327</code>, which can't be
+     * told from the scripts, so their scripts should name all keys
+     */
+    public enum KeyNaming {
+        /**
+         * Like <code>orders_pkey</code>, <code>orders_code_key</code>, <code>orders_customer_id_fkey</code> and <code>orders_date_idx</code>,
+         * the names are shortened to 63 characters and numbered when they are taken
+         */
+        POSTGRESQL,
+        /**
+         * Like <code>PRIMARY</code>, <code>orders_ibfk_1</code> and the name of the first column of the index, numbered when it is taken
+         */
+        MYSQL
+    }
+
+    private static final class Token {
+
+        static final char WORD = 'w';
+        static final char QUOTED = 'q';
+        static final char STRING = 's';
+        static final char NUMBER = 'n';
+        static final char SYMBOL = 'p';
+        static final char END = ';';
+
+        final char kind;
+        final String text;
+
+        Token(char kind, String text) {
+            this.kind = kind;
+            this.text = text;
+        }
+
+        boolean is(String word) {
+            return kind == WORD && text.equalsIgnoreCase(word);
+        }
+
+        boolean isName() {
+            return kind == WORD || kind == QUOTED;
+        }
+
+        boolean isSymbol(String symbol) {
+            return kind == SYMBOL && text.equals(symbol);
+        }
+    }
+
+    /**
+     * Splits a script in tokens, skipping the comments<br>
+     * A statement ends at a semicolon, or at a line with only <code>/</code> or <code>GO</code>, and the PostgreSQL dollar quoted bodies are
+     * read as a single string, so the semicolons inside procedures do not matter
+     */
+    private static final class Lexer {
+
+        private final Reader in;
+        private final char[] buffer = new char[8192];
+        private final StringBuilder pushedBack = new StringBuilder();
+        private int position;
+        private int limit;
+        private boolean lineStart = true;
+
+        Lexer(Reader in) {
+            this.in = in;
+        }
+
+        /**
+         * @return The tokens of the next statement, empty if it has none, or <code>null</code> at the end of the script
+         */
+        List<Token> nextStatement() {
+            List<Token> statement = new ArrayList<Token>();
+            for (Token token = next(); token != null; token = next()) {
+                if (token.kind == Token.END) {
+                    return statement;
+                }
+                statement.add(token);
+            }
+            return statement.isEmpty() ? null : statement;
+        }
+
+        private boolean isNameChar(int c) {
+            return c >= 0 && (Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#');
+        }
+
+        private boolean isLineEnd(int c) {
+            return c < 0 || c == '\n' || c == '\r';
+        }
+
+        private Token next() {
+            while (true) {
+                int c = read();
+                if (c < 0) {
+                    return null;
+                }
+                if (c == '\n' || c == '\r') {
+                    lineStart = true;
+                    continue;
+                }
+                if (Character.isWhitespace(c)) {
+                    continue;
+                }
+                boolean first = lineStart;
+                lineStart = false;
+                if (c == '-' && peek() == '-') {
+                    skipLine();
+                    continue;
+                }
+                if (c == '/') {
+                    int n = peek();
+                    if (n == '*') {
+                        read();
+                        skipComment();
+                        continue;
+                    }
+                    if (first && isLineEnd(n)) {
+                        return new Token(Token.END, "/");
+                    }
+                    return new Token(Token.SYMBOL, "/");
+                }
+                if (c == ';') {
+                    return new Token(Token.END, ";");
+                }
+                if (c == '\'') {
+                    return new Token(Token.STRING, readQuoted('\''));
+                }
+                if (c == '"' || c == '`') {
+                    return new Token(Token.QUOTED, readQuoted((char) c));
+                }
+                if (c == '[') {
+                    String name = readQuoted(']');
+                    return name.isEmpty() ? new Token(Token.SYMBOL, "[]") : new Token(Token.QUOTED, name);
+                }
+                if (c == '$') {
+                    String body = readDollarQuoted();
+                    if (body != null) {
+                        return new Token(Token.STRING, body);
+                    }
+                }
+                if (Character.isDigit(c)) {
+                    StringBuilder number = new StringBuilder().append((char) c);
+                    while (Character.isDigit(peek()) || peek() == '.') {
+                        number.append((char) read());
+                    }
+                    return new Token(Token.NUMBER, number.toString());
+                }
+                if (isNameChar(c)) {
+                    StringBuilder word = new StringBuilder().append((char) c);
+                    while (isNameChar(peek())) {
+                        word.append((char) read());
+                    }
+                    if (first && "GO".equalsIgnoreCase(word.toString()) && isLineEnd(peek())) {
+                        return new Token(Token.END, "GO");
+                    }
+                    return new Token(Token.WORD, word.toString());
+                }
+                return new Token(Token.SYMBOL, String.valueOf((char) c));
+            }
+        }
+
+        private int peek() {
+            int c = read();
+            if (c >= 0) {
+                unread(c);
+            }
+            return c;
+        }
+
+        private int read() {
+            int pending = pushedBack.length();
+            if (pending > 0) {
+                char c = pushedBack.charAt(pending - 1);
+                pushedBack.setLength(pending - 1);
+                return c;
+            }
+            if (position == limit) {
+                try {
+                    limit = Math.max(in.read(buffer, 0, buffer.length), 0);
+                } catch (IOException e) {
+                    throw UncheckedException.wrap(e);
+                }
+                position = 0;
+                if (limit == 0) {
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+
+        /**
+         * Reads a body like <code>$$...$$</code> or <code>$tag$...$tag$</code>, the first dollar was already read
+         *
+         * @return The body, or <code>null</code> if the dollar does not start a quoted body
+         */
+        private String readDollarQuoted() {
+            StringBuilder tag = new StringBuilder("$");
+            for (int c = read(); c != '$'; c = read()) {
+                if (!isNameChar(c) || c == '$' || tag.length() > 64) {
+                    if (c >= 0) {
+                        unread(c);
+                    }
+                    for (int i = tag.length() - 1; i > 0; i--) {
+                        unread(tag.charAt(i));
+                    }
+                    return null;
+                }
+                tag.append((char) c);
+            }
+            tag.append('$');
+            StringBuilder body = new StringBuilder();
+            for (int c = read(); c >= 0; c = read()) {
+                body.append((char) c);
+                if (c == '$' && body.indexOf(tag.toString(), body.length() - tag.length()) >= 0) {
+                    body.setLength(body.length() - tag.length());
+                    break;
+                }
+            }
+            return body.toString();
+        }
+
+        /**
+         * Reads up to the given quote, the first quote was already read and a doubled quote is part of the text
+         */
+        private String readQuoted(char quote) {
+            StringBuilder text = new StringBuilder();
+            for (int c = read(); c >= 0; c = read()) {
+                if (c == quote) {
+                    if (peek() != quote) {
+                        break;
+                    }
+                    read();
+                }
+                text.append((char) c);
+            }
+            return text.toString();
+        }
+
+        private void skipComment() {
+            for (int c = read(); c >= 0; c = read()) {
+                if (c == '*' && peek() == '/') {
+                    read();
+                    return;
+                }
+            }
+        }
+
+        private void skipLine() {
+            for (int c = read(); !isLineEnd(c); c = read()) {
+                // skipping the comment
+            }
+            lineStart = true;
+        }
+
+        private void unread(int c) {
+            if (pushedBack.length() == 0 && position > 0 && buffer[position - 1] == c) {
+                position--;
+            } else {
+                pushedBack.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * The tokens of a statement, or of a part of it, and the position of the next one to be parsed
+     */
+    private static final class Tokens {
+
+        private final List<Token> list;
+        private int position;
+
+        Tokens(List<Token> list) {
+            this.list = list;
+        }
+
+        boolean accept(String... words) {
+            if (position + words.length > list.size()) {
+                return false;
+            }
+            for (int i = 0; i < words.length; i++) {
+                if (!list.get(position + i).is(words[i])) {
+                    return false;
+                }
+            }
+            position += words.length;
+            return true;
+        }
+
+        boolean acceptSymbol(String symbol) {
+            if (position < list.size() && list.get(position).isSymbol(symbol)) {
+                position++;
+                return true;
+            }
+            return false;
+        }
+
+        boolean atEnd() {
+            return position >= list.size();
+        }
+
+        /**
+         * @return The next token, or an empty symbol past the end, so an incomplete statement is read as if its names were empty
+         */
+        Token next() {
+            Token token = peek(0);
+            position++;
+            return token;
+        }
+
+        /**
+         * @return The token at the given distance from the next one, or an empty symbol past the end
+         */
+        Token peek(int distance) {
+            int index = position + distance;
+            return index < list.size() ? list.get(index) : new Token(Token.SYMBOL, "");
+        }
+
+        /**
+         * Reads a list between parentheses, if the next token opens it
+         *
+         * @return The elements of the list, split at the commas that are not nested in other parentheses, or <code>null</code> if there
+         *         is no list
+         */
+        List<Tokens> readList() {
+            if (!acceptSymbol("(")) {
+                return null;
+            }
+            List<Tokens> elements = new ArrayList<Tokens>();
+            List<Token> element = new ArrayList<Token>();
+            for (int depth = 0; !atEnd();) {
+                Token token = next();
+                if (token.isSymbol("(")) {
+                    depth++;
+                } else if (token.isSymbol(")")) {
+                    if (depth-- == 0) {
+                        break;
+                    }
+                } else if (token.isSymbol(",") && depth == 0) {
+                    elements.add(new Tokens(element));
+                    element = new ArrayList<Token>();
+                    continue;
+                }
+                element.add(token);
+            }
+            if (!element.isEmpty()) {
+                elements.add(new Tokens(element));
+            }
+            return elements;
+        }
+
+        /**
+         * @return The remaining tokens, split at the commas that are not between parentheses
+         */
+        List<Tokens> split() {
+            List<Tokens> parts = new ArrayList<Tokens>();
+            List<Token> part = new ArrayList<Token>();
+            for (int depth = 0; !atEnd();) {
+                Token token = next();
+                if (token.isSymbol("(")) {
+                    depth++;
+                } else if (token.isSymbol(")")) {
+                    depth--;
+                } else if (token.isSymbol(",") && depth == 0) {
+                    parts.add(new Tokens(part));
+                    part = new ArrayList<Token>();
+                    continue;
+                }
+                part.add(token);
+            }
+            if (!part.isEmpty()) {
+                parts.add(new Tokens(part));
+            }
+            return parts;
+        }
+    }
+
+    /**
+     * The definition of a table while the scripts are read, the columns and constraints are found by their names in upper case
+     */
+    private static final class TableDefinition {
+
+        String name;
+        final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+        final Map<String, Index> indexes = new LinkedHashMap<String, Index>();
+        final Map<String, ForeignKey> foreignKeys = new LinkedHashMap<String, ForeignKey>();
+        Index primaryKey;
+
+        TableDefinition(String name) {
+            this.name = name;
+        }
+
+        Table toTable() {
+            return Table.create(name, "TABLE", new ArrayList<Column>(columns.values()), primaryKey, new LinkedList<Index>(indexes.values()),
+                    new LinkedList<ForeignKey>(foreignKeys.values()), null);
+        }
+    }
+
+    /**
+     * The tables of a schema while the scripts are read
+     */
+    private static final class SchemaDefinition {
+
+        final String catalogName;
+        final String name;
+        final Map<String, TableDefinition> tables = new LinkedHashMap<String, TableDefinition>();
+
+        SchemaDefinition(String catalogName, String name) {
+            this.catalogName = catalogName;
+            this.name = name;
+        }
+    }
+
+    /**
+     * The words that end the type of a column, they start its constraints and options
+     */
+    private static final Set<String> COLUMN_OPTIONS = new HashSet<String>(Arrays.asList("ALWAYS", "AS", "AUTO_INCREMENT", "AUTOINCREMENT",
+            "CHARSET", "CHECK", "COLLATE", "COMMENT", "COMPRESSION", "CONSTRAINT", "DEFAULT", "DISABLE", "ENABLE", "ENCODE", "ENCRYPT",
+            "FILESTREAM", "GENERATED", "HIDDEN", "IDENTITY", "INVISIBLE", "MASKED", "NOT", "NULL", "ON", "PRIMARY", "REFERENCES", "ROWGUIDCOL",
+            "SPARSE", "STORAGE", "UNIQUE", "USING", "VISIBLE"));
+
+    /**
+     * The words that may follow the size of a type and are still part of it
+     */
+    private static final Set<String> TYPE_SUFFIXES = new HashSet<String>(Arrays.asList("LOCAL", "PRECISION", "SIGNED", "TIME", "UNSIGNED",
+            "VARYING", "WITH", "WITHOUT", "ZEROFILL", "ZONE"));
+
+    private static final int MAX_NAME_LENGTH = 63;
+
+    private static String key(String name) {
+        return name == null ? null : name.toUpperCase();
+    }
+
+    /**
+     * @return The name PostgreSQL gives to an object without one, the longest of both names is shortened first, to fit the label in 63
+     *         characters
+     */
+    private static String objectName(String name1, String name2, String label) {
+        int available = MAX_NAME_LENGTH - label.length() - 1 - (name2 == null ? 0 : 1);
+        int name1Length = name1.length();
+        int name2Length = name2 == null ? 0 : name2.length();
+        while (name1Length + name2Length > available) {
+            if (name1Length > name2Length) {
+                name1Length--;
+            } else {
+                name2Length--;
+            }
+        }
+        StringBuilder name = new StringBuilder(name1.substring(0, name1Length));
+        if (name2 != null) {
+            name.append('_').append(name2, 0, name2Length);
+        }
+        return name.append('_').append(label).toString();
+    }
+
+    private String defaultCatalog;
+    private String defaultSchema;
+    private IdentifierCase identifierCase = IdentifierCase.AS_WRITTEN;
+    private KeyNaming keyNaming = KeyNaming.POSTGRESQL;
+
+    private final Map<String, SchemaDefinition> schemas = new LinkedHashMap<String, SchemaDefinition>();
+    private String currentCatalog;
+    private String currentSchema;
+
+    /**
+     * Reads the given scripts, in the given order, as the scripts of a single database
+     *
+     * @param name The name of the database, also its alias
+     */
+    public Database read(String name, File... scripts) {
+        Reader[] readers = new Reader[scripts.length];
+        try {
+            for (int i = 0; i < scripts.length; i++) {
+                readers[i] = new InputStreamReader(new FileInputStream(scripts[i]), StandardCharsets.UTF_8);
+            }
+            return read(name, readers);
+        } catch (IOException e) {
+            throw UncheckedException.wrap(e);
+        } finally {
+            for (Reader reader : readers) {
+                if (reader != null) {
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        // nothing to do, the script was only read
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the given scripts, in the given order, as the scripts of a single database, the readers are not closed
+     *
+     * @param name The name of the database, also its alias
+     */
+    public synchronized Database read(String name, Reader... scripts) {
+        schemas.clear();
+        currentCatalog = defaultCatalog;
+        currentSchema = defaultSchema;
+        schemaDefinition(currentCatalog, currentSchema);
+        for (Reader script : scripts) {
+            Lexer lexer = new Lexer(script);
+            for (List<Token> statement = lexer.nextStatement(); statement != null; statement = lexer.nextStatement()) {
+                parseStatement(new Tokens(statement));
+            }
+        }
+        return Database.create("ddl", name, toCatalogs());
+    }
+
+    /**
+     * Sets the catalog of the tables whose names do not have one, <code>null</code> by default
+     */
+    public DdlReader setDefaultCatalog(String catalogName) {
+        this.defaultCatalog = catalogName;
+        return this;
+    }
+
+    /**
+     * Sets the schema of the tables whose names do not have one, until a statement changes the current schema, <code>null</code> by
+     * default
+     */
+    public DdlReader setDefaultSchema(String schemaName) {
+        this.defaultSchema = schemaName;
+        return this;
+    }
+
+    /**
+     * Sets how the names that are not quoted are read, {@link IdentifierCase#AS_WRITTEN} by default
+     */
+    public DdlReader setIdentifierCase(IdentifierCase identifierCase) {
+        this.identifierCase = identifierCase;
+        return this;
+    }
+
+    /**
+     * Sets how the keys and indexes without a name are named, {@link KeyNaming#POSTGRESQL} by default
+     */
+    public DdlReader setKeyNaming(KeyNaming keyNaming) {
+        this.keyNaming = keyNaming;
+        return this;
+    }
+
+    /**
+     * @param constraint <code>true</code> for a unique constraint, <code>false</code> for an index created as such
+     */
+    private void addIndex(TableDefinition table, String name, boolean unique, boolean constraint, List<String> columnNames) {
+        if (columnNames == null || columnNames.isEmpty()) {
+            return; // an index of expressions, not of columns
+        }
+        if (name == null) {
+            name = indexName(table, constraint, columnNames);
+        }
+        table.indexes.put(key(name), new Index(name, false, unique, columnNames));
+    }
+
+    private void alterTable(Tokens statement) {
+        statement.accept("IF", "EXISTS");
+        statement.accept("ONLY");
+        String[] name = qualifiedName(statement);
+        TableDefinition table = tableDefinition(name);
+        if (table == null) {
+            return;
+        }
+        if (statement.accept("RENAME", "TO")) {
+            renameTable(name, qualifiedName(statement)[2]);
+            return;
+        }
+        for (Tokens action : statement.split()) {
+            if (action.accept("ADD")) {
+                action.accept("COLUMN");
+                action.accept("IF", "NOT", "EXISTS");
+                List<Tokens> elements = action.readList();
+                if (elements == null) {
+                    parseTableElement(table, action);
+                } else {
+                    for (Tokens element : elements) {
+                        parseTableElement(table, element);
+                    }
+                }
+            } else if (action.accept("DROP")) {
+                dropFromTable(table, action);
+            } else if (action.accept("ALTER") || action.accept("MODIFY")) {
+                action.accept("COLUMN");
+                List<Tokens> elements = action.readList();
+                if (elements == null) {
+                    changeColumn(table, action);
+                } else {
+                    for (Tokens element : elements) {
+                        changeColumn(table, element);
+                    }
+                }
+            } else if (action.accept("RENAME", "COLUMN") || action.accept("RENAME")) {
+                String oldName = name(action);
+                action.accept("TO");
+                Column column = table.columns.get(key(oldName));
+                if (column != null && !action.atEnd()) {
+                    String newName = name(action);
+                    putColumn(table, oldName, new Column(newName, column.getType(), column.getSize(), column.getScale(), column.getJavaSqlType()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Changes the type of a column, from <code>ALTER COLUMN</code> or <code>MODIFY</code>, the changes of defaults and nullability are
+     * skipped
+     */
+    private void changeColumn(TableDefinition table, Tokens element) {
+        String name = name(element);
+        if (!table.columns.containsKey(key(name))) {
+            return;
+        }
+        if (element.accept("SET") && !element.accept("DATA")) {
+            return;
+        }
+        element.accept("TYPE");
+        Token next = element.peek(0);
+        boolean otherChange = next.is("ADD") || next.is("DROP") || next.is("RESET") || next.is("RESTART");
+        if (next.isName() && !COLUMN_OPTIONS.contains(key(next.text)) && !otherChange) {
+            putColumn(table, name, parseColumnType(name, element));
+        }
+    }
+
+    private void createIndex(Tokens statement, boolean unique) {
+        statement.accept("CONCURRENTLY");
+        statement.accept("IF", "NOT", "EXISTS");
+        String name = statement.peek(0).is("ON") ? null : qualifiedName(statement)[2];
+        if (!statement.accept("ON")) {
+            return;
+        }
+        statement.accept("ONLY");
+        TableDefinition table = tableDefinition(qualifiedName(statement));
+        if (table == null) {
+            return;
+        }
+        if (statement.accept("USING")) {
+            statement.next();
+        }
+        addIndex(table, name, unique, false, parseColumnNames(statement));
+    }
+
+    private void createTable(Tokens statement) {
+        statement.accept("IF", "NOT", "EXISTS");
+        String[] name = qualifiedName(statement);
+        List<Tokens> elements = statement.readList();
+        if (elements == null) {
+            return; // created from a query or from another table, there are no columns to read
+        }
+        TableDefinition table = new TableDefinition(name[2]);
+        schemaDefinition(name[0], name[1]).tables.put(key(name[2]), table);
+        for (Tokens element : elements) {
+            parseTableElement(table, element);
+        }
+    }
+
+    private void dropFromTable(TableDefinition table, Tokens action) {
+        if (action.accept("PRIMARY", "KEY")) {
+            table.primaryKey = null;
+            return;
+        }
+        boolean constraint = action.accept("CONSTRAINT") || action.accept("INDEX") || action.accept("KEY") || action.accept("FOREIGN", "KEY");
+        if (!constraint) {
+            action.accept("COLUMN");
+        }
+        action.accept("IF", "EXISTS");
+        if (action.atEnd()) {
+            return;
+        }
+        String name = key(name(action));
+        if (constraint) {
+            if (table.primaryKey != null && name.equals(key(table.primaryKey.getName()))) {
+                table.primaryKey = null;
+            }
+            table.indexes.remove(name);
+            table.foreignKeys.remove(name);
+        } else {
+            table.columns.remove(name);
+        }
+    }
+
+    private void dropIndex(Tokens statement) {
+        statement.accept("CONCURRENTLY");
+        statement.accept("IF", "EXISTS");
+        for (Tokens part : statement.split()) {
+            String[] name = qualifiedName(part);
+            String indexName = key(name[2]);
+            if (part.accept("ON")) {
+                TableDefinition table = tableDefinition(qualifiedName(part));
+                if (table != null) {
+                    table.indexes.remove(indexName);
+                }
+                continue;
+            }
+            SchemaDefinition schema = schemas.get(schemaKey(name[0], name[1]));
+            if (schema != null) {
+                for (TableDefinition table : schema.tables.values()) {
+                    table.indexes.remove(indexName);
+                }
+            }
+        }
+    }
+
+    private void dropTable(Tokens statement) {
+        statement.accept("IF", "EXISTS");
+        for (Tokens part : statement.split()) {
+            String[] name = qualifiedName(part);
+            SchemaDefinition schema = schemas.get(schemaKey(name[0], name[1]));
+            if (schema != null) {
+                schema.tables.remove(key(name[2]));
+            }
+        }
+    }
+
+    private String foreignKeyName(TableDefinition table, List<String> columnNames) {
+        if (keyNaming == KeyNaming.MYSQL) {
+            String prefix = table.name + "_ibfk_";
+            int last = 0;
+            for (ForeignKey foreignKey : table.foreignKeys.values()) {
+                String name = foreignKey.getName();
+                if (name.startsWith(prefix)) {
+                    try {
+                        last = Math.max(last, Integer.parseInt(name.substring(prefix.length())));
+                    } catch (NumberFormatException e) {
+                        // named by the script, not numbered
+                    }
+                }
+            }
+            return prefix + (last + 1);
+        }
+        String name = objectName(table.name, join(columnNames), "fkey");
+        for (int number = 1; table.foreignKeys.containsKey(key(name)); number++) {
+            name = objectName(table.name, join(columnNames), "fkey" + number);
+        }
+        return name;
+    }
+
+    private String indexName(TableDefinition table, boolean constraint, List<String> columnNames) {
+        if (keyNaming == KeyNaming.MYSQL) {
+            String name = columnNames.get(0);
+            for (int number = 2; table.indexes.containsKey(key(name)); number++) {
+                name = columnNames.get(0) + "_" + number;
+            }
+            return name;
+        }
+        String label = constraint ? "key" : "idx";
+        String name = objectName(table.name, join(columnNames), label);
+        for (int number = 1; table.indexes.containsKey(key(name)); number++) {
+            name = objectName(table.name, join(columnNames), label + number);
+        }
+        return name;
+    }
+
+    private String join(List<String> names) {
+        StringBuilder text = new StringBuilder();
+        for (String name : names) {
+            if (text.length() > 0) {
+                text.append('_');
+            }
+            text.append(name);
+        }
+        return text.toString();
+    }
+
+    private String name(Tokens tokens) {
+        Token token = tokens.next();
+        if (token.kind != Token.WORD) {
+            return token.text;
+        }
+        switch (identifierCase) {
+            case UPPER:
+                return token.text.toUpperCase();
+            case LOWER:
+                return token.text.toLowerCase();
+            default:
+                return token.text;
+        }
+    }
+
+    private List<String> parseColumnNames(Tokens tokens) {
+        List<Tokens> elements = tokens.readList();
+        if (elements == null) {
+            return null;
+        }
+        List<String> names = new ArrayList<String>();
+        for (Tokens element : elements) {
+            if (!element.peek(0).isName() || element.peek(1).isSymbol("(")) {
+                return null;
+            }
+            names.add(name(element));
+        }
+        return names;
+    }
+
+    private Column parseColumnType(String name, Tokens element) {
+        StringBuilder type = new StringBuilder();
+        int size = 0;
+        int scale = 0;
+        boolean sized = false;
+        while (!element.atEnd()) {
+            Token token = element.peek(0);
+            if (token.isSymbol("(") && !sized && type.length() > 0) {
+                List<Tokens> arguments = element.readList();
+                size = parseSize(arguments, 0);
+                scale = parseSize(arguments, 1);
+                sized = true;
+                continue;
+            }
+            if (token.isSymbol("[]") || token.isSymbol(".")) {
+                type.append(element.next().text);
+                continue;
+            }
+            if (!token.isName()) {
+                break;
+            }
+            String word = key(token.text);
+            boolean typeWord = token.kind == Token.QUOTED
+                    || (sized ? TYPE_SUFFIXES.contains(word) : !COLUMN_OPTIONS.contains(word) && !(word.equals("CHARACTER") && element.peek(1).is("SET")));
+            if (!typeWord) {
+                break;
+            }
+            if (type.length() > 0 && type.charAt(type.length() - 1) != '.') {
+                type.append(' ');
+            }
+            type.append(token.kind == Token.QUOTED ? element.next().text : name(element));
+        }
+        String typeName = type.toString();
+        return new Column(name, typeName, size, scale, TypeNormalizer.sqlTypeOf(TypeNormalizer.getDefault().normalize(typeName, Types.OTHER)));
+    }
+
+    /**
+     * Reads a foreign key, the <code>REFERENCES</code> word was already read
+     */
+    private void parseReferences(TableDefinition table, String name, List<String> columnNames, Tokens tokens) {
+        String[] referenced = qualifiedName(tokens);
+        List<String> referencedColumnNames = parseColumnNames(tokens);
+        if (referencedColumnNames == null) {
+            TableDefinition referencedTable = tableDefinition(referenced);
+            referencedColumnNames = referencedTable == null || referencedTable.primaryKey == null
+                    ? new ArrayList<String>()
+                    : new ArrayList<String>(referencedTable.primaryKey.getColumnNames());
+        }
+        if (columnNames == null) {
+            return;
+        }
+        if (name == null) {
+            name = foreignKeyName(table, columnNames);
+        }
+        table.foreignKeys.put(key(name), new ForeignKey(name, columnNames, referenced[0], referenced[1], referenced[2], referencedColumnNames));
+    }
+
+    private int parseSize(List<Tokens> arguments, int index) {
+        if (arguments == null || index >= arguments.size()) {
+            return 0;
+        }
+        Token token = arguments.get(index).peek(0);
+        if (token.kind != Token.NUMBER) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(token.text);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void parseStatement(Tokens statement) {
+        if (statement.accept("CREATE")) {
+            statement.accept("OR", "REPLACE");
+            while (statement.accept("GLOBAL") || statement.accept("LOCAL") || statement.accept("TEMPORARY") || statement.accept("TEMP")
+                    || statement.accept("UNLOGGED")) {
+                // the modifiers do not change the table definition
+            }
+            if (statement.accept("TABLE")) {
+                createTable(statement);
+                return;
+            }
+            boolean unique = statement.accept("UNIQUE");
+            while (statement.accept("CLUSTERED") || statement.accept("NONCLUSTERED") || statement.accept("BITMAP")) {
+                // the kind of index does not change what is compared
+            }
+            if (statement.accept("INDEX")) {
+                createIndex(statement, unique);
+            } else if (statement.accept("SCHEMA")) {
+                statement.accept("IF", "NOT", "EXISTS");
+                if (statement.peek(0).isName() && !statement.peek(0).is("AUTHORIZATION")) {
+                    schemaDefinition(currentCatalog, name(statement));
+                }
+            }
+        } else if (statement.accept("ALTER", "TABLE")) {
+            alterTable(statement);
+        } else if (statement.accept("DROP", "TABLE")) {
+            dropTable(statement);
+        } else if (statement.accept("DROP", "INDEX")) {
+            dropIndex(statement);
+        } else if (statement.accept("ALTER", "SESSION", "SET", "CURRENT_SCHEMA") || statement.accept("SET", "SEARCH_PATH")
+                || statement.accept("SET", "SCHEMA") || statement.accept("SET", "CURRENT", "SCHEMA") || statement.accept("SET", "CURRENT_SCHEMA")) {
+            if (!statement.acceptSymbol("=")) {
+                statement.accept("TO");
+            }
+            if (!statement.atEnd()) {
+                currentSchema = name(statement);
+                schemaDefinition(currentCatalog, currentSchema);
+            }
+        } else if (statement.accept("USE") && !statement.atEnd()) {
+            currentCatalog = name(statement);
+            schemaDefinition(currentCatalog, currentSchema);
+        }
+    }
+
+    /**
+     * Reads a column or a constraint of a table
+     */
+    private void parseTableElement(TableDefinition table, Tokens element) {
+        String constraintName = element.accept("CONSTRAINT") ? name(element) : null;
+        if (element.accept("PRIMARY", "KEY")) {
+            element.accept("CLUSTERED");
+            element.accept("NONCLUSTERED");
+            List<String> columnNames = parseColumnNames(element);
+            if (columnNames != null) {
+                table.primaryKey = new Index(constraintName == null ? primaryKeyName(table) : constraintName, true, true, columnNames);
+            }
+        } else if (element.accept("FOREIGN", "KEY")) {
+            List<String> columnNames = parseColumnNames(element);
+            if (element.accept("REFERENCES")) {
+                parseReferences(table, constraintName, columnNames, element);
+            }
+        } else if (element.accept("UNIQUE")) {
+            if (element.accept("KEY") || element.accept("INDEX") || element.accept("CLUSTERED") || element.accept("NONCLUSTERED")) {
+                // the same constraint
+            }
+            String indexName = element.peek(0).isName() ? name(element) : constraintName;
+            addIndex(table, indexName, true, true, parseColumnNames(element));
+        } else if (isIndexElement(element)) {
+            String indexName = element.peek(0).isName() ? name(element) : null;
+            addIndex(table, indexName, false, false, parseColumnNames(element));
+        } else if (constraintName == null && !element.peek(0).is("CHECK") && !element.peek(0).is("EXCLUDE") && !element.peek(0).is("LIKE")
+                && !element.peek(0).is("PERIOD") && element.peek(0).isName()) {
+            parseColumn(table, element);
+        }
+    }
+
+    private void parseColumn(TableDefinition table, Tokens element) {
+        String name = name(element);
+        putColumn(table, name, parseColumnType(name, element));
+        String constraintName = null;
+        List<String> columnNames = new ArrayList<String>();
+        columnNames.add(name);
+        while (!element.atEnd()) {
+            if (element.accept("CONSTRAINT")) {
+                constraintName = name(element);
+            } else if (element.accept("PRIMARY", "KEY")) {
+                table.primaryKey = new Index(constraintName == null ? primaryKeyName(table) : constraintName, true, true, columnNames);
+                constraintName = null;
+            } else if (element.accept("UNIQUE")) {
+                element.accept("KEY");
+                addIndex(table, constraintName, true, true, columnNames);
+                constraintName = null;
+            } else if (element.accept("REFERENCES")) {
+                parseReferences(table, constraintName, columnNames, element);
+                constraintName = null;
+            } else if (element.peek(0).isSymbol("(")) {
+                element.readList(); // a default, a check or a generated expression
+            } else {
+                element.next();
+            }
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the element is an index of a MySQL table, like <code>KEY name (column)</code>, and not a column whose
+     *         name is <code>key</code> or <code>index</code>
+     */
+    private boolean isIndexElement(Tokens element) {
+        if (element.accept("FULLTEXT") || element.accept("SPATIAL")) {
+            element.accept("KEY");
+            element.accept("INDEX");
+            return true;
+        }
+        if (!element.peek(0).is("KEY") && !element.peek(0).is("INDEX")) {
+            return false;
+        }
+        boolean index = element.peek(1).isSymbol("(") || element.peek(1).isName() && element.peek(2).isSymbol("(") && element.peek(3).kind != Token.NUMBER;
+        if (index) {
+            element.next();
+        }
+        return index;
+    }
+
+    private String primaryKeyName(TableDefinition table) {
+        return keyNaming == KeyNaming.MYSQL ? "PRIMARY" : objectName(table.name, null, "pkey");
+    }
+
+    private void putColumn(TableDefinition table, String oldName, Column column) {
+        String oldKey = key(oldName);
+        String newKey = key(column.getName());
+        if (oldKey.equals(newKey) || !table.columns.containsKey(oldKey)) {
+            table.columns.put(newKey, column);
+            return;
+        }
+        Map<String, Column> renamed = new LinkedHashMap<String, Column>();
+        for (Map.Entry<String, Column> entry : table.columns.entrySet()) {
+            if (entry.getKey().equals(oldKey)) {
+                renamed.put(newKey, column);
+            } else {
+                renamed.put(entry.getKey(), entry.getValue());
+            }
+        }
+        table.columns.clear();
+        table.columns.putAll(renamed);
+    }
+
+    /**
+     * @return The catalog, schema and table of a name, the missing parts are the current ones
+     */
+    private String[] qualifiedName(Tokens tokens) {
+        List<String> parts = new ArrayList<String>();
+        parts.add(name(tokens));
+        while (tokens.acceptSymbol(".")) {
+            parts.add(name(tokens));
+        }
+        int count = parts.size();
+        return new String[] {
+                count >= 3 ? parts.get(count - 3) : currentCatalog,
+                count >= 2 ? parts.get(count - 2) : currentSchema,
+                parts.get(count - 1) };
+    }
+
+    private void renameTable(String[] name, String newName) {
+        SchemaDefinition schema = schemas.get(schemaKey(name[0], name[1]));
+        TableDefinition table = schema.tables.remove(key(name[2]));
+        table.name = newName;
+        schema.tables.put(key(newName), table);
+    }
+
+    private SchemaDefinition schemaDefinition(String catalogName, String schemaName) {
+        String key = schemaKey(catalogName, schemaName);
+        SchemaDefinition schema = schemas.get(key);
+        if (schema == null) {
+            schema = new SchemaDefinition(catalogName, schemaName);
+            schemas.put(key, schema);
+        }
+        return schema;
+    }
+
+    private String schemaKey(String catalogName, String schemaName) {
+        return key(catalogName) + "\u0000" + key(schemaName);
+    }
+
+    private TableDefinition tableDefinition(String[] name) {
+        SchemaDefinition schema = schemas.get(schemaKey(name[0], name[1]));
+        return schema == null ? null : schema.tables.get(key(name[2]));
+    }
+
+    /**
+     * @return The catalogs of the tables read, the empty schemas are kept, except the default one
+     */
+    private List<Catalog> toCatalogs() {
+        Map<String, List<Schema>> catalogSchemas = new LinkedHashMap<String, List<Schema>>();
+        Map<String, String> catalogNames = new HashMap<String, String>();
+        for (SchemaDefinition definition : schemas.values()) {
+            boolean isDefault = schemaKey(definition.catalogName, definition.name).equals(schemaKey(defaultCatalog, defaultSchema));
+            if (isDefault && definition.tables.isEmpty() && schemas.size() > 1) {
+                continue;
+            }
+            List<Table> tables = new LinkedList<Table>();
+            Map<String, Table> tableMap = new HashMap<String, Table>();
+            Schema schema = new Schema(definition.name, tables, tableMap);
+            List<Table> unsorted = new ArrayList<Table>();
+            for (TableDefinition tableDefinition : definition.tables.values()) {
+                unsorted.add(tableDefinition.toTable().setSchema(schema));
+            }
+            for (Table table : Schema.sortedByName(unsorted)) {
+                tables.add(table);
+                tableMap.put(table.getName(), table);
+            }
+            String catalogKey = key(definition.catalogName);
+            List<Schema> schemaList = catalogSchemas.get(catalogKey);
+            if (schemaList == null) {
+                schemaList = new LinkedList<Schema>();
+                catalogSchemas.put(catalogKey, schemaList);
+                catalogNames.put(catalogKey, definition.catalogName);
+            }
+            schemaList.add(schema);
+        }
+        List<Catalog> catalogs = new LinkedList<Catalog>();
+        for (Map.Entry<String, List<Schema>> entry : catalogSchemas.entrySet()) {
+            Catalog catalog = new Catalog(catalogNames.get(entry.getKey()), entry.getValue(), new HashMap<String, Schema>());
+            for (Schema schema : entry.getValue()) {
+                schema.setCatalog(catalog);
+            }
+            catalogs.add(catalog);
+        }
+        return catalogs;
+    }
+}
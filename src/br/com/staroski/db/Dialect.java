@@ -0,0 +1,307 @@
+package br.com.staroski.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import br.com.staroski.Utils;
+
+/**
+ * This class holds the vendor specific ways of reading metadata in bulk<br>
+ * The generic implementation relies only on {@link DatabaseMetaData}, the vendor specific ones query the system catalog directly
+ * 
+ * @author Ricardo Artur Staroski
+ */
+abstract class Dialect {
+
+    private static class GenericDialect extends Dialect {
+
+        @Override
+        Map<String, TableKeys> loadKeys(Connection connection, Schema schema) throws SQLException {
+            Map<String, TableKeys> keys = new HashMap<String, TableKeys>();
+            DatabaseMetaData metaData = connection.getMetaData();
+            String catalogName = schema.getCatalog().getName();
+            String schemaName = schema.getName();
+            try {
+                readPrimaryKeys(schema, keys, metaData.getPrimaryKeys(catalogName, schemaName, null));
+            } catch (SQLException e) {
+                // driver does not accept a null table name, falling back to one query per table
+                for (Table table : schema.getTables()) {
+                    readPrimaryKeys(schema, keys, metaData.getPrimaryKeys(catalogName, schemaName, table.getName()));
+                }
+            }
+            try {
+                readIndexes(schema, keys, metaData.getIndexInfo(catalogName, schemaName, null, false, true));
+            } catch (SQLException e) {
+                for (Table table : schema.getTables()) {
+                    readIndexes(schema, keys, metaData.getIndexInfo(catalogName, schemaName, table.getName(), false, true));
+                }
+            }
+            try {
+                readForeignKeys(schema, keys, metaData.getImportedKeys(catalogName, schemaName, null));
+            } catch (SQLException e) {
+                for (Table table : schema.getTables()) {
+                    readForeignKeys(schema, keys, metaData.getImportedKeys(catalogName, schemaName, table.getName()));
+                }
+            }
+            return keys;
+        }
+
+        @Override
+        Map<String, TableStatistics> loadStatistics(Connection connection, String catalogName, String schemaName) throws SQLException {
+            return null;
+        }
+
+        private boolean belongsTo(Schema schema, ResultSet result, String catalogColumn, String schemaColumn) throws SQLException {
+            return Utils.areEqualsIgnoreCase(schema.getCatalog().getName(), result.getString(catalogColumn))
+                    && Utils.areEqualsIgnoreCase(schema.getName(), result.getString(schemaColumn));
+        }
+
+        private void readForeignKeys(Schema schema, Map<String, TableKeys> keys, ResultSet result) throws SQLException {
+            try {
+                while (result.next()) {
+                    if (!belongsTo(schema, result, "FKTABLE_CAT", "FKTABLE_SCHEM")) {
+                        continue;
+                    }
+                    String tableName = result.getString("FKTABLE_NAME");
+                    String name = result.getString("FK_NAME");
+                    int sequence = result.getInt("KEY_SEQ");
+                    String columnName = result.getString("FKCOLUMN_NAME");
+                    String referencedCatalog = result.getString("PKTABLE_CAT");
+                    String referencedSchema = result.getString("PKTABLE_SCHEM");
+                    String referencedTable = result.getString("PKTABLE_NAME");
+                    String referencedColumn = result.getString("PKCOLUMN_NAME");
+                    if (name == null) {
+                        name = tableName + "->" + referencedTable;
+                    }
+                    keysOf(keys, tableName).addForeignKeyColumn(name, sequence, columnName, referencedCatalog, referencedSchema, referencedTable,
+                                                                referencedColumn);
+                }
+            } finally {
+                result.close();
+            }
+        }
+
+        private void readIndexes(Schema schema, Map<String, TableKeys> keys, ResultSet result) throws SQLException {
+            try {
+                while (result.next()) {
+                    if (!belongsTo(schema, result, "TABLE_CAT", "TABLE_SCHEM")) {
+                        continue;
+                    }
+                    if (result.getShort("TYPE") == DatabaseMetaData.tableIndexStatistic) {
+                        continue;
+                    }
+                    String name = result.getString("INDEX_NAME");
+                    if (name == null) {
+                        continue;
+                    }
+                    String tableName = result.getString("TABLE_NAME");
+                    boolean unique = !result.getBoolean("NON_UNIQUE");
+                    int position = result.getInt("ORDINAL_POSITION");
+                    String columnName = result.getString("COLUMN_NAME");
+                    if (columnName == null) {
+                        columnName = "<expression>";
+                    }
+                    keysOf(keys, tableName).addIndexColumn(name, unique, position, columnName);
+                }
+            } finally {
+                result.close();
+            }
+        }
+
+        private void readPrimaryKeys(Schema schema, Map<String, TableKeys> keys, ResultSet result) throws SQLException {
+            try {
+                while (result.next()) {
+                    if (!belongsTo(schema, result, "TABLE_CAT", "TABLE_SCHEM")) {
+                        continue;
+                    }
+                    String tableName = result.getString("TABLE_NAME");
+                    String name = result.getString("PK_NAME");
+                    int sequence = result.getInt("KEY_SEQ");
+                    String columnName = result.getString("COLUMN_NAME");
+                    keysOf(keys, tableName).addPrimaryKeyColumn(name, sequence, columnName);
+                }
+            } finally {
+                result.close();
+            }
+        }
+    }
+
+    private static class PostgreSQLDialect extends Dialect {
+
+        private static final String INDEXES = "SELECT t.relname, i.relname, x.indisprimary, x.indisunique, s.n, "
+                + "pg_catalog.pg_get_indexdef(x.indexrelid, s.n, true) "
+                + "FROM pg_catalog.pg_index x "
+                + "JOIN pg_catalog.pg_class t ON t.oid = x.indrelid "
+                + "JOIN pg_catalog.pg_class i ON i.oid = x.indexrelid "
+                + "JOIN pg_catalog.pg_namespace ns ON ns.oid = t.relnamespace "
+                + "CROSS JOIN generate_series(1, x.indnatts) AS s(n) "
+                + "WHERE ns.nspname = ? "
+                + "ORDER BY 1, 2, 5";
+
+        private static final String FOREIGN_KEYS = "SELECT t.relname, c.conname, s.n, a.attname, rn.nspname, rt.relname, ra.attname "
+                + "FROM pg_catalog.pg_constraint c "
+                + "JOIN pg_catalog.pg_class t ON t.oid = c.conrelid "
+                + "JOIN pg_catalog.pg_namespace ns ON ns.oid = t.relnamespace "
+                + "JOIN pg_catalog.pg_class rt ON rt.oid = c.confrelid "
+                + "JOIN pg_catalog.pg_namespace rn ON rn.oid = rt.relnamespace "
+                + "CROSS JOIN generate_series(1, array_length(c.conkey, 1)) AS s(n) "
+                + "JOIN pg_catalog.pg_attribute a ON a.attrelid = c.conrelid AND a.attnum = c.conkey[s.n] "
+                + "JOIN pg_catalog.pg_attribute ra ON ra.attrelid = c.confrelid AND ra.attnum = c.confkey[s.n] "
+                + "WHERE c.contype = 'f' AND ns.nspname = ? "
+                + "ORDER BY 1, 2, 3";
+
+        private static final String STATISTICS = "SELECT c.relname, c.reltuples::bigint, pg_catalog.pg_total_relation_size(c.oid) "
+                + "FROM pg_catalog.pg_class c "
+                + "JOIN pg_catalog.pg_namespace ns ON ns.oid = c.relnamespace "
+                + "WHERE ns.nspname = ? AND c.relkind IN ('r', 'p', 'm')";
+
+        @Override
+        Map<String, TableKeys> loadKeys(Connection connection, Schema schema) throws SQLException {
+            Map<String, TableKeys> keys = new HashMap<String, TableKeys>();
+            String catalogName = schema.getCatalog().getName();
+            PreparedStatement statement = connection.prepareStatement(INDEXES);
+            try {
+                statement.setString(1, schema.getName());
+                ResultSet result = statement.executeQuery();
+                while (result.next()) {
+                    String tableName = result.getString(1);
+                    String name = result.getString(2);
+                    boolean primaryKey = result.getBoolean(3);
+                    boolean unique = result.getBoolean(4);
+                    int position = result.getInt(5);
+                    String columnName = result.getString(6);
+                    if (primaryKey) {
+                        keysOf(keys, tableName).addPrimaryKeyColumn(name, position, columnName);
+                    } else {
+                        keysOf(keys, tableName).addIndexColumn(name, unique, position, columnName);
+                    }
+                }
+                result.close();
+            } finally {
+                statement.close();
+            }
+            statement = connection.prepareStatement(FOREIGN_KEYS);
+            try {
+                statement.setString(1, schema.getName());
+                ResultSet result = statement.executeQuery();
+                while (result.next()) {
+                    String tableName = result.getString(1);
+                    String name = result.getString(2);
+                    int sequence = result.getInt(3);
+                    String columnName = result.getString(4);
+                    String referencedSchema = result.getString(5);
+                    String referencedTable = result.getString(6);
+                    String referencedColumn = result.getString(7);
+                    keysOf(keys, tableName).addForeignKeyColumn(name, sequence, columnName, catalogName, referencedSchema, referencedTable,
+                                                                referencedColumn);
+                }
+                result.close();
+            } finally {
+                statement.close();
+            }
+            return keys;
+        }
+
+        @Override
+        Map<String, TableStatistics> loadStatistics(Connection connection, String catalogName, String schemaName) throws SQLException {
+            if (catalogName != null && !catalogName.equals(connection.getCatalog())) {
+                return null; // the system catalog only describes the database of the connection
+            }
+            Map<String, TableStatistics> statistics = new HashMap<String, TableStatistics>();
+            PreparedStatement statement = connection.prepareStatement(STATISTICS);
+            try {
+                statement.setString(1, schemaName);
+                ResultSet result = statement.executeQuery();
+                while (result.next()) {
+                    String tableName = result.getString(1);
+                    long rowCount = result.getLong(2);
+                    long sizeInBytes = result.getLong(3);
+                    // tables never analyzed report -1 tuples, they are left out so they get counted
+                    if (rowCount >= 0) {
+                        statistics.put(tableName, new TableStatistics(rowCount, sizeInBytes, false));
+                    }
+                }
+                result.close();
+            } finally {
+                statement.close();
+            }
+            return statistics;
+        }
+    }
+
+    private static class SQLServerDialect extends GenericDialect {
+
+        /**
+         * The views are prefixed by the database they are read from, so the statistics of every catalog come from its own database
+         */
+        private static final String STATISTICS = "SELECT t.name, "
+                + "SUM(CASE WHEN p.index_id IN (0, 1) THEN p.row_count ELSE 0 END), "
+                + "SUM(p.used_page_count) * 8192 "
+                + "FROM %1$ssys.dm_db_partition_stats p "
+                + "JOIN %1$ssys.tables t ON t.object_id = p.object_id "
+                + "JOIN %1$ssys.schemas s ON s.schema_id = t.schema_id "
+                + "WHERE s.name = ? "
+                + "GROUP BY t.name";
+
+        @Override
+        Map<String, TableStatistics> loadStatistics(Connection connection, String catalogName, String schemaName) throws SQLException {
+            Map<String, TableStatistics> statistics = new HashMap<String, TableStatistics>();
+            String database = catalogName == null ? "" : "[" + catalogName.replace("]", "]]") + "].";
+            PreparedStatement statement = connection.prepareStatement(String.format(STATISTICS, database));
+            try {
+                statement.setString(1, schemaName);
+                ResultSet result = statement.executeQuery();
+                while (result.next()) {
+                    statistics.put(result.getString(1), new TableStatistics(result.getLong(2), result.getLong(3), false));
+                }
+                result.close();
+            } finally {
+                statement.close();
+            }
+            return statistics;
+        }
+    }
+
+    private static final Dialect GENERIC = new GenericDialect();
+    private static final Dialect POSTGRESQL = new PostgreSQLDialect();
+    private static final Dialect SQLSERVER = new SQLServerDialect();
+
+    static Dialect forProtocol(String protocol) {
+        String lowerCase = protocol == null ? "" : protocol.toLowerCase();
+        if (lowerCase.startsWith("jdbc:postgresql")) {
+            return POSTGRESQL;
+        }
+        if (lowerCase.startsWith("jdbc:sqlserver")) {
+            return SQLSERVER;
+        }
+        return GENERIC;
+    }
+
+    static TableKeys keysOf(Map<String, TableKeys> keys, String tableName) {
+        TableKeys tableKeys = keys.get(tableName);
+        if (tableKeys == null) {
+            tableKeys = new TableKeys();
+            keys.put(tableName, tableKeys);
+        }
+        return tableKeys;
+    }
+
+    /**
+     * Reads the primary keys, indexes and foreign keys of all tables of the given schema with a fixed number of queries
+     *
+     * @return The keys of each table, mapped by table name
+     */
+    abstract Map<String, TableKeys> loadKeys(Connection connection, Schema schema) throws SQLException;
+
+    /**
+     * Reads the catalog statistics of all tables of the given schema, which are cheap estimates maintained by the database itself
+     *
+     * @return The statistics of each table, mapped by table name, or <code>null</code> if this dialect can't read them from the catalog
+     */
+    abstract Map<String, TableStatistics> loadStatistics(Connection connection, String catalogName, String schemaName) throws SQLException;
+}
@@ -0,0 +1,88 @@
+package br.com.staroski.db;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * This class keeps the differences of a single table name between some schemas<br>
+ * It is the unit emitted by the streaming diffs, it holds only the tables with this name
+ * 
+ * @author Ricardo Artur Staroski
+ */
+public final class DiffEntry {
+
+    /**
+     * Name of the compared tables
+     */
+    public final String tableName;
+
+    /**
+     * The table of each compared schema, in the same order of the schemas, with <code>null</code> where the schema does not contain it
+     */
+    public final List<Table> tables;
+
+    /**
+     * The differences between the tables found, <code>null</code> if the table exists in only one schema
+     */
+    public final TableDiff tableDiff;
+
+    public final boolean hasDifferences;
+
+    /**
+     * The rename this table takes part in, <code>null</code> if none or if the diff does not detect renames of tables, like the merge of
+     * streams of tables
+     */
+    public final Rename rename;
+
+    DiffEntry(DiffFilter filter, String tableName, List<Table> tables) {
+        this(filter, tableName, tables, null, RenameDetector.DEFAULT_THRESHOLD);
+    }
+
+    DiffEntry(DiffFilter filter, String tableName, List<Table> tables, Rename rename, double renameThreshold) {
+        this.tableName = tableName;
+        this.rename = rename;
+        this.tables = Collections.unmodifiableList(tables);
+        List<Table> present = new LinkedList<Table>();
+        for (Table table : tables) {
+            if (table != null) {
+                present.add(table);
+            }
+        }
+        this.tableDiff = present.size() > 1
+                ? present.get(0).compareWith(filter, present.subList(1, present.size()))
+                : null;
+        if (tableDiff != null) {
+            tableDiff.setRenameThreshold(renameThreshold);
+        }
+        this.hasDifferences = present.size() != tables.size() || (tableDiff != null && tableDiff.hasDifferences);
+    }
+
+    public boolean allSchemasContains() {
+        for (Table table : tables) {
+            if (table == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean contains(int schemaIndex) {
+        return tables.get(schemaIndex) != null;
+    }
+
+    /**
+     * Classifies this table in the given schema the same way the schema sheet of the excel report does
+     */
+    public DiffStatus getStatus(int schemaIndex) {
+        if (!contains(schemaIndex)) {
+            return DiffStatus.MISSING;
+        }
+        return allSchemasContains() ? DiffStatus.EQUAL : DiffStatus.DIFFERENT;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s]", DiffEntry.class.getSimpleName(), tableName);
+    }
+}
@@ -1,26 +1,26 @@
 package br.com.staroski.db;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.LinkedList;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-
-import org.apache.poi.hssf.usermodel.HSSFWorkbook;
-import org.apache.poi.hssf.util.HSSFColor.HSSFColorPredefined;
-import org.apache.poi.ss.usermodel.BorderStyle;
-import org.apache.poi.ss.usermodel.Cell;
-import org.apache.poi.ss.usermodel.CellStyle;
-import org.apache.poi.ss.usermodel.FillPatternType;
-import org.apache.poi.ss.usermodel.Font;
-import org.apache.poi.ss.usermodel.HorizontalAlignment;
-import org.apache.poi.ss.usermodel.Row;
-import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
-import org.apache.poi.ss.util.CellRangeAddress;
-
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import br.com.staroski.IO;
 import br.com.staroski.UncheckedException;
 import br.com.staroski.Utils;
 
@@ -31,426 +31,757 @@ import br.com.staroski.Utils;
  */
 public final class DiffExporter {
 
-    private static final String MISSING = "MISSING";
+    /**
+     * Writes a finished workbook, a report may be written in several parts
+     */
+    private interface ReportWriter {
 
-    private static boolean areColumnsEquals(String columnName, List<Table> tables) {
-        Column column1 = tables.get(0).getColumn(columnName);
-        for (int i = 1; i < tables.size(); i++) {
-            Column columnN = tables.get(i).getColumn(columnName);
-            if (column1 == columnN) {
-                continue;
-            }
-            if (column1 == null) {
-                return false;
-            }
-            if (columnN == null) {
-                return false;
-            }
-            if (!column1.getType().equals(columnN.getType())) {
-                return false;
+        void write(ExcelReport report) throws IOException;
+    }
+
+    /**
+     * The rows of a group of schemas, they continue in a new sheet, with the same header rows, when the current sheet is full
+     */
+    private abstract static class SheetCursor {
+
+        private final ExcelReport report;
+        private final RowLayout layout;
+        private int sheetCount;
+        private int line;
+
+        ReportSheet sheet;
+
+        /**
+         * @param grouped <code>true</code> if the schemas were split in groups, so the sheet is not complete
+         */
+        SheetCursor(ExcelReport report, RowLayout layout, boolean grouped) {
+            this.report = report;
+            this.layout = layout;
+            if (grouped) {
+                report.setSharded();
             }
-            if (column1.getSize() != columnN.getSize()) {
-                return false;
+        }
+
+        /**
+         * Creates the sheet with its header rows
+         */
+        abstract ReportSheet createSheet(int sheetNumber);
+
+        int nextLine() {
+            if (sheet != null && line + 1 >= report.maxRows) {
+                report.setSharded();
+                newSheet();
             }
-            if (column1.getScale() != columnN.getScale()) {
-                return false;
+            report.addCells(layout.lastColumn + 1);
+            return ++line;
+        }
+
+        void skipLine() {
+            if (line + 1 < report.maxRows) {
+                line++;
             }
         }
-        return true;
+
+        /**
+         * Creates the first sheet, so it exists even without rows
+         */
+        void start() {
+            newSheet();
+        }
+
+        private void newSheet() {
+            sheet = createSheet(++sheetCount);
+            line = HEADER_ROWS - 1;
+        }
     }
 
+    private static final String MISSING = "MISSING";
+
+    private static final int HEADER_ROWS = 3;
+    private static final long MAX_CELLS_PER_FILE = 2000000;
+    private static final int MAX_SHEETS_PER_FILE = 1000; // creating a sheet checks all the others, and the format allows less than 32768
+
+    private static final int ESTIMATED_ROWS_PER_TABLE = 24;
+    private static final int ESTIMATED_BYTES_PER_CELL = 256;
+
     private static void debug(String format, Object... args) {
         System.out.printf(format, args);
     }
 
-    private CellStyle header;
-    private CellStyle green;
-    private CellStyle yellow;
-    private CellStyle red;
+    /**
+     * Closes the given entries if they hold resources, like the temporary files of a diff with a memory budget
+     */
+    private static void close(Iterator<DiffEntry> entries) {
+        if (entries instanceof Closeable) {
+            try {
+                ((Closeable) entries).close();
+            } catch (IOException e) {
+                throw UncheckedException.wrap(e);
+            }
+        }
+    }
 
-    private String[] schemaColumnNames = new String[] { "Type", "Name" };
-    private int[] schemaColumnWidths = new int[] { 25, 55 };
+    /**
+     * Blocks the caller thread until the given amount of the budget is available
+     *
+     * @return The amount reserved, to be released when the report ends
+     */
+    private static int reserve(MemoryBudget budget, long bytes) {
+        try {
+            return budget.reserve(bytes);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw UncheckedException.wrap(e);
+        }
+    }
+
+    /**
+     * Loads the tables, columns and keys of all schemas of the given diff on the caller thread, so the reports rendered by other threads
+     * never read them through the JDBC connection of their database, which may be shared by several reports<br>
+     * The columns of a diff with a memory budget are not kept by its schemas, its iterator is created here instead, which reads them
+     *
+     * @return The entries of the diff
+     */
+    private static Iterator<DiffEntry> preload(SchemaDiff diff) {
+        if (diff.getMemoryBudget() > 0) {
+            diff.getTableRenames();
+            return diff.iterator();
+        }
+        for (Schema schema : diff.schemas) {
+            for (Table table : schema.getTables()) {
+                table.getColumns();
+                table.getPrimaryKey();
+            }
+        }
+        return diff.iterator();
+    }
+
+    private String[] schemaColumnNames = new String[] { "Type", "Name", "Rows", "Size" };
+    private int[] schemaColumnWidths = new int[] { 25, 55, 15, 12 };
 
     private String[] tableColumnNames = new String[] { "Column", "Type", "Size", "Scale" };
+    private String[] tableKeyNames = new String[] { "Key", "Kind", "Columns" };
     private int[] tableColumnWidths = new int[] { 40, 20, 10, 10 };
 
-    public void exportExcel(File excel, SchemaDiff schemaDiff) {
+    /**
+     * Streams the given entries to the given writer, one at a time<br>
+     * The entries are closed at the end if they are {@link Closeable}, like a {@link MergeDiff}
+     *
+     * @param schemaNames The name of each compared schema, in the same order of {@link DiffEntry#tables}
+     */
+    public void export(DiffWriter writer, List<String> schemaNames, Iterator<DiffEntry> entries) {
         try {
-            exportExcel(new FileOutputStream(excel), schemaDiff);
-        } catch (FileNotFoundException fnfe) {
-            throw UncheckedException.wrap(fnfe);
+            writer.begin(schemaNames);
+            while (entries.hasNext()) {
+                writer.write(entries.next());
+            }
+            writer.end();
+        } finally {
+            close(entries);
         }
     }
 
-    public void exportExcel(OutputStream excel, SchemaDiff schemaDiff) {
-        try {
-            long start = System.currentTimeMillis();
-            debug("exporting excel report...%n");
-            Workbook workbook = new HSSFWorkbook();
+    public void exportCsv(OutputStream csv, SchemaDiff schemaDiff) {
+        export(new CsvDiffWriter(csv), schemaNames(schemaDiff), schemaDiff.iterator());
+    }
 
-            debug("creating sheet %s...", schemaDiff.schemas.get(0).getName());
-            exportSchemaDiff(schemaDiff, workbook);
-            debug("    done!%n");
+    /**
+     * The report is written to a temporary file in the same directory and then renamed, with {@link IO#writeAtomically(File, IO.Content)}, so
+     * the target never holds a partial report<br>
+     * A report too big for a single workbook continues in other files, named after the given one with the number of the part, like
+     * <code>report-2.xls</code>, each part has an index of its sheets
+     */
+    public void exportExcel(File excel, SchemaDiff schemaDiff) {
+        exportExcel(excel, schemaDiff, schemaDiff.iterator());
+    }
 
-            List<TableDiff> tableDiffs = new LinkedList<TableDiff>();
-            for (String tableName : schemaDiff.tableNames) {
-                debug("comparing table %s...", tableName);
-                TableDiff tableDiff = schemaDiff.getTableDiffBetweenAllSchemas(tableName);
-                debug("    done!%n");
-                if (tableDiff != null) {
-                    tableDiffs.add(tableDiff);
+    /**
+     * Exports many reports at the same time, each one to its own file
+     *
+     * @param reports The differences to export, by target file, the same schema may be in several reports, like a reference schema
+     *            compared with each tenant, the schemas of connected databases are loaded on the caller thread before the reports start,
+     *            because a JDBC connection is not shared between threads, the diffs with a memory budget are read by their iterators
+     *            instead, which keep up to their budgets until the reports end
+     * @param maxThreads Maximum number of reports rendered at the same time
+     * @param memoryBudget Maximum number of bytes the reports being loaded or rendered may use together, estimated from their number of
+     *            tables and their own memory budgets, a report is only loaded, on the caller thread, when its estimate fits in what is left
+     * @throws RuntimeException The failure of the first report that failed, the other failures are added as suppressed, all reports are
+     *             tried anyway
+     */
+    public void exportExcel(Map<File, SchemaDiff> reports, int maxThreads, long memoryBudget) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be at least 1: " + maxThreads);
+        }
+        final MemoryBudget budget = new MemoryBudget(memoryBudget);
+        ExecutorService executor = Executors.newFixedThreadPool(maxThreads, new DaemonThreadFactory("excel-export"));
+        try {
+            Map<File, Future<?>> exports = new LinkedHashMap<File, Future<?>>();
+            for (Entry<File, SchemaDiff> report : reports.entrySet()) {
+                final File excel = report.getKey();
+                final SchemaDiff schemaDiff = report.getValue();
+                // reserved before the preload, which already takes memory, so the reports waiting for the budget are not loaded yet
+                final int reserved = reserve(budget, estimateExcelSize(schemaDiff) + schemaDiff.getMemoryBudget());
+                final Iterator<DiffEntry> entries;
+                try {
+                    entries = preload(schemaDiff);
+                } catch (RuntimeException e) {
+                    budget.release(reserved);
+                    throw e;
                 }
+                exports.put(excel, executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call() {
+                        try {
+                            exportExcel(excel, schemaDiff, entries);
+                        } finally {
+                            budget.release(reserved);
+                        }
+                        return null;
+                    }
+                }));
             }
-            for (TableDiff tableDiff : tableDiffs) {
-                if (tableDiff.hasDifferences) {
-                    debug("creating sheet %s...", tableDiff.tables.get(0).getName());
-                    exportTableDiff(tableDiff, workbook);
-                    debug("    done!%n");
+            RuntimeException failure = null;
+            for (Entry<File, Future<?>> export : exports.entrySet()) {
+                try {
+                    export.getValue().get();
+                } catch (ExecutionException e) {
+                    RuntimeException cause = UncheckedException.wrap(e.getCause());
+                    if (failure == null) {
+                        failure = cause;
+                    } else {
+                        failure.addSuppressed(cause);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw UncheckedException.wrap(e);
                 }
             }
-            workbook.write(excel);
-            workbook.close();
-            debug("excel report exported!%n");
-
-            long elapsed = System.currentTimeMillis() - start;
-            debug("elapsed time: %s%n", Utils.formatInterval(elapsed));
-        } catch (IOException ioe) {
-            throw UncheckedException.wrap(ioe);
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            executor.shutdownNow();
         }
     }
 
+    /**
+     * All the report is written to the given stream as a single workbook, the sheets that exceed the limits of the format are split in
+     * several sheets, listed by an index<br>
+     * A single workbook cannot have more than 32767 sheets, use {@link #exportExcel(File, SchemaDiff)} for reports with more tables than
+     * that
+     */
+    public void exportExcel(final OutputStream excel, SchemaDiff schemaDiff) {
+        exportExcel(schemaDiff, schemaDiff.iterator(), Long.MAX_VALUE, Integer.MAX_VALUE, new ReportWriter() {
+
+            @Override
+            public void write(ExcelReport report) throws IOException {
+                report.write(excel);
+            }
+        });
+    }
+
     public void exportExcel(String excel, SchemaDiff schemaDiff) {
         exportExcel(new File(excel), schemaDiff);
     }
 
-    private CellStyle cellStyleGreen(Workbook workbook) {
-        if (green == null) {
-            green = workbook.createCellStyle();
-            green.setFillForegroundColor(HSSFColorPredefined.LIGHT_GREEN.getIndex());
-            green.setFillPattern(FillPatternType.SOLID_FOREGROUND);
+    public void exportJson(OutputStream json, SchemaDiff schemaDiff) {
+        export(new JsonDiffWriter(json), schemaNames(schemaDiff), schemaDiff.iterator());
+    }
 
-            green.setBorderBottom(BorderStyle.THIN);
-            green.setBorderLeft(BorderStyle.THIN);
-            green.setBorderRight(BorderStyle.THIN);
-            green.setBorderTop(BorderStyle.THIN);
-        }
-        return green;
+    public void exportText(OutputStream text, SchemaDiff schemaDiff) {
+        export(new TextDiffWriter(text), schemaNames(schemaDiff), schemaDiff.iterator());
     }
 
-    private CellStyle cellStyleHeader(Workbook workbook) {
-        if (header == null) {
-            header = workbook.createCellStyle();
-            header.setFillForegroundColor(HSSFColorPredefined.GREY_25_PERCENT.getIndex());
-            header.setFillPattern(FillPatternType.SOLID_FOREGROUND);
-            header.setAlignment(HorizontalAlignment.CENTER);
+    /**
+     * Exports the report as an Office Open XML workbook (xlsx), with the same sheets of {@link #exportExcel(File, SchemaDiff)}, in a single
+     * file, a sheet is only split beyond the limits of the xlsx format, 1048576 rows and 16384 columns<br>
+     * The sheets of the tables are rendered at the same time by <code>maxThreads</code> threads, each row written straight to a temporary
+     * file, and the workbook is assembled from them at the end, so the export time goes down with the number of cores<br>
+     * The report is written to a temporary file in the same directory and then renamed, with {@link IO#writeAtomically(File, IO.Content)}, so
+     * the target never holds a partial report
+     */
+    public void exportXlsx(File xlsx, final SchemaDiff schemaDiff, final int maxThreads) {
+        IO.writeAtomically(xlsx, new IO.Content() {
+
+            @Override
+            public void writeTo(OutputStream out) {
+                exportXlsx(out, schemaDiff, maxThreads);
+            }
+        });
+    }
 
-            header.setBorderBottom(BorderStyle.THIN);
-            header.setBorderLeft(BorderStyle.THIN);
-            header.setBorderRight(BorderStyle.THIN);
-            header.setBorderTop(BorderStyle.THIN);
+    /**
+     * @see #exportXlsx(File, SchemaDiff, int)
+     */
+    public void exportXlsx(OutputStream xlsx, final SchemaDiff schemaDiff, int maxThreads) {
+        if (maxThreads < 1) {
+            throw new IllegalArgumentException("maxThreads must be at least 1: " + maxThreads);
+        }
+        long start = System.currentTimeMillis();
+        debug("exporting xlsx report...%n");
+        // the queue is bounded, so the rendering does not fall behind the comparison and the comparisons waiting are few
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(maxThreads * 4), new DaemonThreadFactory("xlsx-export"), new ThreadPoolExecutor.CallerRunsPolicy());
+        File spillDirectory = null;
+        Iterator<DiffEntry> entries = null;
+        try {
+            spillDirectory = Files.createTempDirectory("xlsx-report").toFile();
+            final File directory = spillDirectory;
+            // read here, before the sheets start, the tables of a connected database must not be loaded by several threads
+            schemaDiff.getTableRenames();
+            entries = schemaDiff.iterator();
+            List<Future<ExcelReport>> sheets = new ArrayList<Future<ExcelReport>>();
+            sheets.add(executor.submit(new Callable<ExcelReport>() {
+
+                @Override
+                public ExcelReport call() throws IOException {
+                    ExcelReport report = new ExcelReport(directory);
+                    try {
+                        exportSchemaDiff(schemaDiff, report);
+                    } finally {
+                        report.closeSheets();
+                    }
+                    return report;
+                }
+            }));
+            while (entries.hasNext()) {
+                final TableDiff tableDiff = entries.next().tableDiff;
+                if (tableDiff != null && tableDiff.hasDifferences) {
+                    for (Table table : tableDiff.tables) {
+                        // loaded here, the tables of a connected database must not be loaded by several threads
+                        table.getColumns();
+                        table.getPrimaryKey();
+                    }
+                    sheets.add(executor.submit(new Callable<ExcelReport>() {
+
+                        @Override
+                        public ExcelReport call() throws IOException {
+                            ExcelReport report = new ExcelReport(directory);
+                            try {
+                                exportTableDiff(tableDiff, report);
+                            } finally {
+                                report.closeSheets();
+                            }
+                            return report;
+                        }
+                    }));
+                }
+            }
+            XlsxPackage xlsxPackage = new XlsxPackage();
+            boolean sharded = false;
+            for (Future<ExcelReport> sheet : sheets) {
+                ExcelReport report = waitFor(sheet);
+                sharded |= report.isSharded();
+                for (int i = 0; i < report.getSheetCount(); i++) {
+                    xlsxPackage.addSheet(report.getSheetName(i), report.getDescription(i), report.getPart(i));
+                }
+            }
+            debug("assembling %d sheets...", xlsxPackage.getSheetCount());
+            xlsxPackage.write(xlsx, sharded ? "Schema " + schemaDiff.schemas.get(0).getName() : null);
+            debug("    done!%n");
+            debug("xlsx report exported!%n");
 
-            Font font = workbook.createFont();
-            font.setBold(true);
-            header.setFont(font);
+            long elapsed = System.currentTimeMillis() - start;
+            debug("elapsed time: %s%n", Utils.formatInterval(elapsed));
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        } finally {
+            executor.shutdownNow();
+            if (entries != null) {
+                close(entries);
+            }
+            if (spillDirectory != null) {
+                File[] parts = spillDirectory.listFiles();
+                if (parts != null) {
+                    for (File part : parts) {
+                        part.delete();
+                    }
+                }
+                spillDirectory.delete();
+            }
         }
-        return header;
     }
 
-    private CellStyle cellStyleRed(Workbook workbook) {
-        if (red == null) {
-            red = workbook.createCellStyle();
-            red.setFillForegroundColor(HSSFColorPredefined.CORAL.getIndex());
-            red.setFillPattern(FillPatternType.SOLID_FOREGROUND);
-            red.setAlignment(HorizontalAlignment.CENTER);
-
-            red.setBorderBottom(BorderStyle.THIN);
-            red.setBorderLeft(BorderStyle.THIN);
-            red.setBorderRight(BorderStyle.THIN);
-            red.setBorderTop(BorderStyle.THIN);
+    private void createSchemaCellForTable(SchemaDiff diff, RowLayout layout, int first, ReportSheet sheet, int line, String tableName) {
+        boolean allSchemasContains = diff.allSchemasContains(tableName);
+        Rename rename = diff.getTableRename(tableName);
+        for (int i = 0; i < layout.blockCount; i++) {
+            Schema schema = diff.schemas.get(first + i);
+            Table table = schema.getTable(tableName);
+            if (table == null) {
+                boolean renamed = rename != null && schema.contains(rename.otherName(tableName));
+                String missing = renamed ? MISSING + " - " + rename.describe(tableName) : MISSING;
+                layout.writeBlock(sheet, line, i, ExcelStyles.MISSING_STYLE, missing, MISSING);
+                layout.mergeBlock(sheet, line, i);
+                continue;
+            }
+            Long rowCount = null;
+            String size = null;
+            TableStatistics statistics = table.getStatistics();
+            if (statistics != null) {
+                if (statistics.getRowCount() != TableStatistics.UNKNOWN) {
+                    rowCount = statistics.getRowCount();
+                }
+                if (statistics.getSizeInBytes() != TableStatistics.UNKNOWN) {
+                    size = Utils.formatSize(statistics.getSizeInBytes());
+                }
+            }
+            int style = allSchemasContains ? ExcelStyles.EQUAL_STYLE : ExcelStyles.DIFFERENT_STYLE;
+            layout.writeBlock(sheet, line, i, style, table.getType(), table.getName(), rowCount, size);
         }
-        return red;
     }
 
-    private CellStyle cellStyleYellow(Workbook workbook) {
-        if (yellow == null) {
-            yellow = workbook.createCellStyle();
-            yellow.setFillForegroundColor(HSSFColorPredefined.LIGHT_YELLOW.getIndex());
-            yellow.setFillPattern(FillPatternType.SOLID_FOREGROUND);
+    private void createSchemaHeader(RowLayout layout, ReportSheet sheet, int line, SchemaDiff diff) {
+        for (int i = 0; i < layout.blockCount; i++) {
+            layout.writeBlock(sheet, line, i, ExcelStyles.HEADER_STYLE, i == 0 ? "Schema " + diff.schemas.get(0).getName() : null);
+        }
+        layout.mergeRow(sheet, line);
+    }
 
-            yellow.setBorderBottom(BorderStyle.THIN);
-            yellow.setBorderLeft(BorderStyle.THIN);
-            yellow.setBorderRight(BorderStyle.THIN);
-            yellow.setBorderTop(BorderStyle.THIN);
+    private void createSchemaHeaderForDatabase(RowLayout layout, int first, ReportSheet sheet, int line, SchemaDiff diff) {
+        for (int i = 0; i < layout.blockCount; i++) {
+            layout.writeBlock(sheet, line, i, ExcelStyles.HEADER_STYLE, diff.schemas.get(first + i).getCatalog().getDatabase().getAlias());
+            layout.mergeBlock(sheet, line, i);
         }
-        return yellow;
     }
 
-    private void createSchemaCellForTable(SchemaDiff diff, Workbook workbook, Sheet sheet, int line, String tableName) {
-        CellStyle greenStyle = cellStyleGreen(workbook);
-        CellStyle yellowStyle = cellStyleYellow(workbook);
-        CellStyle redStyle = cellStyleRed(workbook);
+    private void createSchemaHeaderForTables(RowLayout layout, ReportSheet sheet, int line) {
+        layout.writeRepeated(sheet, line, ExcelStyles.HEADER_STYLE, schemaColumnNames);
+    }
 
-        Row row = sheet.createRow(line);
+    private ReportSheet createSchemaSheet(SchemaDiff diff, ExcelReport report, RowLayout layout, int first, int sheetNumber) {
+        String name = diff.schemas.get(0).getName();
+        ReportSheet sheet = report.createSheet(name, "Schema " + name + describe(diff.schemas.size(), layout, first, sheetNumber));
+        sheet.freezeRows(HEADER_ROWS);
+        layout.setColumnWidths(sheet, schemaColumnWidths);
 
-        int rangeStart = 0;
-        int rangeEnd = 0;
-        int columnOffset = -1;
-        for (Schema schema : diff.schemas) {
-            Cell typeCell = row.createCell(++columnOffset);
-            Cell tableCell = row.createCell(++columnOffset);
-            rangeEnd = columnOffset;
-            Table table = schema.getTable(tableName);
-            final CellStyle style;
-            final String stringType;
-            final String stringName;
-            if (diff.allSchemasContains(tableName)) {
-                style = greenStyle;
-                stringType = table.getType();
-                stringName = table.getName();
-            } else if (schema.contains(tableName)) {
-                style = yellowStyle;
-                stringType = table.getType();
-                stringName = table.getName();
-            } else {
-                style = redStyle;
-                stringType = MISSING;
-                stringName = MISSING;
-                sheet.addMergedRegion(new CellRangeAddress(line, line, rangeStart, rangeEnd));
+        int line = -1;
+        createSchemaHeader(layout, sheet, ++line, diff);
+        createSchemaHeaderForDatabase(layout, first, sheet, ++line, diff);
+        createSchemaHeaderForTables(layout, sheet, ++line);
+        return sheet;
+    }
+
+    private void createTableCellForColumn(TableDiff diff, RowLayout layout, int first, ReportSheet sheet, int line, String columnName) {
+        for (int i = 0; i < layout.blockCount; i++) {
+            Table table = diff.tables.get(first + i);
+            DiffStatus status = diff.getColumnStatus(table, columnName);
+            if (status == DiffStatus.MISSING) {
+                Rename rename = diff.getColumnRename(columnName);
+                boolean renamed = rename != null && table.contains(rename.otherName(columnName));
+                String missing = renamed ? MISSING + " - " + rename.describe(columnName) : MISSING;
+                layout.writeBlock(sheet, line, i, ExcelStyles.MISSING_STYLE, missing, MISSING);
+                layout.mergeBlock(sheet, line, i);
+                continue;
             }
-            rangeStart = rangeEnd + 1;
-            typeCell.setCellStyle(style);
-            tableCell.setCellStyle(style);
-            typeCell.setCellValue(stringType);
-            tableCell.setCellValue(stringName);
+            Column column = table.getColumn(columnName);
+            Integer size = column.getSize() > 0 ? column.getSize() : null;
+            Integer scale = column.getScale() > 0 ? column.getScale() : null;
+            layout.writeBlock(sheet, line, i, ExcelStyles.of(status), column.getName(), column.getType(), size, scale);
         }
     }
 
-    private void createSchemaHeader(Workbook workbook, Sheet sheet, int line, SchemaDiff diff) {
-        CellStyle headerStyle = cellStyleHeader(workbook);
-        Row row = sheet.createRow(line);
-        int columnOffset = -1;
-        for (Schema schema : diff.schemas) {
-            Cell typeCell = row.createCell(++columnOffset);
-            Cell tableCell = row.createCell(++columnOffset);
-            typeCell.setCellStyle(headerStyle);
-            tableCell.setCellStyle(headerStyle);
-            typeCell.setCellValue("Schema " + schema.getName());
+    private void createTableCellForForeignKey(TableDiff diff, RowLayout layout, int first, ReportSheet sheet, int line, String foreignKeyName) {
+        int count = layout.blockCount;
+        String[] names = new String[count];
+        String[] kinds = new String[count];
+        String[] definitions = new String[count];
+        for (int i = 0; i < count; i++) {
+            ForeignKey foreignKey = diff.tables.get(first + i).getForeignKey(foreignKeyName);
+            if (foreignKey != null) {
+                names[i] = foreignKey.getName();
+                kinds[i] = "FOREIGN KEY";
+                definitions[i] = join(foreignKey.getColumnNames()) + " -> " + foreignKey.getReferencedTable() + join(foreignKey.getReferencedColumnNames());
+            }
         }
-        sheet.addMergedRegion(new CellRangeAddress(line, line, 0, columnOffset));
+        createTableCellsForKey(layout, sheet, line, diff.areForeignKeysEquals(foreignKeyName), names, kinds, definitions);
     }
 
-    private void createSchemaHeaderForDatabase(Workbook workbook, Sheet sheet, int line, SchemaDiff diff) {
-        CellStyle headerStyle = cellStyleHeader(workbook);
-        Row row = sheet.createRow(line);
-
-        int rangeStart = 0;
-        int rangeEnd = 0;
-        int columnOffset = -1;
-        for (Schema schema : diff.schemas) {
-            Cell typeCell = row.createCell(++columnOffset);
-            Cell tableCell = row.createCell(++columnOffset);
-            typeCell.setCellStyle(headerStyle);
-            tableCell.setCellStyle(headerStyle);
-            typeCell.setCellValue(schema.getCatalog().getDatabase().getAlias());
-            rangeEnd = columnOffset;
-            sheet.addMergedRegion(new CellRangeAddress(line, line, rangeStart, rangeEnd));
-            rangeStart = rangeEnd + 1;
-        }
-    }
-
-    private void createSchemaHeaderForTables(Workbook workbook, Sheet sheet, int line, SchemaDiff diff) {
-        CellStyle headerStyle = cellStyleHeader(workbook);
-        Row row = sheet.createRow(line);
-        int columnOffset = 0;
-        for (int i = 0, count = diff.schemas.size(); i < count; i++) {
-            Cell typeCell = row.createCell(columnOffset++);
-            Cell tableCell = row.createCell(columnOffset++);
-            typeCell.setCellStyle(headerStyle);
-            tableCell.setCellStyle(headerStyle);
-            typeCell.setCellValue(schemaColumnNames[0]);
-            tableCell.setCellValue(schemaColumnNames[1]);
-        }
-    }
-
-    private Sheet createSchemaSheet(SchemaDiff diff, Workbook workbook) {
-        Sheet sheet = workbook.createSheet(diff.schemas.get(0).getName());
-        sheet.createFreezePane(0, 3);
-        int columnOffset = -1;
-        for (int i = 0, count = diff.schemas.size(); i < count; i++) {
-            for (int col = 0; col < schemaColumnWidths.length; col++) {
-                sheet.setColumnWidth(++columnOffset, schemaColumnWidths[col] * 256);
+    private void createTableCellForIndex(TableDiff diff, RowLayout layout, int first, ReportSheet sheet, int line, String indexName) {
+        int count = layout.blockCount;
+        String[] names = new String[count];
+        String[] kinds = new String[count];
+        String[] definitions = new String[count];
+        for (int i = 0; i < count; i++) {
+            Index index = diff.tables.get(first + i).getIndex(indexName);
+            if (index != null) {
+                names[i] = index.getName();
+                kinds[i] = index.isUnique() ? "UNIQUE" : "INDEX";
+                definitions[i] = join(index.getColumnNames());
             }
         }
-        return sheet;
+        createTableCellsForKey(layout, sheet, line, diff.areIndexesEquals(indexName), names, kinds, definitions);
     }
 
-    private void createTableCellForColumn(TableDiff diff, Workbook workbook, Sheet sheet, int line, String columnName) {
-        CellStyle greenStyle = cellStyleGreen(workbook);
-        CellStyle yellowStyle = cellStyleYellow(workbook);
-        CellStyle redStyle = cellStyleRed(workbook);
-
-        Row row = sheet.createRow(line);
+    private void createTableCellForPrimaryKey(TableDiff diff, RowLayout layout, int first, ReportSheet sheet, int line) {
+        int count = layout.blockCount;
+        String[] names = new String[count];
+        String[] kinds = new String[count];
+        String[] definitions = new String[count];
+        for (int i = 0; i < count; i++) {
+            Index primaryKey = diff.tables.get(first + i).getPrimaryKey();
+            if (primaryKey != null) {
+                names[i] = primaryKey.getName() == null ? "" : primaryKey.getName();
+                kinds[i] = "PRIMARY KEY";
+                definitions[i] = join(primaryKey.getColumnNames());
+            }
+        }
+        createTableCellsForKey(layout, sheet, line, diff.arePrimaryKeysEquals(), names, kinds, definitions);
+    }
 
-        int rangeStart = 0;
-        int rangeEnd = 0;
-        int columnOffset = -1;
-        for (Table table : diff.tables) {
-            Cell columnCell = row.createCell(++columnOffset);
-            Cell typeCell = row.createCell(++columnOffset);
-            Cell lengthCell = row.createCell(++columnOffset);
-            Cell scaleCell = row.createCell(++columnOffset);
-            rangeEnd = columnOffset;
-            CellStyle style;
-            String stringColumn;
-            String stringType;
-            int length;
-            int scale;
-
-            if (areColumnsEquals(columnName, diff.tables)) {
-                style = greenStyle;
-                Column column = table.getColumn(columnName);
-                stringColumn = column.getName();
-                stringType = column.getType();
-                length = column.getSize();
-                scale = column.getScale();
-            } else if (table.contains(columnName)) {
-                style = yellowStyle;
-                Column column = table.getColumn(columnName);
-                stringColumn = column.getName();
-                stringType = column.getType();
-                length = column.getSize();
-                scale = column.getScale();
-            } else {
-                style = redStyle;
-                stringColumn = MISSING;
-                stringType = MISSING;
-                length = 0;
-                scale = 0;
-                sheet.addMergedRegion(new CellRangeAddress(line, line, rangeStart, rangeEnd));
+    private void createTableCellsForKey(RowLayout layout, ReportSheet sheet, int line, boolean equals, String[] names, String[] kinds,
+            String[] definitions) {
+        for (int i = 0; i < layout.blockCount; i++) {
+            if (names[i] == null) {
+                layout.writeBlock(sheet, line, i, ExcelStyles.MISSING_STYLE, MISSING, MISSING);
+                layout.mergeBlock(sheet, line, i);
+                continue;
             }
-            rangeStart = rangeEnd + 1;
+            int style = equals ? ExcelStyles.EQUAL_STYLE : ExcelStyles.DIFFERENT_STYLE;
+            layout.writeBlock(sheet, line, i, style, names[i], kinds[i], definitions[i]);
+            layout.mergeBlockTail(sheet, line, i, 2);
+        }
+    }
+
+    private void createTableHeader(RowLayout layout, int first, TableDiff diff, ReportSheet sheet, int line) {
+        for (int i = 0; i < layout.blockCount; i++) {
+            Table table = diff.tables.get(first + i);
+            layout.writeBlock(sheet, line, i, ExcelStyles.HEADER_STYLE, Utils.firsLetterUppercase(table.getType()) + " " + table.getName());
+        }
+        layout.mergeRow(sheet, line);
+    }
 
-            columnCell.setCellStyle(style);
-            typeCell.setCellStyle(style);
-            lengthCell.setCellStyle(style);
-            scaleCell.setCellStyle(style);
+    private void createTableHeaderForColumns(RowLayout layout, ReportSheet sheet, int line) {
+        layout.writeRepeated(sheet, line, ExcelStyles.HEADER_STYLE, tableColumnNames);
+    }
 
-            columnCell.setCellValue(stringColumn);
-            typeCell.setCellValue(stringType);
-            if (length > 0) {
-                lengthCell.setCellValue(length);
-            }
-            if (scale > 0) {
-                scaleCell.setCellValue(scale);
-            }
+    private void createTableHeaderForKeys(RowLayout layout, ReportSheet sheet, int line) {
+        layout.writeRepeated(sheet, line, ExcelStyles.HEADER_STYLE, tableKeyNames);
+        for (int i = 0; i < layout.blockCount; i++) {
+            layout.mergeBlockTail(sheet, line, i, 2);
         }
     }
 
-    private void createTableHeader(Workbook workbook, TableDiff diff, Sheet sheet, int line) {
-        CellStyle headerStyle = cellStyleHeader(workbook);
-        Row row = sheet.createRow(line);
+    private void createTableHeaderForDatabase(RowLayout layout, int first, TableDiff diff, ReportSheet sheet, int line) {
+        for (int i = 0; i < layout.blockCount; i++) {
+            layout.writeBlock(sheet, line, i, ExcelStyles.HEADER_STYLE, diff.tables.get(first + i).getSchema().getCatalog().getDatabase().getAlias());
+            layout.mergeBlock(sheet, line, i);
+        }
+    }
 
-        int columnOffset = -1;
-        for (Table table : diff.tables) {
-            Cell columnCell = row.createCell(++columnOffset);
-            Cell typeCell = row.createCell(++columnOffset);
-            Cell lengthCell = row.createCell(++columnOffset);
-            Cell scaleCell = row.createCell(++columnOffset);
+    private ReportSheet createTableSheet(TableDiff diff, ExcelReport report, RowLayout layout, int first, int sheetNumber) {
+        Table table = diff.tables.get(0);
+        String description = Utils.firsLetterUppercase(table.getType()) + " " + table.getName();
+        ReportSheet sheet = report.createSheet(table.getName(), description + describe(diff.tables.size(), layout, first, sheetNumber));
+        sheet.freezeRows(HEADER_ROWS);
+        layout.setColumnWidths(sheet, tableColumnWidths);
 
-            columnCell.setCellStyle(headerStyle);
-            typeCell.setCellStyle(headerStyle);
-            lengthCell.setCellStyle(headerStyle);
-            scaleCell.setCellStyle(headerStyle);
+        int line = -1;
+        createTableHeader(layout, first, diff, sheet, ++line);
+        createTableHeaderForDatabase(layout, first, diff, sheet, ++line);
+        createTableHeaderForColumns(layout, sheet, ++line);
+        return sheet;
+    }
 
-            columnCell.setCellValue(Utils.firsLetterUppercase(table.getType()) + " " + table.getName());
+    /**
+     * Describes which schemas and which part of the rows a sheet contains, when the sheet does not contain all of them
+     */
+    private String describe(int schemaCount, RowLayout layout, int first, int sheetNumber) {
+        StringBuilder description = new StringBuilder();
+        if (layout.blockCount < schemaCount) {
+            description.append(String.format(", schemas %d to %d of %d", first + 1, first + layout.blockCount, schemaCount));
         }
-        sheet.addMergedRegion(new CellRangeAddress(line, line, 0, columnOffset));
+        if (sheetNumber > 1) {
+            description.append(", continuation ").append(sheetNumber - 1);
+        }
+        return description.toString();
     }
 
-    private void createTableHeaderForColumns(Workbook workbook, TableDiff diff, Sheet sheet, int line) {
-        CellStyle headerStyle = cellStyleHeader(workbook);
-        Row row = sheet.createRow(line);
+    /**
+     * A rough estimate of the memory used by a report: a few hundred bytes per cell and some rows for each table sheet, only one part of a
+     * report is in memory at a time
+     */
+    private long estimateExcelSize(SchemaDiff diff) {
+        long cellsPerRow = (long) diff.schemas.size() * tableColumnNames.length;
+        long rows = diff.tableNames.size() * (1L + ESTIMATED_ROWS_PER_TABLE);
+        return Math.min(rows * cellsPerRow, MAX_CELLS_PER_FILE) * ESTIMATED_BYTES_PER_CELL; // bigger reports continue in other files
+    }
 
-        int columnOffset = -1;
-        for (int i = 0, count = diff.tables.size(); i < count; i++) {
-            Cell columnCell = row.createCell(++columnOffset);
-            Cell typeCell = row.createCell(++columnOffset);
-            Cell lengthCell = row.createCell(++columnOffset);
-            Cell scaleCell = row.createCell(++columnOffset);
+    private void exportExcel(final File excel, SchemaDiff schemaDiff, Iterator<DiffEntry> entries) {
+        exportExcel(schemaDiff, entries, MAX_CELLS_PER_FILE, MAX_SHEETS_PER_FILE, new ReportWriter() {
 
-            columnCell.setCellStyle(headerStyle);
-            typeCell.setCellStyle(headerStyle);
-            lengthCell.setCellStyle(headerStyle);
-            scaleCell.setCellStyle(headerStyle);
+            @Override
+            public void write(final ExcelReport report) {
+                IO.writeAtomically(partFile(excel, report.part), new IO.Content() {
 
-            columnCell.setCellValue(tableColumnNames[0]);
-            typeCell.setCellValue(tableColumnNames[1]);
-            lengthCell.setCellValue(tableColumnNames[2]);
-            scaleCell.setCellValue(tableColumnNames[3]);
-        }
+                    @Override
+                    public void writeTo(OutputStream out) throws IOException {
+                        report.write(out);
+                    }
+                });
+            }
+        });
     }
 
-    private void createTableHeaderForDatabase(Workbook workbook, TableDiff diff, Sheet sheet, int line) {
-        CellStyle headerStyle = cellStyleHeader(workbook);
-        Row row = sheet.createRow(line);
+    private void exportExcel(SchemaDiff schemaDiff, Iterator<DiffEntry> entries, long maxCellsPerFile, int maxSheetsPerFile,
+            ReportWriter writer) {
+        try {
+            long start = System.currentTimeMillis();
+            debug("exporting excel report...%n");
+            ExcelReport report = new ExcelReport(1);
 
-        int rangeStart = 0;
-        int rangeEnd = 0;
-        int columnOffset = -1;
-        for (Table table : diff.tables) {
-            Cell columnCell = row.createCell(++columnOffset);
-            Cell typeCell = row.createCell(++columnOffset);
-            Cell lengthCell = row.createCell(++columnOffset);
-            Cell scaleCell = row.createCell(++columnOffset);
+            debug("creating sheet %s...", schemaDiff.schemas.get(0).getName());
+            exportSchemaDiff(schemaDiff, report);
+            debug("    done!%n");
 
-            columnCell.setCellStyle(headerStyle);
-            typeCell.setCellStyle(headerStyle);
-            lengthCell.setCellStyle(headerStyle);
-            scaleCell.setCellStyle(headerStyle);
+            while (entries.hasNext()) {
+                DiffEntry entry = entries.next();
+                TableDiff tableDiff = entry.tableDiff;
+                if (tableDiff != null && tableDiff.hasDifferences) {
+                    if (report.getCellCount() >= maxCellsPerFile || report.getSheetCount() >= maxSheetsPerFile) {
+                        report.setSharded();
+                        finish(schemaDiff, report, true, writer);
+                        report = new ExcelReport(report.part + 1);
+                        report.setSharded();
+                    }
+                    debug("creating sheet %s...", entry.tableName);
+                    exportTableDiff(tableDiff, report);
+                    debug("    done!%n");
+                }
+            }
+            finish(schemaDiff, report, report.part > 1, writer);
+            debug("excel report exported!%n");
 
-            columnCell.setCellValue(table.getSchema().getCatalog().getDatabase().getAlias());
+            long elapsed = System.currentTimeMillis() - start;
+            debug("elapsed time: %s%n", Utils.formatInterval(elapsed));
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        } finally {
+            close(entries);
+        }
+    }
 
-            rangeEnd = columnOffset;
-            sheet.addMergedRegion(new CellRangeAddress(line, line, rangeStart, rangeEnd));
-            rangeStart = rangeEnd + 1;
+    private void exportSchemaDiff(final SchemaDiff diff, final ExcelReport report) {
+        int schemaCount = diff.schemas.size();
+        int maxSchemasPerSheet = report.maxColumns / schemaColumnNames.length;
+        for (int first = 0; first < schemaCount; first += maxSchemasPerSheet) {
+            final int groupFirst = first;
+            final RowLayout layout = RowLayout.of(Math.min(maxSchemasPerSheet, schemaCount - first), schemaColumnNames.length);
+            SheetCursor cursor = new SheetCursor(report, layout, layout.blockCount < schemaCount) {
+
+                @Override
+                ReportSheet createSheet(int sheetNumber) {
+                    return createSchemaSheet(diff, report, layout, groupFirst, sheetNumber);
+                }
+            };
+            cursor.start();
+            for (String tableName : diff.tableNames) {
+                int line = cursor.nextLine();
+                createSchemaCellForTable(diff, layout, groupFirst, cursor.sheet, line, tableName);
+            }
         }
     }
 
-    private Sheet createTableSheet(TableDiff diff, Workbook workbook) {
-        Sheet sheet = workbook.createSheet(diff.tables.get(0).getName());
-        sheet.createFreezePane(0, 3);
-        int columnOffset = -1;
-        for (int i = 0, count = diff.tables.size(); i < count; i++) {
-            for (int col = 0; col < tableColumnWidths.length; col++) {
-                sheet.setColumnWidth(++columnOffset, tableColumnWidths[col] * 256);
+    private void exportTableDiff(final TableDiff diff, final ExcelReport report) {
+        int tableCount = diff.tables.size();
+        int maxTablesPerSheet = report.maxColumns / tableColumnNames.length;
+        for (int first = 0; first < tableCount; first += maxTablesPerSheet) {
+            final int groupFirst = first;
+            final RowLayout layout = RowLayout.of(Math.min(maxTablesPerSheet, tableCount - first), tableColumnNames.length);
+            SheetCursor cursor = new SheetCursor(report, layout, layout.blockCount < tableCount) {
+
+                @Override
+                ReportSheet createSheet(int sheetNumber) {
+                    return createTableSheet(diff, report, layout, groupFirst, sheetNumber);
+                }
+            };
+            cursor.start();
+            for (String columnName : diff.columnNames) {
+                int line = cursor.nextLine();
+                createTableCellForColumn(diff, layout, groupFirst, cursor.sheet, line, columnName);
+            }
+
+            if (!hasKeys(diff)) {
+                continue;
+            }
+            cursor.skipLine(); // blank line between columns and keys
+            int line = cursor.nextLine();
+            createTableHeaderForKeys(layout, cursor.sheet, line);
+            if (hasPrimaryKey(diff)) {
+                line = cursor.nextLine();
+                createTableCellForPrimaryKey(diff, layout, groupFirst, cursor.sheet, line);
+            }
+            for (String indexName : diff.indexNames) {
+                line = cursor.nextLine();
+                createTableCellForIndex(diff, layout, groupFirst, cursor.sheet, line, indexName);
+            }
+            for (String foreignKeyName : diff.foreignKeyNames) {
+                line = cursor.nextLine();
+                createTableCellForForeignKey(diff, layout, groupFirst, cursor.sheet, line, foreignKeyName);
             }
         }
-        return sheet;
     }
 
-    private void exportSchemaDiff(SchemaDiff diff, Workbook workbook) {
-        Sheet sheet = createSchemaSheet(diff, workbook);
+    private void finish(SchemaDiff diff, ExcelReport report, boolean severalParts, ReportWriter writer) throws IOException {
+        if (report.isSharded()) {
+            String title = "Schema " + diff.schemas.get(0).getName();
+            report.createIndex(severalParts ? title + ", part " + report.part : title);
+        }
+        writer.write(report);
+    }
 
-        int line = -1;
-        createSchemaHeader(workbook, sheet, ++line, diff);
-        createSchemaHeaderForDatabase(workbook, sheet, ++line, diff);
-        createSchemaHeaderForTables(workbook, sheet, ++line, diff);
+    private <T> T waitFor(Future<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            throw UncheckedException.wrap(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw UncheckedException.wrap(e);
+        }
+    }
 
-        for (String tableName : diff.tableNames) {
-            createSchemaCellForTable(diff, workbook, sheet, ++line, tableName);
+    private boolean hasKeys(TableDiff diff) {
+        return hasPrimaryKey(diff) || !diff.indexNames.isEmpty() || !diff.foreignKeyNames.isEmpty();
+    }
+
+    private boolean hasPrimaryKey(TableDiff diff) {
+        for (Table table : diff.tables) {
+            if (table.getPrimaryKey() != null) {
+                return true;
+            }
         }
+        return false;
     }
 
-    private void exportTableDiff(TableDiff diff, Workbook workbook) {
-        Sheet sheet = createTableSheet(diff, workbook);
+    private File partFile(File excel, int part) {
+        if (part == 1) {
+            return excel;
+        }
+        String name = excel.getName();
+        int dot = name.lastIndexOf('.');
+        String partName = dot < 0
+                ? name + "-" + part
+                : name.substring(0, dot) + "-" + part + name.substring(dot);
+        return new File(excel.getAbsoluteFile().getParentFile(), partName);
+    }
 
-        int line = -1;
-        createTableHeader(workbook, diff, sheet, ++line);
-        createTableHeaderForDatabase(workbook, diff, sheet, ++line);
-        createTableHeaderForColumns(workbook, diff, sheet, ++line);
+    private List<String> schemaNames(SchemaDiff diff) {
+        List<String> names = new ArrayList<String>(diff.schemas.size());
+        for (Schema schema : diff.schemas) {
+            names.add(schema.getCatalog().getDatabase().getAlias() + "." + schema.getName());
+        }
+        return names;
+    }
 
-        for (String columnName : diff.columnNames) {
-            createTableCellForColumn(diff, workbook, sheet, ++line, columnName);
+    private String join(List<String> names) {
+        StringBuilder text = new StringBuilder("(");
+        String separator = "";
+        for (String name : names) {
+            text.append(separator).append(name);
+            separator = ", ";
         }
+        return text.append(")").toString();
     }
 }
\ No newline at end of file
@@ -37,6 +37,16 @@ public class DiffFilter {
         protected boolean acceptColumn(String name) {
             return a.acceptColumn(name) && b.acceptColumn(name);
         }
+
+        @Override
+        protected boolean acceptForeignKey(String name) {
+            return a.acceptForeignKey(name) && b.acceptForeignKey(name);
+        }
+
+        @Override
+        protected boolean acceptIndex(String name) {
+            return a.acceptIndex(name) && b.acceptIndex(name);
+        }
     }
 
     protected boolean acceptTable(String name) {
@@ -47,6 +57,14 @@ public class DiffFilter {
         return true;
     }
 
+    protected boolean acceptForeignKey(String name) {
+        return true;
+    }
+
+    protected boolean acceptIndex(String name) {
+        return true;
+    }
+
     public DiffFilter and(DiffFilter otherFilter) {
         return new CompositeFilter(this, otherFilter);
     }
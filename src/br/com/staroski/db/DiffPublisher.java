@@ -0,0 +1,183 @@
+package br.com.staroski.db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class publishes the {@link DiffEntry differences} between some schemas one table at a time<br>
+ * Each subscriber gets its own walk over the tables, and a table is only compared when the subscriber has requested it, so a slow subscriber
+ * also slows down the crawl instead of piling up differences in memory<br>
+ * It can also be used as an {@link Iterable}, which compares one table at each call to {@link Iterator#next()}
+ * 
+ * @author Ricardo Artur Staroski
+ */
+public final class DiffPublisher implements Flow.Publisher<DiffEntry>, Iterable<DiffEntry> {
+
+    private static final class DiffSubscription implements Flow.Subscription, Runnable {
+
+        private final Flow.Subscriber<? super DiffEntry> subscriber;
+        private final Iterable<DiffEntry> source;
+        private final Executor executor;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean done = new AtomicBoolean();
+        private Iterator<DiffEntry> iterator;
+
+        DiffSubscription(Flow.Subscriber<? super DiffEntry> subscriber, Iterable<DiffEntry> source, Executor executor) {
+            this.subscriber = subscriber;
+            this.source = source;
+            this.executor = executor;
+        }
+
+        /**
+         * The iterator is closed by the thread that emits, so it is never closed while a table is being compared
+         */
+        @Override
+        public void cancel() {
+            if (done.compareAndSet(false, true)) {
+                schedule();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                if (fail(new IllegalArgumentException("the requested amount must be positive: " + n))) {
+                    schedule();
+                }
+                return;
+            }
+            long current;
+            long updated;
+            do {
+                current = demand.get();
+                updated = current + n < 0 ? Long.MAX_VALUE : current + n; // saturates instead of overflowing
+            } while (!demand.compareAndSet(current, updated));
+            schedule();
+        }
+
+        /**
+         * Only one thread at a time emits, the requests made while emitting are served by that same thread
+         */
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                try {
+                    if (done.get()) {
+                        closeQuietly();
+                        return;
+                    }
+                    if (iterator == null) {
+                        iterator = source.iterator();
+                    }
+                    while (!done.get() && demand.get() > 0) {
+                        if (!iterator.hasNext()) {
+                            closeIterator();
+                            if (done.compareAndSet(false, true)) {
+                                subscriber.onComplete();
+                            }
+                            return;
+                        }
+                        DiffEntry entry = iterator.next();
+                        demand.decrementAndGet();
+                        subscriber.onNext(entry);
+                    }
+                } catch (Throwable t) {
+                    closeQuietly();
+                    fail(t);
+                    return;
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        void schedule() {
+            if (pending.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RuntimeException e) {
+                    closeQuietly(); // nothing else emits, the executor did not take this subscription
+                    fail(e);
+                }
+            }
+        }
+
+        /**
+         * Closes the iterator of the source when it is {@link Closeable}, like the {@link MergeDiff} and the spilling iterator of the
+         * {@link SchemaDiff}, releasing their files and connections
+         */
+        private void closeIterator() throws IOException {
+            Iterator<DiffEntry> closing = iterator;
+            iterator = null;
+            if (closing instanceof Closeable) {
+                ((Closeable) closing).close();
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                closeIterator();
+            } catch (IOException e) {
+                // nothing to do, the subscription is already over
+            }
+        }
+
+        /**
+         * @return <code>true</code> if the subscriber was notified, <code>false</code> if the subscription was already over
+         */
+        private boolean fail(Throwable t) {
+            if (done.compareAndSet(false, true)) {
+                subscriber.onError(t);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static final Executor NEW_THREAD = new Executor() {
+
+        private final DaemonThreadFactory threads = new DaemonThreadFactory("diff-publisher");
+
+        @Override
+        public void execute(Runnable command) {
+            threads.newThread(command).start();
+        }
+    };
+
+    private final Iterable<DiffEntry> source;
+    private final Executor executor;
+
+    DiffPublisher(Iterable<DiffEntry> source, Executor executor) {
+        this.source = source;
+        this.executor = executor != null ? executor : NEW_THREAD;
+    }
+
+    @Override
+    public Iterator<DiffEntry> iterator() {
+        return source.iterator();
+    }
+
+    /**
+     * @param executor The executor where the tables are compared and delivered, by default a new daemon thread is used each time the subscriber
+     *            runs out of requested entries, because comparing tables blocks on JDBC
+     */
+    public DiffPublisher on(Executor executor) {
+        return new DiffPublisher(source, executor);
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super DiffEntry> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        DiffSubscription subscription = new DiffSubscription(subscriber, source, executor);
+        subscriber.onSubscribe(subscription);
+    }
+}
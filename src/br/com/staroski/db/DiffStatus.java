@@ -0,0 +1,24 @@
+package br.com.staroski.db;
+
+/**
+ * This enum classifies an item of a diff in a given schema, it is what the colors of the excel report stand for
+ * 
+ * @author Ricardo Artur Staroski
+ */
+public enum DiffStatus {
+
+    /**
+     * The item exists in all compared schemas with the same definition, it is green in the excel report
+     */
+    EQUAL,
+
+    /**
+     * The item exists in this schema, but is missing or defined differently in another one, it is yellow in the excel report
+     */
+    DIFFERENT,
+
+    /**
+     * The item does not exist in this schema, it is red in the excel report
+     */
+    MISSING;
+}
@@ -0,0 +1,212 @@
+package br.com.staroski.db;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class is the base of the streaming diff writers<br>
+ * A writer receives the {@link DiffEntry entries} one at a time and writes them straight to a buffered {@link Writer}, without building a
+ * document in memory<br>
+ * The items are classified with the same {@link DiffStatus} used by the colors of the excel report
+ * 
+ * @author Ricardo Artur Staroski
+ * @see DiffExporter#export(DiffWriter, List, java.util.Iterator)
+ */
+public abstract class DiffWriter implements Closeable {
+
+    /**
+     * A compared item of a table (column, key or index) and its status in each schema
+     */
+    protected static final class Item {
+
+        public final String kind;
+        public final String name;
+        public final DiffStatus[] status;
+        public final String[] definitions;
+
+        Item(String kind, String name, int schemaCount) {
+            this.kind = kind;
+            this.name = name;
+            this.status = new DiffStatus[schemaCount];
+            this.definitions = new String[schemaCount];
+        }
+
+        public boolean isEqual() {
+            for (DiffStatus statusN : status) {
+                if (statusN != DiffStatus.EQUAL) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    protected final Writer out;
+
+    private int tableCount;
+    private int differentCount;
+    private int missingCount;
+
+    protected DiffWriter(OutputStream out) {
+        this(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    protected DiffWriter(Writer out) {
+        this.out = out instanceof BufferedWriter ? out : new BufferedWriter(out, BUFFER_SIZE);
+    }
+
+    /**
+     * Must be called once, before the first entry
+     *
+     * @param schemaNames The name of each compared schema, in the same order of {@link DiffEntry#tables}
+     */
+    public final void begin(List<String> schemaNames) {
+        try {
+            writeBegin(schemaNames);
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            out.close();
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        }
+    }
+
+    /**
+     * Must be called once, after the last entry, it writes the summary and flushes the output
+     */
+    public final void end() {
+        try {
+            writeEnd(tableCount, differentCount, missingCount);
+            out.flush();
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        }
+    }
+
+    public final void write(DiffEntry entry) {
+        List<Item> items = itemsOf(entry);
+        tableCount++;
+        if (!entry.allSchemasContains()) {
+            missingCount++;
+        } else if (entry.hasDifferences) {
+            differentCount++;
+        }
+        try {
+            writeEntry(entry, items);
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        }
+    }
+
+    /**
+     * @return How the table of the given entry was renamed in the given schema, where it is missing, or <code>null</code> if it was not
+     */
+    protected final String renameOf(DiffEntry entry, int schemaIndex) {
+        if (entry.rename == null || entry.contains(schemaIndex)) {
+            return null;
+        }
+        return entry.rename.describe(entry.tableName);
+    }
+
+    protected abstract void writeBegin(List<String> schemaNames) throws IOException;
+
+    /**
+     * @param tableCount Number of table names compared
+     * @param differentCount Number of tables present in all schemas, but with differences
+     * @param missingCount Number of tables missing in at least one schema
+     */
+    protected abstract void writeEnd(int tableCount, int differentCount, int missingCount) throws IOException;
+
+    /**
+     * @param items The columns, primary key, indexes and foreign keys of the entry, with their status in each schema, they are only compared
+     *            when the table exists in more than one schema, otherwise the list is empty<br>
+     *            The definition of a renamed column, where it is missing, tells its other name
+     */
+    protected abstract void writeEntry(DiffEntry entry, List<Item> items) throws IOException;
+
+    private List<Item> itemsOf(DiffEntry entry) {
+        List<Item> items = new ArrayList<Item>();
+        TableDiff diff = entry.tableDiff;
+        if (diff == null) {
+            return items;
+        }
+        int count = entry.tables.size();
+        for (String columnName : diff.columnNames) {
+            Item item = new Item("COLUMN", columnName, count);
+            Rename rename = diff.getColumnRename(columnName);
+            for (int i = 0; i < count; i++) {
+                Table table = entry.tables.get(i);
+                item.status[i] = table == null ? DiffStatus.MISSING : diff.getColumnStatus(table, columnName);
+                Column column = table == null ? null : table.getColumn(columnName);
+                if (column != null) {
+                    item.definitions[i] = column.getTypeSignature();
+                } else if (table != null && rename != null && table.contains(rename.otherName(columnName))) {
+                    item.definitions[i] = rename.describe(columnName);
+                }
+            }
+            items.add(item);
+        }
+        Item primaryKey = new Item("PRIMARY_KEY", null, count);
+        boolean hasPrimaryKey = false;
+        for (int i = 0; i < count; i++) {
+            Table table = entry.tables.get(i);
+            Index index = table == null ? null : table.getPrimaryKey();
+            primaryKey.status[i] = table == null ? DiffStatus.MISSING : diff.getPrimaryKeyStatus(table);
+            primaryKey.definitions[i] = index == null ? null : join(index.getColumnNames());
+            hasPrimaryKey |= index != null;
+        }
+        if (hasPrimaryKey) {
+            items.add(primaryKey);
+        }
+        for (String indexName : diff.indexNames) {
+            Item item = new Item("INDEX", indexName, count);
+            for (int i = 0; i < count; i++) {
+                Table table = entry.tables.get(i);
+                Index index = table == null ? null : table.getIndex(indexName);
+                item.status[i] = table == null ? DiffStatus.MISSING : diff.getIndexStatus(table, indexName);
+                item.definitions[i] = index == null ? null : (index.isUnique() ? "UNIQUE " : "") + join(index.getColumnNames());
+            }
+            items.add(item);
+        }
+        for (String foreignKeyName : diff.foreignKeyNames) {
+            Item item = new Item("FOREIGN_KEY", foreignKeyName, count);
+            for (int i = 0; i < count; i++) {
+                Table table = entry.tables.get(i);
+                ForeignKey foreignKey = table == null ? null : table.getForeignKey(foreignKeyName);
+                item.status[i] = table == null ? DiffStatus.MISSING : diff.getForeignKeyStatus(table, foreignKeyName);
+                item.definitions[i] = foreignKey == null
+                        ? null
+                        : join(foreignKey.getColumnNames()) + " -> " + foreignKey.getReferencedTable() + join(foreignKey.getReferencedColumnNames());
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    private String join(List<String> names) {
+        StringBuilder text = new StringBuilder("(");
+        String separator = "";
+        for (String name : names) {
+            text.append(separator).append(name);
+            separator = ", ";
+        }
+        return text.append(")").toString();
+    }
+}
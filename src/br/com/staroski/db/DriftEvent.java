@@ -0,0 +1,64 @@
+package br.com.staroski.db;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class describes a change found by the {@link DriftMonitor} in the structure of a database
+ *
+ * @author Ricardo Artur Staroski
+ */
+public final class DriftEvent {
+
+    /**
+     * The alias of the watched database
+     */
+    public final String alias;
+
+    /**
+     * The last known structure, before the change
+     */
+    public final Database previous;
+
+    /**
+     * The structure found now, a snapshot that is not connected
+     */
+    public final Database current;
+
+    /**
+     * The differences of the schemas that exist in both structures and have changed
+     */
+    public final List<SchemaDiff> differences;
+
+    /**
+     * Names of the schemas that exist only in the current structure, as <code>catalog.schema</code>
+     */
+    public final List<String> addedSchemas;
+
+    /**
+     * Names of the schemas that exist only in the previous structure, as <code>catalog.schema</code>
+     */
+    public final List<String> removedSchemas;
+
+    /**
+     * When the change was found, in milliseconds
+     */
+    public final long time;
+
+    DriftEvent(String alias, Database previous, Database current, List<SchemaDiff> differences, List<String> addedSchemas,
+               List<String> removedSchemas, long time) {
+        this.alias = alias;
+        this.previous = previous;
+        this.current = current;
+        this.differences = Collections.unmodifiableList(differences);
+        this.addedSchemas = Collections.unmodifiableList(addedSchemas);
+        this.removedSchemas = Collections.unmodifiableList(removedSchemas);
+        this.time = time;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, %d schemas changed, %d added, %d removed]", DriftEvent.class.getSimpleName(), alias, differences.size(),
+                addedSchemas.size(), removedSchemas.size());
+    }
+}
@@ -0,0 +1,19 @@
+package br.com.staroski.db;
+
+/**
+ * This interface receives the events of a {@link DriftMonitor}, on the thread that polled the database
+ *
+ * @author Ricardo Artur Staroski
+ */
+public interface DriftListener {
+
+    /**
+     * Called when the structure of a watched database has changed since the last poll
+     */
+    void onDrift(DriftEvent event);
+
+    /**
+     * Called when a poll fails, the database is polled again at its next turn
+     */
+    void onError(String alias, Throwable error);
+}
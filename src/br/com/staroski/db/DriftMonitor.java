@@ -0,0 +1,404 @@
+package br.com.staroski.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import br.com.staroski.IO;
+import br.com.staroski.UncheckedException;
+import br.com.staroski.Utils;
+
+/**
+ * This class watches the structure of some databases, polling them periodically and publishing a {@link DriftEvent} when it changes<br>
+ * Each poll first reads a cheap fingerprint of the tables and columns, with one bulk metadata query per schema, and only crawls the whole
+ * database when the fingerprint has changed or when the configured number of polls without a full crawl is reached, which is what catches
+ * the changes of keys and indexes<br>
+ * The polls are jittered, so databases watched together are not polled all at once, and the polls of databases on the same host are spaced
+ * by a minimum interval<br>
+ * The last known structure of each database is kept in memory and in the state directory, so a restart does not crawl every database again
+ *
+ * @author Ricardo Artur Staroski
+ */
+public final class DriftMonitor implements Closeable {
+
+    private final class Watch implements Runnable {
+
+        final String alias;
+        final String host;
+        final Callable<Database> connector;
+
+        private Database lastKnown;
+        private String fingerprint;
+        private int pollsWithoutCrawl;
+        private boolean stateLoaded;
+        private boolean hostReserved;
+
+        Watch(String alias, String host, Callable<Database> connector) {
+            this.alias = alias;
+            this.host = host == null ? alias : host;
+            this.connector = connector;
+        }
+
+        @Override
+        public void run() {
+            if (closed || watches.get(alias) != this) {
+                return;
+            }
+            if (!hostReserved) {
+                long delay = reserveHost(host);
+                if (delay > 0) {
+                    hostReserved = true;
+                    scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            hostReserved = false;
+            try {
+                DriftEvent event = poll();
+                if (event != null) {
+                    for (DriftListener listener : listeners) {
+                        listener.onDrift(event);
+                    }
+                }
+            } catch (Throwable t) {
+                for (DriftListener listener : listeners) {
+                    listener.onError(alias, t);
+                }
+            } finally {
+                if (!closed && watches.get(alias) == this) {
+                    scheduler.schedule(this, nextDelay(), TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        synchronized Database getLastKnown() {
+            loadState();
+            return lastKnown;
+        }
+
+        synchronized DriftEvent poll() throws Exception {
+            loadState();
+            Database database = connector.call();
+            try {
+                String currentFingerprint = fingerprintOf(database);
+                if (lastKnown != null && currentFingerprint != null && currentFingerprint.equals(fingerprint) && pollsWithoutCrawl < fullCrawlInterval) {
+                    pollsWithoutCrawl++;
+                    return null;
+                }
+                Database current = snapshotOf(database).setAlias(alias);
+                Database previous = lastKnown;
+                lastKnown = current;
+                fingerprint = currentFingerprint;
+                pollsWithoutCrawl = 0;
+                saveState();
+                return previous == null ? null : driftOf(alias, previous, current);
+            } finally {
+                database.disconnect();
+            }
+        }
+
+        private void loadState() {
+            if (stateLoaded) {
+                return;
+            }
+            stateLoaded = true;
+            File snapshot = stateFile(alias, SNAPSHOT_EXTENSION);
+            File fingerprintFile = stateFile(alias, FINGERPRINT_EXTENSION);
+            if (snapshot.isFile() && fingerprintFile.isFile()) {
+                lastKnown = Database.readFrom(new ByteArrayInputStream(IO.readBytes(snapshot)));
+                String text = new String(IO.readBytes(fingerprintFile), StandardCharsets.UTF_8);
+                fingerprint = text.isEmpty() ? null : text;
+            }
+        }
+
+        private void saveState() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            lastKnown.writeTo(bytes);
+            IO.writeAtomically(stateFile(alias, SNAPSHOT_EXTENSION), bytes.toByteArray());
+            String text = fingerprint == null ? "" : fingerprint;
+            IO.writeAtomically(stateFile(alias, FINGERPRINT_EXTENSION), text.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static final String SNAPSHOT_EXTENSION = ".snapshot";
+    private static final String FINGERPRINT_EXTENSION = ".fingerprint";
+
+    private static boolean areTablesEquals(Schema previous, Schema current) {
+        List<Table> previousTables = Schema.sortedByName(previous.getTables());
+        List<Table> currentTables = Schema.sortedByName(current.getTables());
+        if (previousTables.size() != currentTables.size()) {
+            return false;
+        }
+        for (int i = 0; i < previousTables.size(); i++) {
+            if (!Arrays.equals(definitionOf(previousTables.get(i)), definitionOf(currentTables.get(i)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] definitionOf(Table table) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.writeDefinitionTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The statistics are not compared, only the structure
+     */
+    private static DriftEvent driftOf(String alias, Database previous, Database current) {
+        Map<String, Schema> previousSchemas = schemasOf(previous);
+        Map<String, Schema> currentSchemas = schemasOf(current);
+        List<SchemaDiff> differences = new ArrayList<SchemaDiff>();
+        List<String> added = new ArrayList<String>();
+        List<String> removed = new ArrayList<String>();
+        for (Map.Entry<String, Schema> entry : currentSchemas.entrySet()) {
+            Schema previousSchema = previousSchemas.get(entry.getKey());
+            if (previousSchema == null) {
+                added.add(entry.getKey());
+            } else if (!areTablesEquals(previousSchema, entry.getValue())) {
+                differences.add(previousSchema.compareWith(entry.getValue()));
+            }
+        }
+        for (String name : previousSchemas.keySet()) {
+            if (!currentSchemas.containsKey(name)) {
+                removed.add(name);
+            }
+        }
+        if (differences.isEmpty() && added.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
+        return new DriftEvent(alias, previous, current, differences, added, removed, System.currentTimeMillis());
+    }
+
+    /**
+     * Hashes the tables and the columns of every schema, reading them with a single {@link DatabaseMetaData#getTables} and a single
+     * {@link DatabaseMetaData#getColumns} for the whole schema
+     *
+     * @return <code>null</code> for a database that is not connected, which is always crawled
+     */
+    private static String fingerprintOf(Database database) throws SQLException, NoSuchAlgorithmException {
+        Connection connection = database.getConnection();
+        if (connection == null) {
+            return null;
+        }
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        DatabaseMetaData metaData = connection.getMetaData();
+        for (Catalog catalog : database.getCatalogs()) {
+            for (Schema schema : catalog.getSchemas()) {
+                update(digest, catalog.getName(), schema.getName());
+                ResultSet tables = metaData.getTables(catalog.getName(), schema.getName(), null, null);
+                try {
+                    while (tables.next()) {
+                        if (Utils.areEqualsIgnoreCase(schema.getName(), tables.getString("TABLE_SCHEM"))) {
+                            update(digest, tables.getString("TABLE_NAME"), tables.getString("TABLE_TYPE"));
+                        }
+                    }
+                } finally {
+                    tables.close();
+                }
+                ResultSet columns = metaData.getColumns(catalog.getName(), schema.getName(), null, null);
+                try {
+                    while (columns.next()) {
+                        if (Utils.areEqualsIgnoreCase(schema.getName(), columns.getString("TABLE_SCHEM"))) {
+                            update(digest, columns.getString("TABLE_NAME"), columns.getString("COLUMN_NAME"), columns.getString("TYPE_NAME"),
+                                    columns.getString("COLUMN_SIZE"), columns.getString("DECIMAL_DIGITS"), columns.getString("DATA_TYPE"));
+                        }
+                    }
+                } finally {
+                    columns.close();
+                }
+            }
+        }
+        return SnapshotStore.toHex(digest.digest());
+    }
+
+    private static Map<String, Schema> schemasOf(Database database) {
+        Map<String, Schema> schemas = new HashMap<String, Schema>();
+        for (Catalog catalog : database.getCatalogs()) {
+            for (Schema schema : catalog.getSchemas()) {
+                schemas.put(catalog.getName() + "." + schema.getName(), schema);
+            }
+        }
+        return schemas;
+    }
+
+    /**
+     * Crawls the given database and reads it back as a snapshot, which does not keep the connection
+     */
+    private static Database snapshotOf(Database database) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        database.writeTo(bytes);
+        return Database.readFrom(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    private static void update(MessageDigest digest, String... values) {
+        for (String value : values) {
+            if (value != null) {
+                digest.update(value.getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 0);
+        }
+    }
+
+    private final File stateDirectory;
+    private final long interval;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Watch> watches = new ConcurrentHashMap<String, Watch>();
+    private final Map<String, Long> nextHostPolls = new HashMap<String, Long>();
+    private final List<DriftListener> listeners = new CopyOnWriteArrayList<DriftListener>();
+
+    private volatile double jitter = 0.1;
+    private volatile long minHostInterval;
+    private volatile int fullCrawlInterval = 24;
+    private volatile boolean closed;
+
+    /**
+     * @param stateDirectory Where the last known structure of each database is kept
+     * @param interval Time between the polls of each database
+     * @param maxConcurrentPolls Maximum number of databases polled at the same time
+     */
+    public DriftMonitor(File stateDirectory, long interval, TimeUnit unit, int maxConcurrentPolls) {
+        this.stateDirectory = stateDirectory;
+        this.interval = unit.toMillis(interval);
+        this.scheduler = Executors.newScheduledThreadPool(maxConcurrentPolls, new DaemonThreadFactory("drift-monitor"));
+        stateDirectory.mkdirs();
+    }
+
+    public DriftMonitor addListener(DriftListener listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    /**
+     * Stops polling, a poll in progress is interrupted
+     */
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @return The last known structure of the given database, <code>null</code> if it was never polled
+     */
+    public Database getLastKnown(String alias) {
+        Watch watch = watches.get(alias);
+        return watch == null ? null : watch.getLastKnown();
+    }
+
+    /**
+     * Polls the given database now, on the calling thread
+     *
+     * @return The change found, <code>null</code> if nothing changed or if it is the first poll of the database
+     */
+    public DriftEvent poll(String alias) {
+        Watch watch = watches.get(alias);
+        if (watch == null) {
+            throw new IllegalArgumentException("database not watched: " + alias);
+        }
+        try {
+            return watch.poll();
+        } catch (Exception e) {
+            throw UncheckedException.wrap(e);
+        }
+    }
+
+    /**
+     * @param polls Maximum number of polls that only compare the fingerprint, the next one crawls the whole database anyway
+     */
+    public DriftMonitor setFullCrawlInterval(int polls) {
+        this.fullCrawlInterval = polls;
+        return this;
+    }
+
+    /**
+     * @param jitter Fraction of the interval that each poll is randomly anticipated or delayed, between 0 and 1
+     */
+    public DriftMonitor setJitter(double jitter) {
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("the jitter must be between 0 and 1: " + jitter);
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * @param minHostInterval Minimum time between the start of two polls of databases on the same host
+     */
+    public DriftMonitor setMinHostInterval(long minHostInterval, TimeUnit unit) {
+        this.minHostInterval = unit.toMillis(minHostInterval);
+        return this;
+    }
+
+    public void unwatch(String alias) {
+        watches.remove(alias);
+    }
+
+    /**
+     * Starts watching a database, its first poll happens at a random moment within the jitter of the interval
+     *
+     * @param alias Identifies the database in the events and names its state files
+     * @param host The host used to space the polls, <code>null</code> to use the alias
+     * @param connector Connects to the database at each poll, the connection is closed after the poll
+     */
+    public DriftMonitor watch(String alias, String host, Callable<Database> connector) {
+        Watch watch = new Watch(alias, host, connector);
+        if (watches.putIfAbsent(alias, watch) != null) {
+            throw new IllegalArgumentException("database already watched: " + alias);
+        }
+        if (!closed) {
+            long firstDelay = (long) (interval * jitter * ThreadLocalRandom.current().nextDouble());
+            scheduler.schedule(watch, firstDelay, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    private long nextDelay() {
+        double variation = jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(0, (long) (interval * (1 + variation)));
+    }
+
+    /**
+     * Reserves the next poll of the given host
+     *
+     * @return How long to wait for the reserved poll, 0 to poll now
+     */
+    private long reserveHost(String host) {
+        if (minHostInterval <= 0) {
+            return 0;
+        }
+        synchronized (nextHostPolls) {
+            long now = System.currentTimeMillis();
+            Long next = nextHostPolls.get(host);
+            long slot = next == null ? now : Math.max(now, next);
+            nextHostPolls.put(host, slot + minHostInterval);
+            return slot - now;
+        }
+    }
+
+    private File stateFile(String alias, String extension) {
+        return new File(stateDirectory, alias.replaceAll("[^A-Za-z0-9._-]", "_") + extension);
+    }
+}
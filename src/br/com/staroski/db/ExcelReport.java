@@ -0,0 +1,234 @@
+package br.com.staroski.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.poi.common.usermodel.HyperlinkType;
+import org.apache.poi.hssf.usermodel.HSSFWorkbook;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Hyperlink;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.WorkbookUtil;
+
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class keeps a workbook of the excel report being built and the limits of its format<br>
+ * An excel 97 report keeps its sheets in memory, an xlsx report writes each sheet as a SpreadsheetML part to a temporary file, to be
+ * assembled later by the {@link XlsxPackage}<br>
+ * The sheet names are made valid and unique and every sheet created is listed, so a report split in several sheets or files gets an index
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class ExcelReport {
+
+    /**
+     * Maximum number of rows of an excel 97 sheet
+     */
+    static final int MAX_ROWS = 65536;
+
+    /**
+     * Maximum number of columns of an excel 97 sheet
+     */
+    static final int MAX_COLUMNS = 256;
+
+    /**
+     * Maximum number of rows of an xlsx sheet
+     */
+    static final int MAX_XLSX_ROWS = 1048576;
+
+    /**
+     * Maximum number of columns of an xlsx sheet
+     */
+    static final int MAX_XLSX_COLUMNS = 16384;
+
+    /**
+     * Name of the sheet created by {@link #createIndex(String)}
+     */
+    static final String INDEX = "Index";
+
+    private static final int MAX_SHEET_NAME = 31;
+
+    /**
+     * @param usedNames The names already used, in lower case, the returned name is added to them
+     * @return The given name, made valid, with a number suffix if it is already used
+     */
+    static String uniqueName(Set<String> usedNames, String name) {
+        String safeName = WorkbookUtil.createSafeSheetName(name == null || name.trim().isEmpty() ? "Sheet" : name);
+        String uniqueName = safeName;
+        for (int count = 2; !usedNames.add(uniqueName.toLowerCase()); count++) {
+            String suffix = " (" + count + ")";
+            uniqueName = safeName.substring(0, Math.min(safeName.length(), MAX_SHEET_NAME - suffix.length())) + suffix;
+        }
+        return uniqueName;
+    }
+
+    final Workbook workbook;
+    final ExcelStyles styles;
+    final int part;
+    final int maxRows;
+    final int maxColumns;
+
+    private final File directory;
+    private final Set<String> sheetNames = new HashSet<String>();
+    private final List<String[]> contents = new ArrayList<String[]>();
+    private final List<File> parts = new ArrayList<File>();
+    private ReportSheet partSheet;
+    private long cellCount;
+    private boolean sharded;
+
+    /**
+     * Creates an excel 97 report
+     */
+    ExcelReport(int part) {
+        this.workbook = new HSSFWorkbook();
+        this.styles = new ExcelStyles(workbook);
+        this.part = part;
+        this.maxRows = MAX_ROWS;
+        this.maxColumns = MAX_COLUMNS;
+        this.directory = null;
+    }
+
+    /**
+     * Creates an xlsx report, each sheet is written to a temporary file in the given directory
+     */
+    ExcelReport(File directory) {
+        this.workbook = null;
+        this.styles = null;
+        this.part = 1;
+        this.maxRows = MAX_XLSX_ROWS;
+        this.maxColumns = MAX_XLSX_COLUMNS;
+        this.directory = directory;
+    }
+
+    /**
+     * Counts the cells created, to know when the report should continue in another file
+     */
+    void addCells(int count) {
+        cellCount += count;
+    }
+
+    /**
+     * Finishes the last sheet of an xlsx report
+     */
+    void closeSheets() throws IOException {
+        if (partSheet != null) {
+            partSheet.close();
+            partSheet = null;
+        }
+    }
+
+    /**
+     * Creates the sheet with the given name, or with a similar name if it is not valid or is already used
+     *
+     * @param description What the sheet contains, shown in the index
+     */
+    ReportSheet createSheet(String name, String description) {
+        String sheetName = uniqueName(name);
+        contents.add(new String[] { sheetName, description });
+        if (workbook != null) {
+            return ReportSheet.of(workbook.createSheet(sheetName), styles);
+        }
+        try {
+            closeSheets(); // the sheets are filled one at a time
+            File file = File.createTempFile("sheet", ".xml", directory);
+            parts.add(file);
+            partSheet = XlsxPackage.createSheet(file);
+            return partSheet;
+        } catch (IOException e) {
+            throw UncheckedException.wrap(e);
+        }
+    }
+
+    long getCellCount() {
+        return cellCount;
+    }
+
+    /**
+     * @return The description of the sheet at the given position, in the order the sheets were created
+     */
+    String getDescription(int sheetIndex) {
+        return contents.get(sheetIndex)[1];
+    }
+
+    /**
+     * @return The file of the sheet at the given position of an xlsx report
+     */
+    File getPart(int sheetIndex) {
+        return parts.get(sheetIndex);
+    }
+
+    int getSheetCount() {
+        return contents.size();
+    }
+
+    String getSheetName(int sheetIndex) {
+        return contents.get(sheetIndex)[0];
+    }
+
+    /**
+     * @return <code>true</code> if the report is split in several sheets or files, so it needs an index
+     */
+    boolean isSharded() {
+        return sharded;
+    }
+
+    void setSharded() {
+        sharded = true;
+    }
+
+    /**
+     * Creates the index as the first sheet, with a link to each sheet of this workbook
+     *
+     * @param title Shown above the list of sheets
+     */
+    void createIndex(String title) {
+        Sheet sheet = workbook.createSheet(uniqueName(INDEX));
+        sheet.setColumnWidth(0, 40 * 256);
+        sheet.setColumnWidth(1, 80 * 256);
+
+        Row titleRow = sheet.createRow(0);
+        Cell titleCell = titleRow.createCell(0);
+        titleCell.setCellStyle(styles.header);
+        titleCell.setCellValue(title);
+        titleRow.createCell(1).setCellStyle(styles.header);
+
+        Row headerRow = sheet.createRow(1);
+        Cell sheetCell = headerRow.createCell(0);
+        sheetCell.setCellStyle(styles.header);
+        sheetCell.setCellValue("Sheet");
+        Cell contentsCell = headerRow.createCell(1);
+        contentsCell.setCellStyle(styles.header);
+        contentsCell.setCellValue("Contents");
+
+        int line = 1;
+        for (String[] content : contents) {
+            Row row = sheet.createRow(++line);
+            Cell nameCell = row.createCell(0);
+            nameCell.setCellValue(content[0]);
+            Hyperlink link = workbook.getCreationHelper().createHyperlink(HyperlinkType.DOCUMENT);
+            link.setAddress("'" + content[0].replace("'", "''") + "'!A1");
+            nameCell.setHyperlink(link);
+            row.createCell(1).setCellValue(content[1]);
+        }
+        workbook.setSheetOrder(sheet.getSheetName(), 0);
+        workbook.setActiveSheet(0);
+        workbook.setSelectedTab(0);
+    }
+
+    void write(OutputStream out) throws IOException {
+        workbook.write(out);
+        workbook.close();
+    }
+
+    private String uniqueName(String name) {
+        return uniqueName(sheetNames, name);
+    }
+}
@@ -0,0 +1,92 @@
+package br.com.staroski.db;
+
+import org.apache.poi.hssf.util.HSSFColor.HSSFColorPredefined;
+import org.apache.poi.ss.usermodel.BorderStyle;
+import org.apache.poi.ss.usermodel.CellStyle;
+import org.apache.poi.ss.usermodel.FillPatternType;
+import org.apache.poi.ss.usermodel.Font;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * This class keeps the cell styles of the excel report<br>
+ * The sheets refer to a style by its identifier, which is also the position of its cell format in the styles part of an xlsx package<br>
+ * A cell style belongs to the workbook that created it, so there is one instance per excel 97 workbook, created before its first sheet
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class ExcelStyles {
+
+    static final HSSFColorPredefined HEADER_COLOR = HSSFColorPredefined.GREY_25_PERCENT;
+    static final HSSFColorPredefined EQUAL_COLOR = HSSFColorPredefined.LIGHT_GREEN;
+    static final HSSFColorPredefined DIFFERENT_COLOR = HSSFColorPredefined.LIGHT_YELLOW;
+    static final HSSFColorPredefined MISSING_COLOR = HSSFColorPredefined.CORAL;
+
+    static final int HEADER_STYLE = 1;
+    static final int EQUAL_STYLE = 2;
+    static final int DIFFERENT_STYLE = 3;
+    static final int MISSING_STYLE = 4;
+
+    /**
+     * @return The identifier of the style of the cells with the given status
+     */
+    static int of(DiffStatus status) {
+        switch (status) {
+            case EQUAL:
+                return EQUAL_STYLE;
+            case DIFFERENT:
+                return DIFFERENT_STYLE;
+            default:
+                return MISSING_STYLE;
+        }
+    }
+
+    private static CellStyle createStyle(Workbook workbook, short color, HorizontalAlignment alignment) {
+        CellStyle style = workbook.createCellStyle();
+        style.setFillForegroundColor(color);
+        style.setFillPattern(FillPatternType.SOLID_FOREGROUND);
+        if (alignment != null) {
+            style.setAlignment(alignment);
+        }
+
+        style.setBorderBottom(BorderStyle.THIN);
+        style.setBorderLeft(BorderStyle.THIN);
+        style.setBorderRight(BorderStyle.THIN);
+        style.setBorderTop(BorderStyle.THIN);
+        return style;
+    }
+
+    final Workbook workbook;
+    final CellStyle header;
+    final CellStyle green;
+    final CellStyle yellow;
+    final CellStyle red;
+
+    ExcelStyles(Workbook workbook) {
+        this.workbook = workbook;
+        header = createStyle(workbook, HEADER_COLOR.getIndex(), HorizontalAlignment.CENTER);
+        Font font = workbook.createFont();
+        font.setBold(true);
+        header.setFont(font);
+
+        green = createStyle(workbook, EQUAL_COLOR.getIndex(), null);
+        yellow = createStyle(workbook, DIFFERENT_COLOR.getIndex(), null);
+        red = createStyle(workbook, MISSING_COLOR.getIndex(), HorizontalAlignment.CENTER);
+    }
+
+    /**
+     * @return The cell style with the given identifier
+     */
+    CellStyle get(int style) {
+        switch (style) {
+            case HEADER_STYLE:
+                return header;
+            case EQUAL_STYLE:
+                return green;
+            case DIFFERENT_STYLE:
+                return yellow;
+            default:
+                return red;
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package br.com.staroski.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import br.com.staroski.IO;
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class is a durable queue of crawl tasks kept in a directory, shared by a coordinator and by {@link FleetWorker}s running in other
+ * processes of the same host, or of hosts that share the directory<br>
+ * The coordinator {@link #submit(String, String, String, String) submits} a task for each database, or
+ * {@link #submitBySchema(String, String, String, String, String) one for each schema} of the large ones, the workers claim the tasks, crawl
+ * them and write a snapshot segment of each one, and the coordinator {@link #merge() merges} the segments of each database into a
+ * snapshot<br>
+ * Each task is a file that moves between the directories <code>pending</code>, <code>claimed</code>, <code>done</code> and
+ * <code>failed</code>, a rename is atomic, so only one worker claims each task, and a worker keeps touching the file of its task, so a task
+ * claimed by a worker that died is {@link #requeueExpired(long) requeued} when its lease expires, the next worker resumes the crawl from
+ * the {@link Database#crawl(File) checkpoint} left by the previous one<br>
+ * The passwords are never written to the directory, each worker gets them by alias
+ *
+ * @author Ricardo Artur Staroski
+ */
+public final class FleetCrawl {
+
+    /**
+     * A crawl of a whole database, or of one of its schemas
+     */
+    public static final class Task {
+
+        public final String id;
+        public final String driver;
+        public final String url;
+        public final String user;
+        public final String alias;
+
+        /**
+         * The catalog of the schema crawled, meaningless if the task {@link #isWholeDatabase() crawls the whole database}
+         */
+        public final String catalog;
+
+        /**
+         * The schema crawled, meaningless if the task {@link #isWholeDatabase() crawls the whole database}
+         */
+        public final String schema;
+
+        private final boolean wholeDatabase;
+
+        Task(String id, String driver, String url, String user, String alias, boolean wholeDatabase, String catalog, String schema) {
+            this.id = id;
+            this.driver = driver;
+            this.url = url;
+            this.user = user;
+            this.alias = alias;
+            this.wholeDatabase = wholeDatabase;
+            this.catalog = catalog;
+            this.schema = schema;
+        }
+
+        public boolean isWholeDatabase() {
+            return wholeDatabase;
+        }
+
+        @Override
+        public String toString() {
+            String target = wholeDatabase ? alias : alias + "." + catalog + "." + schema;
+            return String.format("%s[%s, %s]", Task.class.getSimpleName(), id, target);
+        }
+    }
+
+    private static final byte TASK_MARKER = (byte) 0x7A;
+    private static final int TASK_VERSION = 1;
+
+    private static byte[] bytesOf(String driver, String url, String user, String alias, boolean wholeDatabase, String catalog, String schema) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        IO.writeByte(out, TASK_MARKER);
+        IO.writeInt(out, TASK_VERSION);
+        IO.writeString(out, driver);
+        IO.writeString(out, url);
+        IO.writeString(out, user);
+        IO.writeString(out, alias);
+        IO.writeBoolean(out, wholeDatabase);
+        IO.writeString(out, catalog);
+        IO.writeString(out, schema);
+        return bytes.toByteArray();
+    }
+
+    private static File directory(File parent, String name) {
+        File directory = new File(parent, name);
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IllegalStateException("can't create the directory " + directory);
+        }
+        return directory;
+    }
+
+    /**
+     * @return The names of the files of the given directory, sorted, without the temporary ones
+     */
+    private static List<String> list(File directory) {
+        String[] names = directory.list();
+        List<String> list = new ArrayList<String>();
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names) {
+                if (!name.endsWith(".tmp") && !name.endsWith(".error")) {
+                    list.add(name);
+                }
+            }
+        }
+        return list;
+    }
+
+    private static Task readTask(File file) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(IO.readBytes(file)));
+        byte marker = IO.readByte(in);
+        int version = IO.readInt(in);
+        if (marker != TASK_MARKER || version > TASK_VERSION) {
+            throw new IllegalArgumentException("not a crawl task: " + file);
+        }
+        String driver = IO.readString(in);
+        String url = IO.readString(in);
+        String user = IO.readString(in);
+        String alias = IO.readString(in);
+        boolean wholeDatabase = IO.readBoolean(in);
+        String catalog = IO.readString(in);
+        String schema = IO.readString(in);
+        return new Task(file.getName(), driver, url, user, alias, wholeDatabase, catalog, schema);
+    }
+
+    private final File pending;
+    private final File claimed;
+    private final File done;
+    private final File failed;
+    private final File segments;
+    private final File checkpoints;
+
+    /**
+     * Opens the queue of the given directory, creating it if needed, the tasks already there are kept
+     */
+    public FleetCrawl(File directory) {
+        this.pending = directory(directory, "pending");
+        this.claimed = directory(directory, "claimed");
+        this.done = directory(directory, "done");
+        this.failed = directory(directory, "failed");
+        this.segments = directory(directory, "segments");
+        this.checkpoints = directory(directory, "checkpoints");
+    }
+
+    /**
+     * Waits until no task is pending nor claimed, requeueing the tasks of the workers that died
+     *
+     * @param leaseMillis Time after which a task not touched by its worker is requeued
+     * @param pollMillis Time between the checks of the queue
+     * @return This queue
+     */
+    public FleetCrawl awaitFinished(long leaseMillis, long pollMillis) {
+        while (!isFinished()) {
+            requeueExpired(leaseMillis);
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw UncheckedException.wrap(e);
+            }
+        }
+        return this;
+    }
+
+    public int getClaimedCount() {
+        return list(claimed).size();
+    }
+
+    public int getDoneCount() {
+        return list(done).size();
+    }
+
+    /**
+     * @return The error of each failed task, by task identifier
+     */
+    public Map<String, String> getFailures() {
+        Map<String, String> failures = new TreeMap<String, String>();
+        for (String id : list(failed)) {
+            File error = new File(failed, id + ".error");
+            failures.put(id, error.isFile() ? new String(IO.readBytes(error), StandardCharsets.UTF_8) : "unknown error");
+        }
+        return failures;
+    }
+
+    public int getPendingCount() {
+        return list(pending).size();
+    }
+
+    /**
+     * @return <code>true</code> if no task is pending nor claimed, the failed ones are not retried
+     */
+    public boolean isFinished() {
+        return list(pending).isEmpty() && list(claimed).isEmpty();
+    }
+
+    /**
+     * Joins the segments written by the workers into one snapshot of each database, sorted by alias<br>
+     * A database crawled by schema is complete only when all of its tasks are done, see {@link #isFinished()}
+     */
+    public List<Database> merge() {
+        Map<String, List<Database>> segmentsByAlias = new TreeMap<String, List<Database>>();
+        for (String id : list(segments)) {
+            Database segment = Database.readFrom(new ByteArrayInputStream(IO.readBytes(new File(segments, id))));
+            String alias = String.valueOf(segment.getAlias());
+            List<Database> list = segmentsByAlias.get(alias);
+            if (list == null) {
+                list = new ArrayList<Database>();
+                segmentsByAlias.put(alias, list);
+            }
+            list.add(segment);
+        }
+        List<Database> databases = new ArrayList<Database>();
+        for (List<Database> list : segmentsByAlias.values()) {
+            databases.add(Database.merge(list));
+        }
+        return databases;
+    }
+
+    /**
+     * Moves back to the pending tasks the ones whose workers did not touch them for longer than the given lease, usually because the
+     * worker died
+     *
+     * @return The number of tasks requeued
+     */
+    public int requeueExpired(long leaseMillis) {
+        long expiration = System.currentTimeMillis() - leaseMillis;
+        int count = 0;
+        for (String id : list(claimed)) {
+            File file = new File(claimed, id);
+            long lastModified = file.lastModified();
+            if (lastModified != 0 && lastModified < expiration && file.renameTo(new File(pending, id))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds a task that crawls the whole database, a task equal to one already added is not added again
+     */
+    public Task submit(String driver, String url, String user, String alias) {
+        return submit(driver, url, user, alias, true, null, null);
+    }
+
+    /**
+     * Connects to the database only to list its schemas and adds a task to crawl each one of them, the password is not stored
+     *
+     * @return The tasks, one for each schema
+     */
+    public List<Task> submitBySchema(String driver, String url, String user, String pass, String alias) {
+        Database database = Database.connect(driver, url, user, pass).setAlias(alias);
+        try {
+            List<Task> tasks = new ArrayList<Task>();
+            for (Catalog catalog : database.getCatalogs()) {
+                for (Schema schema : catalog.getSchemas()) {
+                    tasks.add(submit(driver, url, user, alias, false, catalog.getName(), schema.getName()));
+                }
+            }
+            return tasks;
+        } finally {
+            database.disconnect();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[pending=%d, claimed=%d, done=%d, failed=%d]", FleetCrawl.class.getSimpleName(), getPendingCount(),
+                getClaimedCount(), getDoneCount(), list(failed).size());
+    }
+
+    File checkpointOf(Task task) {
+        return new File(checkpoints, task.id);
+    }
+
+    /**
+     * @return The task claimed, <code>null</code> if no task is pending
+     */
+    Task claim() {
+        for (String id : list(pending)) {
+            File file = new File(pending, id);
+            file.setLastModified(System.currentTimeMillis()); // the lease starts before the task is seen as claimed
+            File claimedFile = new File(claimed, id);
+            if (file.renameTo(claimedFile)) {
+                try {
+                    return readTask(claimedFile);
+                } catch (RuntimeException e) {
+                    fail(id, e);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stores the segment of the given task and marks it as done
+     */
+    void complete(Task task, byte[] segment) {
+        IO.writeAtomically(new File(segments, task.id), segment);
+        if (!new File(claimed, task.id).renameTo(new File(done, task.id))) {
+            new File(pending, task.id).delete(); // the lease expired while the task was crawled, it is not crawled again
+        }
+    }
+
+    void fail(Task task, Throwable error) {
+        fail(task.id, error);
+    }
+
+    /**
+     * Renews the lease of the given task
+     */
+    void touch(Task task) {
+        new File(claimed, task.id).setLastModified(System.currentTimeMillis());
+    }
+
+    private void fail(String id, Throwable error) {
+        Throwable cause = error instanceof UncheckedException && error.getCause() != null ? error.getCause() : error;
+        String message = String.valueOf(cause);
+        IO.writeAtomically(new File(failed, id + ".error"), message.getBytes(StandardCharsets.UTF_8));
+        new File(claimed, id).renameTo(new File(failed, id));
+    }
+
+    private Task submit(String driver, String url, String user, String alias, boolean wholeDatabase, String catalog, String schema) {
+        byte[] bytes = bytesOf(driver, url, user, alias, wholeDatabase, catalog, schema);
+        String id = SnapshotStore.hash(bytes).substring(0, 24);
+        Task task = new Task(id, driver, url, user, alias, wholeDatabase, catalog, schema);
+        for (File directory : new File[] { pending, claimed, done, failed }) {
+            if (new File(directory, id).isFile()) {
+                return task;
+            }
+        }
+        IO.writeAtomically(new File(pending, id), bytes);
+        return task;
+    }
+}
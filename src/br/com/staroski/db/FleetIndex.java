@@ -0,0 +1,333 @@
+package br.com.staroski.db;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import br.com.staroski.IO;
+
+/**
+ * This class indexes the tables and columns of many databases, to find where a table, column or type is used without walking every graph<br>
+ * The table names, column names and column type signatures are mapped to the places where they occur, the lookups ignore case and accept
+ * the wildcards <code>*</code> (any sequence of characters) and <code>?</code> (any single character), so <code>CUST*</code> is a
+ * prefix lookup<br>
+ * The index is a copy of the names, it does not keep the databases in memory and can be persisted with {@link #writeTo(OutputStream)}
+ *
+ * @author Ricardo Artur Staroski
+ */
+public final class FleetIndex {
+
+    /**
+     * A place where a table, or a column of a table, occurs
+     */
+    public static final class Location {
+
+        /**
+         * The alias of the database
+         */
+        public final String database;
+        public final String catalog;
+        public final String schema;
+        public final String table;
+
+        /**
+         * The column name, <code>null</code> for a location of a table
+         */
+        public final String column;
+
+        /**
+         * The {@link Column#getTypeSignature() type signature} of the column, <code>null</code> for a location of a table
+         */
+        public final String type;
+
+        final int tableId;
+
+        Location(int tableId, String database, String catalog, String schema, String table, String column, String type) {
+            this.tableId = tableId;
+            this.database = database;
+            this.catalog = catalog;
+            this.schema = schema;
+            this.table = table;
+            this.column = column;
+            this.type = type;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(database);
+            if (catalog != null) {
+                text.append('.').append(catalog);
+            }
+            if (schema != null) {
+                text.append('.').append(schema);
+            }
+            text.append('.').append(table);
+            if (column != null) {
+                text.append('.').append(column).append(' ').append(type);
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * A growable list of ascending posting numbers
+     */
+    private static final class Postings {
+
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void addTo(BitSet bits) {
+            for (int i = 0; i < size; i++) {
+                bits.set(values[i]);
+            }
+        }
+    }
+
+    private static final byte INDEX_MARKER = (byte) 0x1D;
+    private static final int INDEX_VERSION = 1;
+
+    public static FleetIndex readFrom(InputStream in) {
+        DataInputStream dataInput = in instanceof DataInputStream
+                ? (DataInputStream) in
+                : new DataInputStream(in);
+        byte marker = IO.readByte(dataInput);
+        int version = IO.readInt(dataInput);
+        if (marker != INDEX_MARKER || version > INDEX_VERSION) {
+            throw new IllegalArgumentException("not a fleet index");
+        }
+        FleetIndex index = new FleetIndex();
+        int tableCount = IO.readInt(dataInput);
+        for (int i = 0; i < tableCount; i++) {
+            String database = IO.readString(dataInput);
+            String catalog = IO.readString(dataInput);
+            String schema = IO.readString(dataInput);
+            String table = IO.readString(dataInput);
+            index.addTable(database, catalog, schema, table);
+        }
+        int columnCount = IO.readInt(dataInput);
+        for (int i = 0; i < columnCount; i++) {
+            int tableId = IO.readInt(dataInput);
+            String column = IO.readString(dataInput);
+            String type = IO.readString(dataInput);
+            index.addColumn(tableId, column, type);
+        }
+        return index;
+    }
+
+    private static String key(String name) {
+        return name == null ? "" : name.toUpperCase().replace(" ", "");
+    }
+
+    private final List<Location> tables = new ArrayList<Location>();
+    private final List<Location> columns = new ArrayList<Location>();
+
+    private final NavigableMap<String, Postings> tableNames = new TreeMap<String, Postings>();
+    private final NavigableMap<String, Postings> columnNames = new TreeMap<String, Postings>();
+    private final NavigableMap<String, Postings> columnTypes = new TreeMap<String, Postings>();
+
+    /**
+     * Shares the names repeated across databases, like the ones of tables and columns that exist in every tenant
+     */
+    private final Map<String, String> names = new HashMap<String, String>();
+
+    /**
+     * Adds all tables and columns of the given database, a connected database is crawled
+     */
+    public synchronized FleetIndex add(Database database) {
+        String alias = database.getAlias();
+        for (Catalog catalog : database.getCatalogs()) {
+            for (Schema schema : catalog.getSchemas()) {
+                for (Table table : schema.getTables()) {
+                    int tableId = addTable(alias, catalog.getName(), schema.getName(), table.getName());
+                    for (Column column : table.getColumns()) {
+                        addColumn(tableId, column.getName(), column.getTypeSignature());
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return The columns whose table, name and type match the given patterns, a <code>null</code> pattern matches anything
+     */
+    public synchronized List<Location> findColumns(String tablePattern, String columnPattern, String typePattern) {
+        BitSet found = null;
+        if (columnPattern != null) {
+            found = lookup(columnNames, columnPattern);
+        }
+        if (typePattern != null) {
+            BitSet types = lookup(columnTypes, typePattern);
+            if (found == null) {
+                found = types;
+            } else {
+                found.and(types);
+            }
+        }
+        if (found == null) {
+            found = new BitSet();
+            found.set(0, columns.size());
+        }
+        BitSet tableFilter = tablePattern == null ? null : lookup(tableNames, tablePattern);
+        List<Location> locations = new ArrayList<Location>();
+        for (int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+            if (tableFilter == null || tableFilter.get(columns.get(id).tableId)) {
+                locations.add(columns.get(id));
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * @return The tables whose name matches the given pattern
+     */
+    public synchronized List<Location> findTables(String tablePattern) {
+        BitSet found = lookup(tableNames, tablePattern);
+        List<Location> locations = new ArrayList<Location>();
+        for (int id = found.nextSetBit(0); id >= 0; id = found.nextSetBit(id + 1)) {
+            locations.add(tables.get(id));
+        }
+        return locations;
+    }
+
+    public synchronized int getColumnCount() {
+        return columns.size();
+    }
+
+    public synchronized int getTableCount() {
+        return tables.size();
+    }
+
+    public synchronized void writeTo(OutputStream out) {
+        DataOutputStream dataOutput = out instanceof DataOutputStream
+                ? (DataOutputStream) out
+                : new DataOutputStream(out);
+        IO.writeByte(dataOutput, INDEX_MARKER);
+        IO.writeInt(dataOutput, INDEX_VERSION);
+        IO.writeInt(dataOutput, tables.size());
+        for (Location table : tables) {
+            IO.writeString(dataOutput, table.database);
+            IO.writeString(dataOutput, table.catalog);
+            IO.writeString(dataOutput, table.schema);
+            IO.writeString(dataOutput, table.table);
+        }
+        IO.writeInt(dataOutput, columns.size());
+        for (Location column : columns) {
+            IO.writeInt(dataOutput, column.tableId);
+            IO.writeString(dataOutput, column.column);
+            IO.writeString(dataOutput, column.type);
+        }
+    }
+
+    private void addColumn(int tableId, String column, String type) {
+        Location table = tables.get(tableId);
+        int id = columns.size();
+        columns.add(new Location(tableId, table.database, table.catalog, table.schema, table.table, shared(column), shared(type)));
+        postings(columnNames, column).add(id);
+        postings(columnTypes, type).add(id);
+    }
+
+    private int addTable(String database, String catalog, String schema, String table) {
+        int id = tables.size();
+        tables.add(new Location(id, shared(database), shared(catalog), shared(schema), shared(table), null, null));
+        postings(tableNames, table).add(id);
+        return id;
+    }
+
+    /**
+     * Only the terms that start with the literal prefix of the pattern are tested against it
+     */
+    private BitSet lookup(NavigableMap<String, Postings> terms, String pattern) {
+        String key = key(pattern);
+        BitSet found = new BitSet();
+        int wildcard = indexOfWildcard(key);
+        if (wildcard < 0) {
+            Postings postings = terms.get(key);
+            if (postings != null) {
+                postings.addTo(found);
+            }
+            return found;
+        }
+        String prefix = key.substring(0, wildcard);
+        Map<String, Postings> candidates = prefix.isEmpty() ? terms : terms.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        boolean prefixOnly = wildcard == key.length() - 1 && key.charAt(wildcard) == '*';
+        Pattern regex = prefixOnly ? null : toRegex(key);
+        for (Map.Entry<String, Postings> term : candidates.entrySet()) {
+            if (prefixOnly || regex.matcher(term.getKey()).matches()) {
+                term.getValue().addTo(found);
+            }
+        }
+        return found;
+    }
+
+    private int indexOfWildcard(String key) {
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '*' || c == '?') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Postings postings(NavigableMap<String, Postings> terms, String name) {
+        String key = key(name);
+        Postings postings = terms.get(key);
+        if (postings == null) {
+            postings = new Postings();
+            terms.put(shared(key), postings);
+        }
+        return postings;
+    }
+
+    private String shared(String name) {
+        if (name == null) {
+            return null;
+        }
+        String shared = names.get(name);
+        if (shared == null) {
+            names.put(name, name);
+            shared = name;
+        }
+        return shared;
+    }
+
+    private Pattern toRegex(String key) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '*' || c == '?') {
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                regex.append(c == '*' ? ".*" : ".");
+            } else {
+                literal.append(c);
+            }
+        }
+        if (literal.length() > 0) {
+            regex.append(Pattern.quote(literal.toString()));
+        }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+}
@@ -0,0 +1,181 @@
+package br.com.staroski.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class claims the tasks of a {@link FleetCrawl} queue, one at a time, crawls them and writes their snapshot segments<br>
+ * Several workers run at the same time, in the same or in other processes, each one with its own connections, so a fleet is not limited by
+ * the sockets and the heap of a single process, a worker process is started by:
+ *
+ * <pre>
+ * java br.com.staroski.db.FleetWorker &lt;queue directory&gt; [&lt;passwords file&gt;]
+ * </pre>
+ *
+ * where the passwords file is a properties file with the password of each database alias
+ *
+ * @author Ricardo Artur Staroski
+ */
+public final class FleetWorker implements Runnable {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: java " + FleetWorker.class.getName() + " <queue directory> [<passwords file>]");
+            System.exit(1);
+        }
+        Map<String, String> passwords = new HashMap<String, String>();
+        if (args.length > 1) {
+            Properties properties = new Properties();
+            InputStream in = new FileInputStream(args[1]);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            for (String alias : properties.stringPropertyNames()) {
+                passwords.put(alias, properties.getProperty(alias));
+            }
+        }
+        FleetWorker worker = new FleetWorker(new FleetCrawl(new File(args[0])), passwords);
+        worker.run();
+        System.out.println(worker.getCrawledCount() + " tasks crawled");
+    }
+
+    private final FleetCrawl queue;
+    private final Map<String, String> passwords;
+
+    private volatile long leaseMillis = TimeUnit.MINUTES.toMillis(1);
+    private volatile long pollMillis = TimeUnit.SECONDS.toMillis(1);
+    private int crawledCount;
+
+    /**
+     * @param passwords The password of each database, by alias
+     */
+    public FleetWorker(FleetCrawl queue, Map<String, String> passwords) {
+        this.queue = queue;
+        this.passwords = new HashMap<String, String>(passwords);
+    }
+
+    /**
+     * @return The number of tasks crawled by this worker, including the failed ones
+     */
+    public synchronized int getCrawledCount() {
+        return crawledCount;
+    }
+
+    /**
+     * Crawls tasks until no task is pending nor claimed by other workers, meanwhile the tasks of the workers that died are requeued
+     */
+    @Override
+    public void run() {
+        while (true) {
+            if (runOnce()) {
+                continue;
+            }
+            if (queue.isFinished()) {
+                return;
+            }
+            if (queue.requeueExpired(leaseMillis) > 0) {
+                continue;
+            }
+            try {
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Claims and crawls a single task
+     *
+     * @return <code>false</code> if no task was pending
+     */
+    public boolean runOnce() {
+        final FleetCrawl.Task task = queue.claim();
+        if (task == null) {
+            return false;
+        }
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("fleet-worker-heartbeat"));
+        heartbeat.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                queue.touch(task);
+            }
+        }, leaseMillis / 3, leaseMillis / 3, TimeUnit.MILLISECONDS);
+        try {
+            queue.complete(task, crawl(task));
+        } catch (RuntimeException e) {
+            queue.fail(task, e);
+        } finally {
+            heartbeat.shutdownNow();
+            synchronized (this) {
+                crawledCount++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param lease Time after which a task not touched by its worker is requeued, the workers touch their tasks three times in this
+     *            time, the same lease should be used by all workers and by the coordinator
+     * @return This worker
+     */
+    public FleetWorker setLease(long lease, TimeUnit unit) {
+        if (lease <= 0) {
+            throw new IllegalArgumentException("the lease must be positive");
+        }
+        this.leaseMillis = unit.toMillis(lease);
+        return this;
+    }
+
+    /**
+     * @param pollTime Time waited for new tasks, while other workers still have tasks claimed
+     * @return This worker
+     */
+    public FleetWorker setPollTime(long pollTime, TimeUnit unit) {
+        this.pollMillis = unit.toMillis(pollTime);
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s, crawled=%d]", FleetWorker.class.getSimpleName(), queue, getCrawledCount());
+    }
+
+    /**
+     * @return The snapshot segment of the task
+     */
+    private byte[] crawl(FleetCrawl.Task task) {
+        Database database = Database.connect(task.driver, task.url, task.user, passwords.get(task.alias)).setAlias(task.alias);
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            if (task.isWholeDatabase()) {
+                database.crawl(queue.checkpointOf(task)).writeTo(out);
+            } else {
+                database.crawlSchema(queue.checkpointOf(task), task.catalog, task.schema);
+                database.writeSchemaTo(out, task.catalog, task.schema);
+            }
+            return bytes.toByteArray();
+        } finally {
+            try {
+                database.disconnect();
+            } catch (RuntimeException e) {
+                // nothing to do, the segment was already read
+            }
+        }
+    }
+}
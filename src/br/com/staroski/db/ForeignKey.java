@@ -0,0 +1,164 @@
+package br.com.staroski.db;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import br.com.staroski.IO;
+import br.com.staroski.Utils;
+
+/**
+ * This class represents a table foreign key
+ * 
+ * @author Ricardo Artur Staroski
+ */
+public final class ForeignKey implements Comparable<ForeignKey> {
+
+    static ForeignKey readFrom(DataInputStream in) {
+        String name = IO.readString(in);
+        String referencedCatalog = IO.readString(in);
+        String referencedSchema = IO.readString(in);
+        String referencedTable = IO.readString(in);
+        List<String> columnNames = new LinkedList<String>();
+        List<String> referencedColumnNames = new LinkedList<String>();
+        int columnCount = IO.readInt(in);
+        for (int i = 0; i < columnCount; i++) {
+            columnNames.add(IO.readString(in));
+            referencedColumnNames.add(IO.readString(in));
+        }
+        return new ForeignKey(name, columnNames, referencedCatalog, referencedSchema, referencedTable, referencedColumnNames);
+    }
+
+    private final String name;
+    private final List<String> columnNames;
+    private final String referencedCatalog;
+    private final String referencedSchema;
+    private final String referencedTable;
+    private final List<String> referencedColumnNames;
+
+    ForeignKey(String name, List<String> columnNames, String referencedCatalog, String referencedSchema, String referencedTable,
+               List<String> referencedColumnNames) {
+        this.name = name;
+        this.columnNames = Collections.unmodifiableList(columnNames);
+        this.referencedCatalog = referencedCatalog;
+        this.referencedSchema = referencedSchema;
+        this.referencedTable = referencedTable;
+        this.referencedColumnNames = Collections.unmodifiableList(referencedColumnNames);
+    }
+
+    @Override
+    public int compareTo(ForeignKey other) {
+        if (this == other) {
+            return 0;
+        }
+        if (other == null) {
+            return 1;
+        }
+        if (this.name == null) {
+            return other.name == null ? 0 : -1;
+        }
+        if (other.name == null) {
+            return 1;
+        }
+        return this.name.compareTo(other.name);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (!(obj instanceof ForeignKey)) {
+            return false;
+        }
+        ForeignKey other = (ForeignKey) obj;
+        if (name == null) {
+            if (other.name != null) {
+                return false;
+            }
+        } else if (!name.equals(other.name)) {
+            return false;
+        }
+        return hasSameDefinition(other);
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getReferencedCatalog() {
+        return referencedCatalog;
+    }
+
+    public List<String> getReferencedColumnNames() {
+        return referencedColumnNames;
+    }
+
+    public String getReferencedSchema() {
+        return referencedSchema;
+    }
+
+    public String getReferencedTable() {
+        return referencedTable;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((name == null) ? 0 : name.hashCode());
+        result = prime * result + ((referencedTable == null) ? 0 : referencedTable.hashCode());
+        return result;
+    }
+
+    /**
+     * The referenced catalog and schema are not compared, because the compared databases usually have different schema names
+     */
+    public boolean hasSameDefinition(ForeignKey other) {
+        if (other == null) {
+            return false;
+        }
+        if (!Utils.areEqualsIgnoreCase(referencedTable, other.referencedTable)) {
+            return false;
+        }
+        return sameNames(columnNames, other.columnNames) && sameNames(referencedColumnNames, other.referencedColumnNames);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s]", ForeignKey.class.getSimpleName(), getName());
+    }
+
+    void writeTo(DataOutputStream out) {
+        IO.writeString(out, name);
+        IO.writeString(out, referencedCatalog);
+        IO.writeString(out, referencedSchema);
+        IO.writeString(out, referencedTable);
+        IO.writeInt(out, columnNames.size());
+        for (int i = 0, count = columnNames.size(); i < count; i++) {
+            IO.writeString(out, columnNames.get(i));
+            IO.writeString(out, referencedColumnNames.get(i));
+        }
+    }
+
+    private boolean sameNames(List<String> a, List<String> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0, count = a.size(); i < count; i++) {
+            if (!Utils.areEqualsIgnoreCase(a.get(i), b.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
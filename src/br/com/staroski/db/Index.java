@@ -0,0 +1,141 @@
+package br.com.staroski.db;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+import br.com.staroski.IO;
+
+/**
+ * This class represents a table index or primary key
+ * 
+ * @author Ricardo Artur Staroski
+ */
+public final class Index implements Comparable<Index> {
+
+    static Index readFrom(DataInputStream in) {
+        String name = IO.readString(in);
+        boolean primaryKey = IO.readBoolean(in);
+        boolean unique = IO.readBoolean(in);
+        List<String> columnNames = new LinkedList<String>();
+        int columnCount = IO.readInt(in);
+        for (int i = 0; i < columnCount; i++) {
+            columnNames.add(IO.readString(in));
+        }
+        return new Index(name, primaryKey, unique, columnNames);
+    }
+
+    private final String name;
+    private final boolean primaryKey;
+    private final boolean unique;
+    private final List<String> columnNames;
+
+    Index(String name, boolean primaryKey, boolean unique, List<String> columnNames) {
+        this.name = name;
+        this.primaryKey = primaryKey;
+        this.unique = unique || primaryKey;
+        this.columnNames = Collections.unmodifiableList(columnNames);
+    }
+
+    @Override
+    public int compareTo(Index other) {
+        if (this == other) {
+            return 0;
+        }
+        if (other == null) {
+            return 1;
+        }
+        if (this.name == null) {
+            return other.name == null ? 0 : -1;
+        }
+        if (other.name == null) {
+            return 1;
+        }
+        return this.name.compareTo(other.name);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null) {
+            return false;
+        }
+        if (!(obj instanceof Index)) {
+            return false;
+        }
+        Index other = (Index) obj;
+        if (name == null) {
+            if (other.name != null) {
+                return false;
+            }
+        } else if (!name.equals(other.name)) {
+            return false;
+        }
+        return hasSameDefinition(other);
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public int hashCode() {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((name == null) ? 0 : name.hashCode());
+        result = prime * result + columnNames.hashCode();
+        return result;
+    }
+
+    /**
+     * Two indexes have the same definition when they have the same uniqueness and index the same columns in the same order, no matter their names
+     */
+    public boolean hasSameDefinition(Index other) {
+        if (other == null) {
+            return false;
+        }
+        if (primaryKey != other.primaryKey || unique != other.unique) {
+            return false;
+        }
+        if (columnNames.size() != other.columnNames.size()) {
+            return false;
+        }
+        for (int i = 0, count = columnNames.size(); i < count; i++) {
+            if (!columnNames.get(i).equalsIgnoreCase(other.columnNames.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isPrimaryKey() {
+        return primaryKey;
+    }
+
+    public boolean isUnique() {
+        return unique;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s]", Index.class.getSimpleName(), getName());
+    }
+
+    void writeTo(DataOutputStream out) {
+        IO.writeString(out, name);
+        IO.writeBoolean(out, primaryKey);
+        IO.writeBoolean(out, unique);
+        IO.writeInt(out, columnNames.size());
+        for (String columnName : columnNames) {
+            IO.writeString(out, columnName);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package br.com.staroski.db;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class writes a diff as newline-delimited JSON, one object per line<br>
+ * The first line has the compared schemas, then there is one line per table and the last line has the summary<br>
+ * The items of a table (columns, keys and indexes) are listed only when they are not equal in all schemas
+ * 
+ * @author Ricardo Artur Staroski
+ */
+public final class JsonDiffWriter extends DiffWriter {
+
+    public JsonDiffWriter(OutputStream out) {
+        super(out);
+    }
+
+    public JsonDiffWriter(Writer out) {
+        super(out);
+    }
+
+    @Override
+    protected void writeBegin(List<String> schemaNames) throws IOException {
+        out.write("{\"type\":\"begin\",\"schemas\":[");
+        for (int i = 0; i < schemaNames.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            string(schemaNames.get(i));
+        }
+        out.write("]}\n");
+    }
+
+    @Override
+    protected void writeEnd(int tableCount, int differentCount, int missingCount) throws IOException {
+        out.write("{\"type\":\"end\",\"tables\":");
+        out.write(Integer.toString(tableCount));
+        out.write(",\"different\":");
+        out.write(Integer.toString(differentCount));
+        out.write(",\"missing\":");
+        out.write(Integer.toString(missingCount));
+        out.write(",\"inSync\":");
+        out.write(differentCount == 0 && missingCount == 0 ? "true" : "false");
+        out.write("}\n");
+    }
+
+    @Override
+    protected void writeEntry(DiffEntry entry, List<Item> items) throws IOException {
+        out.write("{\"type\":\"table\",\"name\":");
+        string(entry.tableName);
+        out.write(",\"differences\":");
+        out.write(entry.hasDifferences || hasDifferentItem(items) ? "true" : "false");
+        out.write(",\"status\":[");
+        for (int i = 0, count = entry.tables.size(); i < count; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            string(entry.getStatus(i).name());
+        }
+        out.write(']');
+        if (entry.rename != null) {
+            out.write(",\"rename\":{\"name\":");
+            string(entry.rename.name);
+            out.write(",\"newName\":");
+            string(entry.rename.newName);
+            out.write(",\"similarity\":");
+            out.write(String.format(Locale.ROOT, "%.3f", entry.rename.similarity));
+            out.write('}');
+        }
+        out.write(",\"items\":[");
+        boolean first = true;
+        for (Item item : items) {
+            if (item.isEqual()) {
+                continue;
+            }
+            if (!first) {
+                out.write(',');
+            }
+            first = false;
+            out.write("{\"kind\":");
+            string(item.kind);
+            out.write(",\"name\":");
+            string(item.name);
+            out.write(",\"status\":[");
+            for (int i = 0; i < item.status.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                string(item.status[i].name());
+            }
+            out.write("],\"definitions\":[");
+            for (int i = 0; i < item.definitions.length; i++) {
+                if (i > 0) {
+                    out.write(',');
+                }
+                string(item.definitions[i]);
+            }
+            out.write("]}");
+        }
+        out.write("]}\n");
+    }
+
+    private boolean hasDifferentItem(List<Item> items) {
+        for (Item item : items) {
+            if (!item.isEqual()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void string(String value) throws IOException {
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        out.write('"');
+        for (int i = 0, length = value.length(); i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,314 @@
+package br.com.staroski.db;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class wraps the connections of a {@link Database}, so every query sent through them, by the connection, its {@link DatabaseMetaData}
+ * or its statements:
+ * <ul>
+ * <li>waits for the {@link QueryRateLimiter}s of the database</li>
+ * <li>is retried with backoff when it fails with a transient error, on a new connection if the current one is broken</li>
+ * </ul>
+ * The queries are the metadata methods that return a {@link ResultSet} and the <code>execute</code> methods of the statements, a statement
+ * is prepared again on the new connection with the same parameters, and the new connection receives again the settings of the old one, like
+ * its auto commit mode, catalog and isolation level
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class ManagedConnection {
+
+    /**
+     * The object wrapped by a proxy, that may be replaced by an equivalent one after a reconnection
+     */
+    private abstract static class Handler implements InvocationHandler {
+
+        final ConnectionHandler connection;
+
+        Handler(ConnectionHandler connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("getConnection".equals(method.getName()) && method.getReturnType() == Connection.class) {
+                return connection.proxy;
+            }
+            if (isQuery(method)) {
+                return connection.query(this, method, args);
+            }
+            try {
+                return method.invoke(target(), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        abstract boolean isQuery(Method method);
+
+        /**
+         * @return The wrapped object, created again if the connection was replaced
+         */
+        abstract Object target() throws Throwable;
+    }
+
+    private static final class ConnectionHandler implements InvocationHandler {
+
+        final Database database;
+        final Connection proxy;
+
+        /**
+         * The last call of each setter of the connection, like <code>setAutoCommit</code> or <code>setCatalog</code>, to be made again on a
+         * new connection
+         */
+        private final Map<String, Object[]> settings = new LinkedHashMap<String, Object[]>();
+
+        private volatile Connection target;
+
+        ConnectionHandler(Connection target, Database database) {
+            this.target = target;
+            this.database = database;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] { Connection.class }, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Class<?> returnType = method.getReturnType();
+            if (returnType == DatabaseMetaData.class) {
+                return wrap(returnType, new MetaDataHandler(this));
+            }
+            if (Statement.class.isAssignableFrom(returnType)) {
+                StatementHandler handler = new StatementHandler(this, method, args);
+                handler.target();
+                return wrap(returnType, handler);
+            }
+            Object result;
+            try {
+                result = method.invoke(target, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+            if (isSetting(method)) {
+                synchronized (this) {
+                    String key = method.getName() + (method.getName().equals("setClientInfo") && args[0] instanceof String ? args[0] : "");
+                    settings.remove(key); // the order of the last calls is kept
+                    settings.put(key, new Object[] { method, args });
+                }
+            }
+            return result;
+        }
+
+        Object query(Handler handler, Method method, Object[] args) throws Throwable {
+            for (int attempt = 0;; attempt++) {
+                long start = database.beforeQuery();
+                try {
+                    return method.invoke(handler.target(), args);
+                } catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    if (attempt >= database.getMaxRetries() || !isTransient(cause)) {
+                        throw cause;
+                    }
+                } finally {
+                    database.afterQuery(start);
+                }
+                database.backoff(attempt);
+                reconnectIfBroken();
+            }
+        }
+
+        synchronized void reconnectIfBroken() throws SQLException {
+            if (isValid(target)) {
+                return;
+            }
+            try {
+                target.close();
+            } catch (SQLException e) {
+                // nothing to do, the connection is already broken
+            }
+            Connection connection = database.openRawConnection();
+            try {
+                for (Object[] setting : settings.values()) {
+                    ((Method) setting[0]).invoke(connection, (Object[]) setting[1]);
+                }
+            } catch (InvocationTargetException e) {
+                StatisticsCollector.close(connection);
+                if (e.getCause() instanceof SQLException) {
+                    throw (SQLException) e.getCause();
+                }
+                throw UncheckedException.wrap(e.getCause());
+            } catch (IllegalAccessException e) {
+                StatisticsCollector.close(connection);
+                throw UncheckedException.wrap(e);
+            }
+            target = connection;
+        }
+
+        Connection target() {
+            return target;
+        }
+
+        /**
+         * @return <code>true</code> for the setters of the state of the connection, which a new connection must receive again
+         */
+        private boolean isSetting(Method method) {
+            return method.getName().startsWith("set") && method.getReturnType() == void.class;
+        }
+
+        private boolean isValid(Connection connection) {
+            try {
+                return !connection.isClosed() && connection.isValid(VALIDATION_TIMEOUT);
+            } catch (Throwable t) {
+                return false; // some old drivers don't implement isValid, a failure there means a broken connection too
+            }
+        }
+    }
+
+    private static final class MetaDataHandler extends Handler {
+
+        private Connection owner;
+        private DatabaseMetaData metaData;
+
+        MetaDataHandler(ConnectionHandler connection) {
+            super(connection);
+        }
+
+        @Override
+        boolean isQuery(Method method) {
+            return method.getReturnType() == ResultSet.class;
+        }
+
+        @Override
+        synchronized DatabaseMetaData target() throws SQLException {
+            Connection current = connection.target();
+            if (owner != current) {
+                metaData = current.getMetaData();
+                owner = current;
+            }
+            return metaData;
+        }
+    }
+
+    private static final class StatementHandler extends Handler {
+
+        private final Method factory;
+        private final Object[] factoryArgs;
+
+        /**
+         * The parameters and batches given to the statement, to be given again to a new one
+         */
+        private final List<Object[]> calls = new ArrayList<Object[]>();
+
+        private Connection owner;
+        private Statement statement;
+
+        StatementHandler(ConnectionHandler connection, Method factory, Object[] factoryArgs) {
+            super(connection);
+            this.factory = factory;
+            this.factoryArgs = factoryArgs;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.startsWith("set") || name.startsWith("add") || name.startsWith("clear")) {
+                synchronized (this) {
+                    calls.add(new Object[] { method, args });
+                }
+            }
+            return super.invoke(proxy, method, args);
+        }
+
+        @Override
+        boolean isQuery(Method method) {
+            return method.getName().startsWith("execute");
+        }
+
+        @Override
+        synchronized Statement target() throws Throwable {
+            Connection current = connection.target();
+            if (owner != current) {
+                if (statement != null) {
+                    close(statement);
+                }
+                try {
+                    statement = (Statement) factory.invoke(current, factoryArgs);
+                    for (Object[] call : calls) {
+                        ((Method) call[0]).invoke(statement, (Object[]) call[1]);
+                    }
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+                owner = current;
+            }
+            return statement;
+        }
+
+        private void close(Statement statement) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                // nothing to do, it belongs to the broken connection
+            }
+        }
+    }
+
+    private static final int VALIDATION_TIMEOUT = 5;
+
+    /**
+     * @return <code>true</code> if the given error is a lost connection, a timeout or any other failure that may not happen again
+     */
+    static boolean isTransient(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTransientException || cause instanceof SQLRecoverableException
+                    || cause instanceof SQLNonTransientConnectionException || cause instanceof IOException) {
+                return true;
+            }
+            if (cause instanceof SQLException) {
+                String state = ((SQLException) cause).getSQLState();
+                if (state != null && state.startsWith("08")) { // connection exception
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Replaces the connection wrapped by the given one if it is broken, the statements created from it are prepared again when used
+     */
+    static void reconnectIfBroken(Connection connection) throws SQLException {
+        if (connection != null && Proxy.isProxyClass(connection.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(connection);
+            if (handler instanceof ConnectionHandler) {
+                ((ConnectionHandler) handler).reconnectIfBroken();
+            }
+        }
+    }
+
+    static Connection wrap(Connection connection, Database database) {
+        return new ConnectionHandler(connection, database).proxy;
+    }
+
+    private static Object wrap(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private ManagedConnection() {}
+}
@@ -0,0 +1,41 @@
+package br.com.staroski.db;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * This class limits the memory that concurrent tasks may reserve together<br>
+ * The amounts are estimates made by the callers, a reservation larger than the whole budget is reduced to the budget, so it still runs, but
+ * alone
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class MemoryBudget {
+
+    private static final int KILOBYTE = 1024;
+
+    private final Semaphore kilobytes;
+    private final int capacity;
+
+    MemoryBudget(long bytes) {
+        if (bytes < KILOBYTE) {
+            throw new IllegalArgumentException("the memory budget must be at least " + KILOBYTE + " bytes: " + bytes);
+        }
+        this.capacity = (int) Math.min(Integer.MAX_VALUE, bytes / KILOBYTE);
+        this.kilobytes = new Semaphore(capacity, true);
+    }
+
+    /**
+     * Blocks until the given amount is available
+     *
+     * @return The amount actually reserved, that must be given back to {@link #release(int)}
+     */
+    int reserve(long bytes) throws InterruptedException {
+        int amount = (int) Math.max(1, Math.min(capacity, (bytes + KILOBYTE - 1) / KILOBYTE));
+        kilobytes.acquire(amount);
+        return amount;
+    }
+
+    void release(int reserved) {
+        kilobytes.release(reserved);
+    }
+}
@@ -0,0 +1,135 @@
+package br.com.staroski.db;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import br.com.staroski.Utils;
+
+/**
+ * This class compares some {@link TableSource sorted table sources} in a single linear pass<br>
+ * All sources are advanced in lockstep, as in a k-way merge, so at any time only the current table of each source is in memory<br>
+ * Each call to {@link #next()} returns the {@link DiffEntry} of the smallest table name not compared yet
+ * 
+ * @author Ricardo Artur Staroski
+ */
+public final class MergeDiff implements Iterator<DiffEntry>, Closeable {
+
+    private final DiffFilter filter;
+    private final List<TableSource> sources;
+    private final Table[] heads;
+    private final String[] lastNames;
+    private final SchemaDiff renames;
+
+    public MergeDiff(DiffFilter filter, List<? extends TableSource> sources) {
+        this(filter, sources, null);
+    }
+
+    public MergeDiff(DiffFilter filter, TableSource source, TableSource... moreSources) {
+        this(filter, Utils.asList(source, moreSources));
+    }
+
+    /**
+     * @param renames The diff of the schemas of the sources, which gives the renames of the tables, <code>null</code> if none
+     */
+    MergeDiff(DiffFilter filter, List<? extends TableSource> sources, SchemaDiff renames) {
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("at least one source is required");
+        }
+        this.filter = filter != null ? filter : new DiffFilter();
+        this.sources = new ArrayList<TableSource>(sources);
+        this.heads = new Table[sources.size()];
+        this.lastNames = new String[sources.size()];
+        this.renames = renames;
+        try {
+            for (int i = 0; i < heads.length; i++) {
+                advance(i);
+            }
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Closes all sources
+     */
+    @Override
+    public void close() {
+        for (TableSource source : sources) {
+            source.close();
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        for (Table head : heads) {
+            if (head != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public DiffEntry next() {
+        String tableName = null;
+        for (Table head : heads) {
+            if (head != null && (tableName == null || head.getName().compareTo(tableName) < 0)) {
+                tableName = head.getName();
+            }
+        }
+        if (tableName == null) {
+            throw new NoSuchElementException();
+        }
+        List<Table> tables = new ArrayList<Table>(heads.length);
+        for (int i = 0; i < heads.length; i++) {
+            Table head = heads[i];
+            if (head != null && tableName.equals(head.getName())) {
+                tables.add(head);
+                advance(i);
+            } else {
+                tables.add(null);
+            }
+        }
+        if (renames == null) {
+            return new DiffEntry(filter, tableName, tables);
+        }
+        return new DiffEntry(filter, tableName, tables, renames.getTableRename(tableName), renames.getRenameThreshold());
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Moves the given source to its next accepted table, skipping the tables with a name already seen, as {@link SchemaDiff} compares a
+     * name only once
+     */
+    private void advance(int index) {
+        TableSource source = sources.get(index);
+        heads[index] = null;
+        while (source.hasNext()) {
+            Table table = source.next();
+            String name = table.getName();
+            String lastName = lastNames[index];
+            if (lastName != null) {
+                int order = name.compareTo(lastName);
+                if (order < 0) {
+                    throw new IllegalStateException(String.format("source %d is not sorted by name: %s comes after %s", index, name, lastName));
+                }
+                if (order == 0) {
+                    continue;
+                }
+            }
+            lastNames[index] = name;
+            if (filter.acceptTable(name)) {
+                heads[index] = table;
+                return;
+            }
+        }
+    }
+}
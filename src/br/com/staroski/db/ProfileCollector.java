@@ -0,0 +1,182 @@
+package br.com.staroski.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import br.com.staroski.Utils;
+
+/**
+ * This class collects the {@link TableProfile} of all tables of a database<br>
+ * Each table is read once, by a <code>SELECT *</code> streamed through at most <code>maxConnections</code> parallel connections, and only
+ * the summaries of its columns are kept, the large objects are not profiled<br>
+ * The connections do not auto commit, some drivers, like the PostgreSQL one, ignore the fetch size otherwise and read the whole table into
+ * memory, each table is read in its own transaction, which is rolled back<br>
+ * Like the {@link StatisticsCollector}, only base tables are profiled and no table is read while the {@link QueryRateLimiter} of the
+ * database is overloaded
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class ProfileCollector {
+
+    private static final int FETCH_SIZE = 1000;
+
+    private static boolean isLargeObject(int javaSqlType) {
+        switch (javaSqlType) {
+            case Types.BLOB:
+            case Types.CLOB:
+            case Types.NCLOB:
+            case Types.LONGVARBINARY:
+            case Types.LONGVARCHAR:
+            case Types.LONGNVARCHAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private final Database database;
+    private final int maxConnections;
+    private final int maxRowsPerTable;
+    private final BlockingQueue<Connection> connections = new LinkedBlockingQueue<Connection>();
+
+    /**
+     * @param maxRowsPerTable Maximum number of rows read from each table, 0 reads all rows
+     */
+    ProfileCollector(Database database, int maxConnections, int maxRowsPerTable) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        if (maxRowsPerTable < 0) {
+            throw new IllegalArgumentException("maxRowsPerTable can't be negative");
+        }
+        this.database = database;
+        this.maxConnections = maxConnections;
+        this.maxRowsPerTable = maxRowsPerTable;
+    }
+
+    Future<Database> start() {
+        FutureTask<Database> task = new FutureTask<Database>(new Callable<Database>() {
+
+            @Override
+            public Database call() throws Exception {
+                collect();
+                return database;
+            }
+        });
+        new DaemonThreadFactory("profiles-" + database.getAlias()).newThread(task).start();
+        return task;
+    }
+
+    private void collect() throws SQLException {
+        ExecutorService executor = Executors.newFixedThreadPool(maxConnections, new DaemonThreadFactory("profile-" + database.getAlias()));
+        Connection connection = database.openConnection();
+        try {
+            List<Future<?>> profiles = new LinkedList<Future<?>>();
+            DatabaseMetaData metaData = connection.getMetaData();
+            for (final String catalogName : StatisticsCollector.listCatalogs(metaData)) {
+                for (final String schemaName : StatisticsCollector.listSchemas(metaData, catalogName)) {
+                    ResultSet result = metaData.getTables(catalogName, schemaName, null, new String[] { "TABLE" });
+                    try {
+                        while (result.next()) {
+                            if (!Utils.areEqualsIgnoreCase(schemaName, result.getString("TABLE_SCHEM"))) {
+                                continue;
+                            }
+                            final String tableName = result.getString("TABLE_NAME");
+                            final String qualifiedName = StatisticsCollector.qualifiedName(metaData, catalogName, schemaName, tableName);
+                            profiles.add(executor.submit(new Runnable() {
+
+                                @Override
+                                public void run() {
+                                    profile(catalogName, schemaName, tableName, qualifiedName);
+                                }
+                            }));
+                        }
+                    } finally {
+                        result.close();
+                    }
+                }
+            }
+            for (Future<?> profile : profiles) {
+                StatisticsCollector.waitFor(profile);
+            }
+        } finally {
+            executor.shutdownNow();
+            StatisticsCollector.close(connection);
+            for (Connection pooled : connections) {
+                StatisticsCollector.close(pooled);
+            }
+        }
+    }
+
+    private void profile(String catalogName, String schemaName, String tableName, String qualifiedName) {
+        if (database.isOverloaded()) {
+            return; // load shedding, the profiles are optional and the server is already too slow for the metadata queries
+        }
+        Connection connection = connections.poll();
+        try {
+            if (connection == null) {
+                connection = database.openConnection();
+                connection.setAutoCommit(false);
+            }
+            Statement statement = connection.createStatement();
+            try {
+                statement.setFetchSize(FETCH_SIZE);
+                statement.setMaxRows(maxRowsPerTable);
+                ResultSet result = statement.executeQuery("SELECT * FROM " + qualifiedName);
+                try {
+                    database.putProfile(catalogName, schemaName, tableName, profile(result));
+                } finally {
+                    result.close();
+                }
+            } finally {
+                statement.close();
+            }
+            connection.rollback(); // only read, ends the transaction so the server does not keep its snapshot
+            connections.offer(connection);
+        } catch (SQLException e) {
+            // the table is left without a profile, usually it can't be read by this user
+            if (connection != null) {
+                StatisticsCollector.close(connection); // the connection may be broken, or in an aborted transaction, it is not reused
+            }
+        }
+    }
+
+    private TableProfile profile(ResultSet result) throws SQLException {
+        ResultSetMetaData metaData = result.getMetaData();
+        int columnCount = metaData.getColumnCount();
+        ColumnProfile[] profiles = new ColumnProfile[columnCount + 1];
+        Map<String, ColumnProfile> columns = new LinkedHashMap<String, ColumnProfile>();
+        for (int i = 1; i <= columnCount; i++) {
+            if (!isLargeObject(metaData.getColumnType(i))) {
+                profiles[i] = new ColumnProfile();
+                columns.put(metaData.getColumnName(i), profiles[i]);
+            }
+        }
+        long rowCount = 0;
+        while (result.next()) {
+            rowCount++;
+            for (int i = 1; i <= columnCount; i++) {
+                if (profiles[i] != null) {
+                    profiles[i].add(result.getObject(i));
+                }
+            }
+        }
+        return new TableProfile(columns, maxRowsPerTable > 0 && rowCount >= maxRowsPerTable);
+    }
+}
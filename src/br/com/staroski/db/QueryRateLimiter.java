@@ -0,0 +1,154 @@
+package br.com.staroski.db;
+
+import java.util.concurrent.TimeUnit;
+
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class limits the rate of the metadata and statistics queries sent to a database server, see {@link Database#setRateLimiter(QueryRateLimiter)}
+ * and {@link Database#setHostRateLimiter(String, QueryRateLimiter)}<br>
+ * It is a token bucket that holds up to <code>burst</code> queries and is refilled at the current rate, which adapts to the latency of the
+ * queries: while the average latency stays below the target the rate grows back to the maximum, above the target it is cut down to the
+ * minimum<br>
+ * A limiter that is at its minimum rate and still above the target latency is overloaded, and the optional queries, like the row counts, are
+ * skipped
+ *
+ * @author Ricardo Artur Staroski
+ */
+public final class QueryRateLimiter {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /**
+     * Weight of the latest query in the average latency
+     */
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private static final double DECREASE_FACTOR = 0.7;
+    private static final double INCREASE_FRACTION = 0.05;
+
+    private final double maxRate;
+    private final int burst;
+
+    private double minRate;
+    private long targetLatency = TimeUnit.MILLISECONDS.toNanos(250);
+
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private double averageLatency = -1;
+    private long lastDecrease;
+
+    /**
+     * @param queriesPerSecond The maximum rate
+     * @param burst How many queries can be sent at once after the limiter has been idle
+     */
+    public QueryRateLimiter(double queriesPerSecond, int burst) {
+        if (queriesPerSecond <= 0) {
+            throw new IllegalArgumentException("the rate must be positive: " + queriesPerSecond);
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("the burst must be at least 1: " + burst);
+        }
+        this.maxRate = queriesPerSecond;
+        this.minRate = queriesPerSecond / 10;
+        this.burst = burst;
+        this.rate = queriesPerSecond;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+        this.lastDecrease = lastRefill;
+    }
+
+    /**
+     * @return The average latency of the queries, in milliseconds, or -1 if no query has been sent yet
+     */
+    public synchronized double getAverageLatency() {
+        return averageLatency < 0 ? -1 : averageLatency / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return The current rate, in queries per second
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    public synchronized boolean isOverloaded() {
+        return targetLatency > 0 && rate <= minRate && averageLatency > targetLatency;
+    }
+
+    /**
+     * @param queriesPerSecond The rate is never reduced below this one, by default a tenth of the maximum rate
+     */
+    public synchronized QueryRateLimiter setMinRate(double queriesPerSecond) {
+        if (queriesPerSecond <= 0 || queriesPerSecond > maxRate) {
+            throw new IllegalArgumentException("the minimum rate must be positive and not above the maximum rate: " + queriesPerSecond);
+        }
+        this.minRate = queriesPerSecond;
+        this.rate = Math.max(rate, minRate);
+        return this;
+    }
+
+    /**
+     * @param latency The average latency above which the rate is reduced, 250 milliseconds by default, 0 keeps the maximum rate always
+     */
+    public synchronized QueryRateLimiter setTargetLatency(long latency, TimeUnit unit) {
+        this.targetLatency = unit.toNanos(latency);
+        if (targetLatency <= 0) {
+            rate = maxRate;
+        }
+        return this;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s[rate=%.2f/s, max=%.2f/s, latency=%.1fms]", QueryRateLimiter.class.getSimpleName(), rate, maxRate,
+                getAverageLatency());
+    }
+
+    /**
+     * Blocks until the next query may be sent
+     */
+    void acquire() {
+        long wait;
+        synchronized (this) {
+            refill(System.nanoTime());
+            tokens -= 1; // a negative balance reserves the next tokens, so the waiting queries keep their order
+            wait = tokens >= 0 ? 0 : (long) (-tokens / rate * NANOS_PER_SECOND);
+        }
+        if (wait > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw UncheckedException.wrap(e);
+            }
+        }
+    }
+
+    /**
+     * Adapts the rate to the latency of a query that has been sent
+     */
+    synchronized void record(long latency) {
+        averageLatency = averageLatency < 0 ? latency : averageLatency * (1 - LATENCY_WEIGHT) + latency * LATENCY_WEIGHT;
+        if (targetLatency <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        refill(now);
+        if (averageLatency > targetLatency) {
+            // cut at most once per latency, the queries already sent are not a new signal
+            if (now - lastDecrease >= averageLatency) {
+                rate = Math.max(minRate, rate * DECREASE_FACTOR);
+                lastDecrease = now;
+            }
+        } else {
+            rate = Math.min(maxRate, rate + maxRate * INCREASE_FRACTION);
+        }
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate / NANOS_PER_SECOND);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,54 @@
+package br.com.staroski.db;
+
+/**
+ * This class represents a table, or a column, that was probably renamed: a name missing where the other name exists, and vice versa,
+ * with similar definitions
+ *
+ * @author Ricardo Artur Staroski
+ * @see SchemaDiff#getTableRenames()
+ * @see TableDiff#getColumnRenames()
+ */
+public final class Rename {
+
+    /**
+     * The name found in the first compared schema, or table, that has one of the names
+     */
+    public final String name;
+
+    /**
+     * The name that replaces {@link #name} in the others
+     */
+    public final String newName;
+
+    /**
+     * The similarity of the definitions, from 0 to 1, the Jaccard index of the columns of the tables, or of the parts of the names of the
+     * columns
+     */
+    public final double similarity;
+
+    Rename(String name, String newName, double similarity) {
+        this.name = name;
+        this.newName = newName;
+        this.similarity = similarity;
+    }
+
+    /**
+     * @return The other name of this rename, {@link #newName} for {@link #name} and vice versa
+     */
+    public String otherName(String name) {
+        return this.name.equals(name) ? newName : this.name;
+    }
+
+    /**
+     * @return How the given name was renamed, like <code>renamed to NEW_NAME (92%)</code>, to be shown where it is missing
+     */
+    String describe(String name) {
+        String direction = this.name.equals(name) ? "renamed to " : "renamed from ";
+        return String.format("%s%s (%.0f%%)", direction, otherName(name), similarity * 100);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[%s -> %s, %.0f%%]", Rename.class.getSimpleName(), name, newName, similarity * 100);
+    }
+}
@@ -0,0 +1,229 @@
+package br.com.staroski.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This class pairs the names missing in some of the compared schemas, or tables, with the names that exist only there, when their
+ * definitions are similar<br>
+ * Each name has a set of features, like the columns of a table, summarized by a MinHash signature, and the signatures are split in bands
+ * hashed to buckets (locality sensitive hashing), so only the names that share a bucket are compared, in near linear time, instead of all
+ * pairs<br>
+ * The candidates are confirmed by the exact Jaccard index of their features and each name takes part in at most one rename, the most
+ * similar one
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class RenameDetector {
+
+    static final double DEFAULT_THRESHOLD = 0.8;
+
+    private static final int HASH_COUNT = 128;
+
+    /**
+     * A fixed seed for each hash function, so the same schemas always give the same renames
+     */
+    private static final long[] SEEDS = new long[HASH_COUNT];
+
+    static {
+        long seed = 0x5DEECE66DL;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            seed = mix(seed + i);
+            SEEDS[i] = seed;
+        }
+    }
+
+    /**
+     * @return The features of a column name: its trigrams, with marks at the start and at the end, and its type
+     */
+    static int[] columnFeatures(Column column) {
+        String name = "^" + column.getName().toLowerCase() + "$";
+        List<String> features = new ArrayList<String>();
+        for (int i = 0; i + 3 <= name.length(); i++) {
+            features.add(name.substring(i, i + 3));
+        }
+        features.add("type:" + column.getTypeCode());
+        return features(features);
+    }
+
+    /**
+     * @return The features of a table: the name and type of each column accepted by the filter
+     */
+    static int[] tableFeatures(Table table, DiffFilter filter) {
+        List<String> features = new ArrayList<String>();
+        for (Column column : table.getColumns()) {
+            if (filter.acceptColumn(column.getName())) {
+                features.add(column.getName().toLowerCase() + ":" + column.getTypeCode());
+            }
+        }
+        return features(features);
+    }
+
+    /**
+     * @return The distinct hashes of the given features, sorted
+     */
+    private static int[] features(Collection<String> features) {
+        int[] hashes = new int[features.size()];
+        int count = 0;
+        for (String feature : features) {
+            hashes[count++] = (int) mix(feature.hashCode());
+        }
+        Arrays.sort(hashes);
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            if (distinct == 0 || hashes[distinct - 1] != hashes[i]) {
+                hashes[distinct++] = hashes[i];
+            }
+        }
+        return Arrays.copyOf(hashes, distinct);
+    }
+
+    private static double jaccard(int[] a, int[] b) {
+        int common = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length;) {
+            if (a[i] == b[j]) {
+                common++;
+                i++;
+                j++;
+            } else if (a[i] < b[j]) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return (double) common / (a.length + b.length - common);
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 30)) * 0xBF58476D1CE4E5B9L;
+        value = (value ^ (value >>> 27)) * 0x94D049BB133111EBL;
+        return value ^ (value >>> 31);
+    }
+
+    private final double threshold;
+    private final int rowsPerBand;
+
+    private final List<String> names = new ArrayList<String>();
+    private final List<BitSet> presences = new ArrayList<BitSet>();
+    private final List<int[]> featureSets = new ArrayList<int[]>();
+
+    /**
+     * @param threshold The minimum Jaccard index of a rename, from 0 (exclusive) to 1
+     */
+    RenameDetector(double threshold) {
+        if (threshold <= 0 || threshold > 1) {
+            throw new IllegalArgumentException("the threshold must be greater than 0 and at most 1: " + threshold);
+        }
+        this.threshold = threshold;
+        // the more rows per band, the fewer candidates, the bands are chosen to find almost every pair a bit below the threshold
+        int rows = 1;
+        for (int r = 2; r <= HASH_COUNT; r *= 2) {
+            double bandThreshold = Math.pow(1.0 / (HASH_COUNT / r), 1.0 / r);
+            if (bandThreshold > threshold - 0.1) {
+                break;
+            }
+            rows = r;
+        }
+        this.rowsPerBand = rows;
+    }
+
+    /**
+     * @param presence The indexes of the schemas, or tables, where the name exists
+     */
+    void add(String name, BitSet presence, int[] features) {
+        if (features.length > 0) {
+            names.add(name);
+            presences.add(presence);
+            featureSets.add(features);
+        }
+    }
+
+    /**
+     * @return The renames found, from the most to the least similar
+     */
+    List<Rename> detect() {
+        int count = names.size();
+        int[][] signatures = new int[count][];
+        for (int i = 0; i < count; i++) {
+            signatures[i] = signature(featureSets.get(i));
+        }
+        final List<Rename> candidates = new ArrayList<Rename>();
+        Set<Long> compared = new HashSet<Long>();
+        for (int band = 0; band < HASH_COUNT / rowsPerBand; band++) {
+            Map<Long, List<Integer>> buckets = new HashMap<Long, List<Integer>>();
+            for (int i = 0; i < count; i++) {
+                long key = band;
+                for (int row = band * rowsPerBand; row < (band + 1) * rowsPerBand; row++) {
+                    key = mix(key * 31 + signatures[i][row]);
+                }
+                List<Integer> bucket = buckets.get(key);
+                if (bucket == null) {
+                    bucket = new ArrayList<Integer>(2);
+                    buckets.put(key, bucket);
+                }
+                for (int j : bucket) {
+                    if (!presences.get(i).intersects(presences.get(j)) && compared.add((long) j * count + i)) {
+                        addCandidate(candidates, j, i);
+                    }
+                }
+                bucket.add(i);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Rename>() {
+
+            @Override
+            public int compare(Rename a, Rename b) {
+                int diff = Double.compare(b.similarity, a.similarity);
+                if (diff == 0) {
+                    diff = a.name.compareTo(b.name);
+                }
+                return diff == 0 ? a.newName.compareTo(b.newName) : diff;
+            }
+        });
+        List<Rename> renames = new ArrayList<Rename>();
+        Set<String> paired = new HashSet<String>();
+        for (Rename candidate : candidates) {
+            if (!paired.contains(candidate.name) && !paired.contains(candidate.newName)) {
+                paired.add(candidate.name);
+                paired.add(candidate.newName);
+                renames.add(candidate);
+            }
+        }
+        return renames;
+    }
+
+    private void addCandidate(List<Rename> candidates, int a, int b) {
+        double similarity = jaccard(featureSets.get(a), featureSets.get(b));
+        if (similarity < threshold) {
+            return;
+        }
+        // the old name is the one in the first schema that has any of them
+        boolean aFirst = presences.get(a).nextSetBit(0) < presences.get(b).nextSetBit(0);
+        int first = aFirst ? a : b;
+        int second = aFirst ? b : a;
+        candidates.add(new Rename(names.get(first), names.get(second), similarity));
+    }
+
+    private int[] signature(int[] features) {
+        int[] signature = new int[HASH_COUNT];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (int feature : features) {
+            for (int i = 0; i < HASH_COUNT; i++) {
+                int hash = (int) mix(feature ^ SEEDS[i]);
+                if (hash < signature[i]) {
+                    signature[i] = hash;
+                }
+            }
+        }
+        return signature;
+    }
+}
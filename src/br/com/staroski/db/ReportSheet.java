@@ -0,0 +1,89 @@
+package br.com.staroski.db;
+
+import java.io.IOException;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.ss.util.CellRangeAddress;
+
+/**
+ * This class receives the cells of a sheet of the excel report<br>
+ * The cells are written in order, line after line and column after column, and the column widths and frozen rows are set before the first
+ * cell, so a sheet can be streamed to a file instead of kept in memory
+ *
+ * @author Ricardo Artur Staroski
+ */
+abstract class ReportSheet {
+
+    /**
+     * A sheet of an excel 97 workbook
+     */
+    private static final class WorkbookSheet extends ReportSheet {
+
+        private final Sheet sheet;
+        private final ExcelStyles styles;
+        private Row row;
+
+        WorkbookSheet(Sheet sheet, ExcelStyles styles) {
+            this.sheet = sheet;
+            this.styles = styles;
+        }
+
+        @Override
+        void freezeRows(int rows) {
+            sheet.createFreezePane(0, rows);
+        }
+
+        @Override
+        void merge(int line, int firstColumn, int lastColumn) {
+            sheet.addMergedRegion(new CellRangeAddress(line, line, firstColumn, lastColumn));
+        }
+
+        @Override
+        void setColumnWidth(int column, int width) {
+            sheet.setColumnWidth(column, width * 256);
+        }
+
+        @Override
+        void writeCell(int line, int column, int style, Object value) {
+            if (row == null || row.getRowNum() != line) {
+                row = sheet.createRow(line);
+            }
+            Cell cell = row.createCell(column);
+            cell.setCellStyle(styles.get(style));
+            if (value instanceof Number) {
+                cell.setCellValue(((Number) value).doubleValue());
+            } else if (value != null) {
+                cell.setCellValue(value.toString());
+            }
+        }
+    }
+
+    /**
+     * @return A report sheet that writes to the given sheet of an excel 97 workbook
+     */
+    static ReportSheet of(Sheet sheet, ExcelStyles styles) {
+        return new WorkbookSheet(sheet, styles);
+    }
+
+    /**
+     * Finishes the sheet, no cell is written after it
+     */
+    void close() throws IOException {}
+
+    abstract void freezeRows(int rows);
+
+    abstract void merge(int line, int firstColumn, int lastColumn);
+
+    /**
+     * @param width The width in characters
+     */
+    abstract void setColumnWidth(int column, int width);
+
+    /**
+     * @param style One of the styles of {@link ExcelStyles}
+     * @param value A text, a number, or <code>null</code> for a cell with only the style
+     */
+    abstract void writeCell(int line, int column, int style, Object value);
+}
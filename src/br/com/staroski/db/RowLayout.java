@@ -0,0 +1,90 @@
+package br.com.staroski.db;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * This class keeps the column offsets of a report row made of one block of cells per compared schema<br>
+ * The layouts depend only on the number of schemas and on the block width, so they are computed once and shared by every sheet and workbook
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class RowLayout {
+
+    private static final ConcurrentMap<Long, RowLayout> LAYOUTS = new ConcurrentHashMap<Long, RowLayout>();
+
+    static RowLayout of(int blockCount, int blockWidth) {
+        Long key = ((long) blockCount << 32) | blockWidth;
+        RowLayout layout = LAYOUTS.get(key);
+        if (layout == null) {
+            layout = new RowLayout(blockCount, blockWidth);
+            RowLayout existing = LAYOUTS.putIfAbsent(key, layout);
+            if (existing != null) {
+                layout = existing;
+            }
+        }
+        return layout;
+    }
+
+    final int blockCount;
+    final int blockWidth;
+    final int lastColumn;
+
+    private final int[] firstColumns;
+
+    private RowLayout(int blockCount, int blockWidth) {
+        this.blockCount = blockCount;
+        this.blockWidth = blockWidth;
+        this.lastColumn = blockCount * blockWidth - 1;
+        this.firstColumns = new int[blockCount];
+        for (int block = 0; block < blockCount; block++) {
+            firstColumns[block] = block * blockWidth;
+        }
+    }
+
+    void mergeBlock(ReportSheet sheet, int line, int block) {
+        int first = firstColumns[block];
+        sheet.merge(line, first, first + blockWidth - 1);
+    }
+
+    /**
+     * Merges the last <code>count</code> cells of the given block
+     */
+    void mergeBlockTail(ReportSheet sheet, int line, int block, int count) {
+        int last = firstColumns[block] + blockWidth - 1;
+        sheet.merge(line, last - count + 1, last);
+    }
+
+    void mergeRow(ReportSheet sheet, int line) {
+        sheet.merge(line, 0, lastColumn);
+    }
+
+    void setColumnWidths(ReportSheet sheet, int[] widths) {
+        for (int block = 0; block < blockCount; block++) {
+            for (int i = 0; i < widths.length; i++) {
+                sheet.setColumnWidth(firstColumns[block] + i, widths[i]);
+            }
+        }
+    }
+
+    /**
+     * Writes the cells of the given block with the given style, the cells without a value get only the style
+     *
+     * @param style One of the styles of {@link ExcelStyles}
+     */
+    void writeBlock(ReportSheet sheet, int line, int block, int style, Object... values) {
+        int column = firstColumns[block];
+        for (int i = 0; i < blockWidth; i++) {
+            sheet.writeCell(line, column + i, style, i < values.length ? values[i] : null);
+        }
+    }
+
+    /**
+     * Writes all cells of the row with the given style, the values of the first block are repeated in every block
+     */
+    void writeRepeated(ReportSheet sheet, int line, int style, String... values) {
+        for (int block = 0; block < blockCount; block++) {
+            writeBlock(sheet, line, block, style, (Object[]) values);
+        }
+    }
+}
@@ -1,13 +1,15 @@
 package br.com.staroski.db;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -23,14 +25,26 @@ import br.com.staroski.Utils;
  */
 public final class Schema {
 
-    static Schema readFrom(DataInputStream in) {
+    static List<Table> sortedByName(List<Table> tables) {
+        List<Table> sorted = new ArrayList<Table>(tables);
+        Collections.sort(sorted, new Comparator<Table>() {
+
+            @Override
+            public int compare(Table a, Table b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return sorted;
+    }
+
+    static Schema readFrom(DataInputStream in, int version) {
         String name = IO.readString(in);
         List<Table> tables = new LinkedList<Table>();
         Map<String, Table> tableMap = new HashMap<String, Table>();
         Schema schema = new Schema(name, tables, tableMap);
         int tableCount = IO.readInt(in);
         for (int i = 0; i < tableCount; i++) {
-            Table table = Table.readFrom(in).setSchema(schema);
+            Table table = Table.readFrom(in, version).setSchema(schema);
             tables.add(table);
             tableMap.put(table.getName(), table);
         }
@@ -44,7 +58,7 @@ public final class Schema {
     private List<Table> tables;
     private Map<String, Table> tableMap;
 
-    private Schema(String name, List<Table> tables, Map<String, Table> tableMap) {
+    Schema(String name, List<Table> tables, Map<String, Table> tableMap) {
         this.name = name;
         this.tables = Collections.unmodifiableList(tables);
         this.tableMap = tableMap;
@@ -67,6 +81,23 @@ public final class Schema {
         return new SchemaDiff(filter, schemas);
     }
 
+    /**
+     * Like {@link #compareWith(DiffFilter, Collection)}, but the {@link SchemaDiff#iterator() iterator} of the diff, which the exporters walk,
+     * compares the tables in a {@link MergeDiff}, keeping in memory at most the given number of bytes of their definitions and spilling the
+     * rest to temporary files, so schemas with more tables than fit in the heap are compared
+     *
+     * @param memoryBudget Maximum number of bytes of the tables kept in memory, an estimate, shared by all schemas, at least 1024 by schema
+     */
+    public SchemaDiff compareWith(DiffFilter filter, Collection<Schema> otherSchemas, long memoryBudget) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("the memory budget must be positive: " + memoryBudget);
+        }
+        List<Schema> schemas = new LinkedList<Schema>();
+        schemas.add(this);
+        schemas.addAll(otherSchemas);
+        return new SchemaDiff(filter, schemas, memoryBudget);
+    }
+
     public SchemaDiff compareWith(Schema other, Schema... moreSchemas) {
         return compareWith(null, other, moreSchemas);
     }
@@ -75,6 +106,39 @@ public final class Schema {
         return compareWith(filter, Utils.asList(other, moreSchemas));
     }
 
+    public DiffPublisher streamDiffWith(Collection<Schema> otherSchemas) {
+        return streamDiffWith(null, otherSchemas);
+    }
+
+    /**
+     * Unlike {@link #compareWith(DiffFilter, Collection)}, nothing is compared up front, the tables are compared one by one as the returned
+     * publisher is consumed and no comparison is kept in memory
+     */
+    public DiffPublisher streamDiffWith(final DiffFilter filter, Collection<Schema> otherSchemas) {
+        final List<Schema> schemas = new LinkedList<Schema>();
+        schemas.add(this);
+        schemas.addAll(otherSchemas);
+        return new DiffPublisher(new Iterable<DiffEntry>() {
+
+            @Override
+            public Iterator<DiffEntry> iterator() {
+                List<TableSource> sources = new LinkedList<TableSource>();
+                for (Schema schema : schemas) {
+                    sources.add(schema.tableSource());
+                }
+                return new MergeDiff(filter, sources);
+            }
+        }, null);
+    }
+
+    public DiffPublisher streamDiffWith(Schema other, Schema... moreSchemas) {
+        return streamDiffWith(null, other, moreSchemas);
+    }
+
+    public DiffPublisher streamDiffWith(DiffFilter filter, Schema other, Schema... moreSchemas) {
+        return streamDiffWith(filter, Utils.asList(other, moreSchemas));
+    }
+
     public boolean contains(String tableName) {
         return getTable(tableName) != null;
     }
@@ -126,23 +190,76 @@ public final class Schema {
         return tables;
     }
 
+    /**
+     * @return The tables of this schema in ascending name order, the columns of each table are read only when it is reached and are not kept
+     *         by this schema
+     */
+    public TableSource tableSource() {
+        final Iterator<Table> tables = sortedByName(getTables()).iterator();
+        return new TableSource() {
+
+            @Override
+            public void close() {}
+
+            @Override
+            public boolean hasNext() {
+                return tables.hasNext();
+            }
+
+            @Override
+            public Table next() {
+                return tables.next().detach();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     @Override
     public String toString() {
         String schemaName = getName();
         return String.format("%s[%s]", Schema.class.getSimpleName(), schemaName == null ? "<unnamed>" : schemaName);
     }
 
-    Schema setCatalog(Catalog catalog) {
-        this.catalog = catalog;
-        return this;
+    void loadKeys() {
+        List<Table> tables = getTables();
+        Map<String, TableKeys> keys;
+        try {
+            keys = getCatalog().getDatabase().getDialect().loadKeys(connection, this);
+        } catch (SQLException e) {
+            throw UncheckedException.wrap(e);
+        }
+        for (Table table : tables) {
+            if (table.hasKeysLoaded()) {
+                continue;
+            }
+            TableKeys tableKeys = keys.get(table.getName());
+            if (tableKeys == null) {
+                tableKeys = new TableKeys();
+            }
+            table.setKeys(tableKeys.primaryKey(), tableKeys.indexes(), tableKeys.foreignKeys());
+        }
     }
 
-    void writeTo(DataOutputStream out) {
-        IO.writeString(out, name);
-        List<Table> tables = getTables();
-        IO.writeInt(out, tables.size());
+    /**
+     * Replaces the tables of this schema by the given ones, recorded by an earlier crawl, so they are not queried
+     */
+    void restoreTables(List<Table> tables) {
+        List<Table> list = new LinkedList<Table>();
+        Map<String, Table> map = new HashMap<String, Table>();
         for (Table table : tables) {
-            table.writeTo(out);
+            list.add(table.setSchema(this));
+            map.put(table.getName(), table);
         }
+        tableMap = map;
+        this.tables = Collections.unmodifiableList(list);
+    }
+
+    Schema setCatalog(Catalog catalog) {
+        this.catalog = catalog;
+        return this;
     }
 }
\ No newline at end of file
@@ -1,17 +1,59 @@
 package br.com.staroski.db;
 
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 /**
  * This class keeps the differences between some schemas
  * 
  * @author Ricardo Artur Staroski
  */
-public final class SchemaDiff {
+public final class SchemaDiff implements Iterable<DiffEntry> {
+
+    /**
+     * Walks a {@link MergeDiff} and closes it, deleting its sorted runs, as soon as it ends
+     */
+    private static final class SpillingIterator implements Iterator<DiffEntry>, Closeable {
+
+        private final MergeDiff merge;
+
+        SpillingIterator(MergeDiff merge) {
+            this.merge = merge;
+        }
+
+        @Override
+        public void close() {
+            merge.close();
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (merge.hasNext()) {
+                return true;
+            }
+            merge.close();
+            return false;
+        }
+
+        @Override
+        public DiffEntry next() {
+            return merge.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
 
     public final boolean hasDifferences;
     public final List<Schema> schemas;
@@ -19,9 +61,27 @@ public final class SchemaDiff {
 
     private final Map<String, TableDiff> tableDiffMap;
     private final DiffFilter filter;
+    private final long memoryBudget;
+
+    private double renameThreshold = RenameDetector.DEFAULT_THRESHOLD;
+    private List<Rename> tableRenames;
+    private Map<String, Rename> tableRenameMap;
 
     SchemaDiff(DiffFilter filter, List<Schema> schemas) {
+        this(filter, schemas, 0);
+    }
+
+    /**
+     * @param memoryBudget Maximum number of bytes of the tables compared by {@link #iterator()} kept in memory, shared by the schemas, 0
+     *            for no limit
+     */
+    SchemaDiff(DiffFilter filter, List<Schema> schemas, long memoryBudget) {
+        if (memoryBudget < 0 || (memoryBudget > 0 && memoryBudget / schemas.size() < SpillingTableSource.MIN_MEMORY_BUDGET)) {
+            throw new IllegalArgumentException(String.format("the memory budget must be at least %d bytes by schema: %d",
+                    SpillingTableSource.MIN_MEMORY_BUDGET, memoryBudget));
+        }
         this.filter = filter != null ? filter : new DiffFilter();
+        this.memoryBudget = memoryBudget;
         this.schemas = schemas;
         this.tableNames = getTableNames(schemas, this.filter);
         this.hasDifferences = checkDifferences(tableNames);
@@ -55,6 +115,7 @@ public final class SchemaDiff {
                 otherTables.add(schemasWithTable.get(i).getTable(tableName));
             }
             TableDiff tableDiff = table.compareWith(filter, otherTables);
+            tableDiff.setRenameThreshold(renameThreshold);
             tableDiffMap.put(tableName, tableDiff);
             return tableDiff;
         }
@@ -62,6 +123,103 @@ public final class SchemaDiff {
         return null;
     }
 
+    /**
+     * @return The rename the given table takes part in, <code>null</code> if none
+     * @see #getTableRenames()
+     */
+    public Rename getTableRename(String tableName) {
+        return tableRenameMap().get(tableName);
+    }
+
+    /**
+     * @return The tables missing in some schemas that were probably renamed to tables found only in those schemas, from the most to the
+     *         least similar, the tables are compared by the names and canonical types of their columns
+     */
+    public synchronized List<Rename> getTableRenames() {
+        tableRenameMap();
+        return tableRenames;
+    }
+
+    /**
+     * Walks the {@link #tableNames} comparing one table at a time<br>
+     * Unlike {@link #getTableDiffBetweenAllSchemas(String)}, the comparisons are not kept, and the columns of the tables of a connected
+     * database that were not loaded yet are read into {@link Table#detach() detached copies}, which the schemas do not keep<br>
+     * The tables already loaded, like the ones of a snapshot, and the keys, which are read once for a whole schema, stay in memory<br>
+     * A diff with a {@link Schema#compareWith(DiffFilter, Collection, long) memory budget} reads the tables of each schema when the
+     * iterator is created, on the caller thread, into a {@link SpillingTableSource}, which keeps its share of the budget in memory and the
+     * rest in temporary files, the iterator is {@link Closeable} and deletes them when closed or when it ends
+     */
+    @Override
+    public Iterator<DiffEntry> iterator() {
+        if (memoryBudget > 0) {
+            List<TableSource> sources = new ArrayList<TableSource>(schemas.size());
+            for (Schema schema : schemas) {
+                sources.add(new SpillingTableSource(schema.tableSource(), memoryBudget / schemas.size()));
+            }
+            return new SpillingIterator(new MergeDiff(filter, sources, this));
+        }
+        final Iterator<String> names = tableNames.iterator();
+        return new Iterator<DiffEntry>() {
+
+            @Override
+            public boolean hasNext() {
+                return names.hasNext();
+            }
+
+            @Override
+            public DiffEntry next() {
+                if (!names.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String tableName = names.next();
+                List<Table> tables = new ArrayList<Table>(schemas.size());
+                for (Schema schema : schemas) {
+                    Table table = schema.getTable(tableName);
+                    tables.add(table != null ? table.detach() : null);
+                }
+                return new DiffEntry(filter, tableName, tables, getTableRename(tableName), renameThreshold);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public DiffPublisher publisher() {
+        return new DiffPublisher(this, null);
+    }
+
+    /**
+     * Sets the minimum similarity of the renamed tables and columns, 0.8 by default<br>
+     * The similarity is the Jaccard index of the definitions, from 0 to 1, where 1 means the same columns, or the same column type with
+     * names made of the same trigrams
+     *
+     * @param threshold The minimum similarity, 0 turns the detection off
+     * @return This diff
+     */
+    public synchronized SchemaDiff setRenameThreshold(double threshold) {
+        if (threshold < 0 || threshold > 1) {
+            throw new IllegalArgumentException("the threshold must be between 0 and 1: " + threshold);
+        }
+        this.renameThreshold = threshold;
+        this.tableRenameMap = null;
+        this.tableDiffMap.clear();
+        return this;
+    }
+
+    /**
+     * @return The maximum number of bytes of the tables compared by {@link #iterator()} kept in memory, 0 for no limit
+     */
+    long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    synchronized double getRenameThreshold() {
+        return renameThreshold;
+    }
+
     private boolean checkDifferences(List<String> tableNames) {
         for (String tableName : tableNames) {
             boolean firstContains = schemas.get(0).contains(tableName);
@@ -85,6 +243,41 @@ public final class SchemaDiff {
         return containing;
     }
 
+    /**
+     * @return The renames by old and new table names, the columns are read only from the tables missing in some schema
+     */
+    private synchronized Map<String, Rename> tableRenameMap() {
+        if (tableRenameMap != null) {
+            return tableRenameMap;
+        }
+        tableRenameMap = new HashMap<String, Rename>();
+        tableRenames = Collections.emptyList();
+        if (renameThreshold <= 0) {
+            return tableRenameMap;
+        }
+        RenameDetector detector = new RenameDetector(renameThreshold);
+        for (String tableName : tableNames) {
+            BitSet presence = new BitSet(schemas.size());
+            Table table = null;
+            for (int i = 0; i < schemas.size(); i++) {
+                Table tableN = schemas.get(i).getTable(tableName);
+                if (tableN != null) {
+                    presence.set(i);
+                    table = table == null ? tableN.detach() : table;
+                }
+            }
+            if (presence.cardinality() < schemas.size()) {
+                detector.add(tableName, presence, RenameDetector.tableFeatures(table, filter));
+            }
+        }
+        tableRenames = Collections.unmodifiableList(detector.detect());
+        for (Rename rename : tableRenames) {
+            tableRenameMap.put(rename.name, rename);
+            tableRenameMap.put(rename.newName, rename);
+        }
+        return tableRenameMap;
+    }
+
     private List<String> getTableNames(List<Schema> schemas, DiffFilter filter) {
         final List<String> names = new LinkedList<String>();
         for (Schema schema : schemas) {
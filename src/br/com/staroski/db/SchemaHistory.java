@@ -0,0 +1,463 @@
+package br.com.staroski.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import br.com.staroski.IO;
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class is a temporal index of the tables and columns of a series of snapshots, added in time order as they arrive<br>
+ * Each table, and each column of a table, keeps the intervals in which each of its definitions was valid, so a {@link Schema} can be
+ * rebuilt as it was at any time and the changes of a column are found without loading any snapshot<br>
+ * The definitions of the tables are stored once, by hash, like in the {@link SnapshotStore}, so the tables that are the same in every
+ * tenant and every day cost a single copy
+ *
+ * @author Ricardo Artur Staroski
+ */
+public final class SchemaHistory {
+
+    /**
+     * A period in which a table, or a column, had the same definition
+     */
+    public static final class Interval {
+
+        /**
+         * The time of the first snapshot with the definition
+         */
+        public final long from;
+
+        /**
+         * The time of the first snapshot without the definition, {@link Long#MAX_VALUE} while it is still valid
+         */
+        public final long to;
+
+        /**
+         * The {@link Column#getTypeSignature() type signature} of a column, or the hash of the definition of a table
+         */
+        public final String definition;
+
+        Interval(long from, long to, String definition) {
+            this.from = from;
+            this.to = to;
+            this.definition = definition;
+        }
+
+        public boolean contains(long time) {
+            return from <= time && time < to;
+        }
+
+        /**
+         * @return <code>true</code> if the definition is valid in the last snapshot added
+         */
+        public boolean isCurrent() {
+            return to == Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, %d -> %s]", Interval.class.getSimpleName(), definition, from, isCurrent() ? "now" : String.valueOf(to));
+        }
+    }
+
+    private static final class TableHistory {
+
+        final String database;
+        final String catalog;
+        final String schema;
+        final String table;
+
+        final List<Interval> versions = new ArrayList<Interval>(2);
+        final Map<String, List<Interval>> columns = new LinkedHashMap<String, List<Interval>>();
+
+        TableHistory(String database, String catalog, String schema, String table) {
+            this.database = database;
+            this.catalog = catalog;
+            this.schema = schema;
+            this.table = table;
+        }
+    }
+
+    private static final byte HISTORY_MARKER = (byte) 0x7E;
+    private static final int HISTORY_VERSION = 2;
+
+    /**
+     * The {@link Database#FORMAT_VERSION format} of the definitions of the histories of version 1, which did not record it
+     */
+    private static final int HISTORY_V1_FORMAT_VERSION = 3;
+
+    public static SchemaHistory readFrom(InputStream in) {
+        DataInputStream dataInput = in instanceof DataInputStream
+                ? (DataInputStream) in
+                : new DataInputStream(in);
+        byte marker = IO.readByte(dataInput);
+        int version = IO.readInt(dataInput);
+        if (marker != HISTORY_MARKER || version > HISTORY_VERSION) {
+            throw new IllegalArgumentException("not a schema history");
+        }
+        int formatVersion = version >= 2 ? IO.readInt(dataInput) : HISTORY_V1_FORMAT_VERSION;
+        if (formatVersion > Database.FORMAT_VERSION) {
+            throw new IllegalArgumentException("unsupported format version: " + formatVersion);
+        }
+        SchemaHistory history = new SchemaHistory();
+        Map<String, String> rehashed = new HashMap<String, String>();
+        try {
+            int definitionCount = IO.readInt(dataInput);
+            for (int i = 0; i < definitionCount; i++) {
+                String hash = IO.readString(dataInput);
+                byte[] definition = new byte[IO.readInt(dataInput)];
+                dataInput.readFully(definition);
+                if (formatVersion == Database.FORMAT_VERSION) {
+                    history.definitions.put(hash, definition);
+                } else {
+                    // definitions of an older format are stored again in the current one, so they are equal to the ones added from now on
+                    Table table = Table.readDefinitionFrom(new DataInputStream(new ByteArrayInputStream(definition)), formatVersion);
+                    rehashed.put(hash, history.addDefinition(table));
+                }
+            }
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        }
+        int databaseCount = IO.readInt(dataInput);
+        for (int i = 0; i < databaseCount; i++) {
+            String database = IO.readString(dataInput);
+            history.lastTimes.put(database, IO.readLong(dataInput));
+        }
+        int tableCount = IO.readInt(dataInput);
+        for (int i = 0; i < tableCount; i++) {
+            String database = IO.readString(dataInput);
+            String catalog = IO.readString(dataInput);
+            String schema = IO.readString(dataInput);
+            String table = IO.readString(dataInput);
+            TableHistory tableHistory = history.tableHistory(database, catalog, schema, table);
+            history.readIntervals(dataInput, tableHistory.versions);
+            if (!rehashed.isEmpty()) {
+                for (ListIterator<Interval> versions = tableHistory.versions.listIterator(); versions.hasNext();) {
+                    Interval interval = versions.next();
+                    versions.set(new Interval(interval.from, interval.to, rehashed.get(interval.definition)));
+                }
+            }
+            int columnCount = IO.readInt(dataInput);
+            for (int j = 0; j < columnCount; j++) {
+                List<Interval> intervals = new ArrayList<Interval>(1);
+                tableHistory.columns.put(history.shared(IO.readString(dataInput)), intervals);
+                history.readIntervals(dataInput, intervals);
+            }
+        }
+        return history;
+    }
+
+    /**
+     * Closes the current interval, if any
+     */
+    private static void close(List<Interval> intervals, long time) {
+        int index = intervals.size() - 1;
+        if (index >= 0 && intervals.get(index).isCurrent()) {
+            Interval last = intervals.get(index);
+            intervals.set(index, new Interval(last.from, time, last.definition));
+        }
+    }
+
+    /**
+     * @return The interval that contains the given time, <code>null</code> if none
+     */
+    private static Interval intervalAt(List<Interval> intervals, long time) {
+        int low = 0;
+        int high = intervals.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            Interval interval = intervals.get(middle);
+            if (interval.to <= time) {
+                low = middle + 1;
+            } else if (interval.from > time) {
+                high = middle - 1;
+            } else {
+                return interval;
+            }
+        }
+        return null;
+    }
+
+    private static String key(String name) {
+        return name == null ? "" : name.toUpperCase();
+    }
+
+    /**
+     * Keeps the definition valid, or closes the current interval and opens a new one when the definition changed
+     */
+    private static void update(List<Interval> intervals, long time, String definition) {
+        Interval last = intervals.isEmpty() ? null : intervals.get(intervals.size() - 1);
+        if (last != null && last.isCurrent()) {
+            if (last.definition.equals(definition)) {
+                return;
+            }
+            intervals.set(intervals.size() - 1, new Interval(last.from, time, last.definition));
+        }
+        intervals.add(new Interval(time, Long.MAX_VALUE, definition));
+    }
+
+    /**
+     * The tables by database, catalog and schema, the catalogs and schemas ignoring case, and by table name
+     */
+    private final Map<String, Map<String, TableHistory>> schemas = new HashMap<String, Map<String, TableHistory>>();
+    private final Map<String, List<TableHistory>> databases = new HashMap<String, List<TableHistory>>();
+    private final Map<String, Long> lastTimes = new HashMap<String, Long>();
+
+    /**
+     * The definitions of the tables by hash
+     */
+    private final Map<String, byte[]> definitions = new HashMap<String, byte[]>();
+
+    /**
+     * Shares the names repeated across databases and snapshots, like the ones of columns and types
+     */
+    private final Map<String, String> names = new HashMap<String, String>();
+
+    /**
+     * Adds the snapshot of a database taken at the given time, the snapshots of each database, by alias, must be added in time order<br>
+     * The tables and columns missing in the snapshot have their intervals closed at the given time
+     */
+    public synchronized SchemaHistory add(Database database, long time) {
+        String alias = database.getAlias();
+        Long lastTime = lastTimes.get(alias);
+        if (lastTime != null && time <= lastTime) {
+            throw new IllegalArgumentException("the snapshots of " + alias + " must be added in time order: " + time + " <= " + lastTime);
+        }
+        Set<TableHistory> found = new HashSet<TableHistory>();
+        for (Catalog catalog : database.getCatalogs()) {
+            for (Schema schema : catalog.getSchemas()) {
+                for (Table table : schema.getTables()) {
+                    TableHistory tableHistory = tableHistory(alias, catalog.getName(), schema.getName(), table.getName());
+                    found.add(tableHistory);
+                    update(tableHistory.versions, time, addDefinition(table));
+                    Set<String> columnNames = new HashSet<String>();
+                    for (Column column : table.getColumns()) {
+                        List<Interval> intervals = tableHistory.columns.get(column.getName());
+                        if (intervals == null) {
+                            intervals = new ArrayList<Interval>(1);
+                            tableHistory.columns.put(shared(column.getName()), intervals);
+                        }
+                        update(intervals, time, shared(column.getTypeSignature()));
+                        columnNames.add(column.getName());
+                    }
+                    for (Map.Entry<String, List<Interval>> column : tableHistory.columns.entrySet()) {
+                        if (!columnNames.contains(column.getKey())) {
+                            close(column.getValue(), time);
+                        }
+                    }
+                }
+            }
+        }
+        List<TableHistory> tables = databases.get(alias);
+        if (tables != null) {
+            for (TableHistory tableHistory : tables) {
+                if (!found.contains(tableHistory)) {
+                    close(tableHistory.versions, time);
+                    for (List<Interval> intervals : tableHistory.columns.values()) {
+                        close(intervals, time);
+                    }
+                }
+            }
+        }
+        lastTimes.put(alias, time);
+        return this;
+    }
+
+    /**
+     * @return The definitions of the given column, from the oldest to the newest, a column dropped and added again has a gap between
+     *         its intervals, the change of a type is the {@link Interval#to end} of one interval and the start of the next
+     */
+    public synchronized List<Interval> getColumnHistory(String database, String catalog, String schema, String table, String column) {
+        TableHistory tableHistory = findTableHistory(database, catalog, schema, table);
+        List<Interval> intervals = tableHistory == null ? null : tableHistory.columns.get(column);
+        if (intervals == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<Interval>(intervals));
+    }
+
+    /**
+     * @return The time of the last snapshot added of the given database, <code>-1</code> if none
+     */
+    public synchronized long getLastTime(String database) {
+        Long lastTime = lastTimes.get(database);
+        return lastTime == null ? -1 : lastTime;
+    }
+
+    /**
+     * Rebuilds the given schema as it was at the given time, without the statistics of the tables
+     *
+     * @return The schema, <code>null</code> if it had no tables at that time
+     */
+    public synchronized Schema getSchema(String database, String catalog, String schema, long time) {
+        Map<String, TableHistory> tableHistories = schemas.get(schemaKey(database, catalog, schema));
+        if (tableHistories == null) {
+            return null;
+        }
+        List<Table> tables = new LinkedList<Table>();
+        Map<String, Table> tableMap = new HashMap<String, Table>();
+        String schemaName = null;
+        for (TableHistory tableHistory : tableHistories.values()) {
+            Interval version = intervalAt(tableHistory.versions, time);
+            if (version != null) {
+                byte[] definition = definitions.get(version.definition);
+                Table table = Table.readDefinitionFrom(new DataInputStream(new ByteArrayInputStream(definition)), Database.FORMAT_VERSION);
+                tables.add(table);
+                tableMap.put(table.getName(), table);
+                schemaName = tableHistory.schema;
+            }
+        }
+        if (tables.isEmpty()) {
+            return null;
+        }
+        Schema rebuilt = new Schema(schemaName, tables, tableMap);
+        for (Table table : tables) {
+            table.setSchema(rebuilt);
+        }
+        return rebuilt;
+    }
+
+    /**
+     * @return The definitions of the given table, from the oldest to the newest, each one identified by the hash of the definition
+     */
+    public synchronized List<Interval> getTableHistory(String database, String catalog, String schema, String table) {
+        TableHistory tableHistory = findTableHistory(database, catalog, schema, table);
+        if (tableHistory == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<Interval>(tableHistory.versions));
+    }
+
+    public synchronized void writeTo(OutputStream out) {
+        DataOutputStream dataOutput = out instanceof DataOutputStream
+                ? (DataOutputStream) out
+                : new DataOutputStream(out);
+        IO.writeByte(dataOutput, HISTORY_MARKER);
+        IO.writeInt(dataOutput, HISTORY_VERSION);
+        IO.writeInt(dataOutput, Database.FORMAT_VERSION);
+        try {
+            IO.writeInt(dataOutput, definitions.size());
+            for (Map.Entry<String, byte[]> definition : definitions.entrySet()) {
+                IO.writeString(dataOutput, definition.getKey());
+                IO.writeInt(dataOutput, definition.getValue().length);
+                dataOutput.write(definition.getValue());
+            }
+        } catch (IOException ioe) {
+            throw UncheckedException.wrap(ioe);
+        }
+        IO.writeInt(dataOutput, lastTimes.size());
+        for (Map.Entry<String, Long> lastTime : lastTimes.entrySet()) {
+            IO.writeString(dataOutput, lastTime.getKey());
+            IO.writeLong(dataOutput, lastTime.getValue());
+        }
+        int tableCount = 0;
+        for (List<TableHistory> tables : databases.values()) {
+            tableCount += tables.size();
+        }
+        IO.writeInt(dataOutput, tableCount);
+        for (List<TableHistory> tables : databases.values()) {
+            for (TableHistory tableHistory : tables) {
+                IO.writeString(dataOutput, tableHistory.database);
+                IO.writeString(dataOutput, tableHistory.catalog);
+                IO.writeString(dataOutput, tableHistory.schema);
+                IO.writeString(dataOutput, tableHistory.table);
+                writeIntervals(dataOutput, tableHistory.versions);
+                IO.writeInt(dataOutput, tableHistory.columns.size());
+                for (Map.Entry<String, List<Interval>> column : tableHistory.columns.entrySet()) {
+                    IO.writeString(dataOutput, column.getKey());
+                    writeIntervals(dataOutput, column.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The hash of the definition of the table
+     */
+    private String addDefinition(Table table) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.writeDefinitionTo(new DataOutputStream(bytes));
+        byte[] definition = bytes.toByteArray();
+        String hash = SnapshotStore.hash(definition);
+        if (!definitions.containsKey(hash)) {
+            definitions.put(hash, definition);
+        }
+        return shared(hash);
+    }
+
+    private TableHistory findTableHistory(String database, String catalog, String schema, String table) {
+        Map<String, TableHistory> tableHistories = schemas.get(schemaKey(database, catalog, schema));
+        return tableHistories == null ? null : tableHistories.get(table);
+    }
+
+    private void readIntervals(DataInputStream in, List<Interval> intervals) {
+        int count = IO.readInt(in);
+        for (int i = 0; i < count; i++) {
+            long from = IO.readLong(in);
+            long to = IO.readLong(in);
+            intervals.add(new Interval(from, to, shared(IO.readString(in))));
+        }
+    }
+
+    private String schemaKey(String database, String catalog, String schema) {
+        return database + "\u0000" + key(catalog) + "\u0000" + key(schema);
+    }
+
+    private String shared(String name) {
+        if (name == null) {
+            return null;
+        }
+        String shared = names.get(name);
+        if (shared == null) {
+            names.put(name, name);
+            shared = name;
+        }
+        return shared;
+    }
+
+    private TableHistory tableHistory(String database, String catalog, String schema, String table) {
+        String schemaKey = schemaKey(database, catalog, schema);
+        Map<String, TableHistory> tableHistories = schemas.get(schemaKey);
+        if (tableHistories == null) {
+            tableHistories = new TreeMap<String, TableHistory>();
+            schemas.put(schemaKey, tableHistories);
+        }
+        TableHistory tableHistory = tableHistories.get(table);
+        if (tableHistory == null) {
+            tableHistory = new TableHistory(shared(database), shared(catalog), shared(schema), shared(table));
+            tableHistories.put(tableHistory.table, tableHistory);
+            List<TableHistory> tables = databases.get(database);
+            if (tables == null) {
+                tables = new ArrayList<TableHistory>();
+                databases.put(database, tables);
+            }
+            tables.add(tableHistory);
+        }
+        return tableHistory;
+    }
+
+    private void writeIntervals(DataOutputStream out, List<Interval> intervals) {
+        IO.writeInt(out, intervals.size());
+        for (Interval interval : intervals) {
+            IO.writeLong(out, interval.from);
+            IO.writeLong(out, interval.to);
+            IO.writeString(out, interval.definition);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package br.com.staroski.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import br.com.staroski.IO;
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class writes and reads the catalogs of a snapshot, from format version 5, with the tables of each schema split in segments of at
+ * most {@link #SEGMENT_TABLES} tables<br>
+ * Each segment has its number of tables and its length in bytes, so the segments are encoded and decoded in parallel, on a
+ * {@link ForkJoinPool}, while the stream itself is written and read by a single thread, in order, and a reader that wants only some schemas
+ * skips the others without decoding them<br>
+ * The segments depend only on the tables, never on the number of threads, so the same database is always written with the same bytes
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class SegmentedSnapshot {
+
+    static final int SEGMENT_TABLES = 64;
+
+    /**
+     * The segments being encoded or decoded at the same time, by thread, so a large snapshot is never whole in memory
+     */
+    private static final int SEGMENTS_PER_THREAD = 4;
+
+    /**
+     * A schema being read and one of its segments being decoded
+     */
+    private static final class PendingSegment {
+
+        final Schema schema;
+        final List<Table> tables;
+        final Map<String, Table> tableMap;
+        final Future<List<Table>> decoded;
+
+        PendingSegment(Schema schema, List<Table> tables, Map<String, Table> tableMap, Future<List<Table>> decoded) {
+            this.schema = schema;
+            this.tables = tables;
+            this.tableMap = tableMap;
+            this.decoded = decoded;
+        }
+
+        void addTables() {
+            for (Table table : waitFor(decoded)) {
+                tables.add(table.setSchema(schema));
+                tableMap.put(table.getName(), table);
+            }
+        }
+    }
+
+    /**
+     * @param parallelism The number of threads, 1 reads everything on the caller thread, 0 uses the common {@link ForkJoinPool}
+     */
+    static void read(DataInputStream in, Database database, List<Catalog> catalogs, Map<String, Catalog> catalogMap, final int version,
+            int parallelism) {
+        ExecutorService pool = poolOf(parallelism);
+        try {
+            int window = windowOf(pool);
+            Deque<PendingSegment> pending = new ArrayDeque<PendingSegment>();
+            int catalogCount = IO.readInt(in);
+            for (int i = 0; i < catalogCount; i++) {
+                String catalogName = IO.readString(in);
+                List<Schema> schemas = new LinkedList<Schema>();
+                Catalog catalog = new Catalog(catalogName, schemas, new HashMap<String, Schema>()).setDatabase(database);
+                int schemaCount = IO.readInt(in);
+                for (int j = 0; j < schemaCount; j++) {
+                    String schemaName = IO.readString(in);
+                    List<Table> tables = new LinkedList<Table>();
+                    Map<String, Table> tableMap = new HashMap<String, Table>();
+                    Schema schema = new Schema(schemaName, tables, tableMap).setCatalog(catalog);
+                    int tableCount = IO.readInt(in);
+                    for (int read = 0; read < tableCount;) {
+                        final int segmentTables = IO.readInt(in);
+                        final byte[] segment = readSegment(in);
+                        read += segmentTables;
+                        Future<List<Table>> decoded = submit(pool, new Callable<List<Table>>() {
+
+                            @Override
+                            public List<Table> call() {
+                                DataInputStream segmentInput = new DataInputStream(new ByteArrayInputStream(segment));
+                                List<Table> decoded = new ArrayList<Table>(segmentTables);
+                                for (int k = 0; k < segmentTables; k++) {
+                                    decoded.add(Table.readFrom(segmentInput, version));
+                                }
+                                return decoded;
+                            }
+                        });
+                        pending.add(new PendingSegment(schema, tables, tableMap, decoded));
+                        if (pending.size() > window) {
+                            pending.poll().addTables();
+                        }
+                    }
+                    schemas.add(schema);
+                }
+                catalogs.add(catalog);
+                catalogMap.put(catalogName, catalog);
+            }
+            while (!pending.isEmpty()) {
+                pending.poll().addTables();
+            }
+        } finally {
+            shutdown(pool, parallelism);
+        }
+    }
+
+    /**
+     * Skips the tables of a schema, without decoding them, after its table count was read
+     */
+    static void skipTables(DataInputStream in, int tableCount) {
+        try {
+            for (int read = 0; read < tableCount;) {
+                read += IO.readInt(in);
+                int length = IO.readInt(in);
+                while (length > 0) {
+                    int skipped = in.skipBytes(length);
+                    if (skipped <= 0) {
+                        in.readByte(); // skipBytes may stop early, the end of the stream is reported by a read
+                        skipped = 1;
+                    }
+                    length -= skipped;
+                }
+            }
+        } catch (IOException e) {
+            throw UncheckedException.wrap(e);
+        }
+    }
+
+    /**
+     * Writes the given catalogs, each with the given schemas<br>
+     * The tables of a connected database are written on the caller thread only, because they may still be loaded through its single
+     * connection
+     *
+     * @param parallelism The number of threads, 1 writes everything on the caller thread, 0 uses the common {@link ForkJoinPool}
+     */
+    static void write(DataOutputStream out, Database database, Map<String, List<Schema>> schemasByCatalog, int parallelism) {
+        if (database.getConnection() != null) {
+            parallelism = 1;
+        }
+        ExecutorService pool = poolOf(parallelism);
+        try {
+            int window = windowOf(pool);
+            Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+            ByteArrayOutputStream headers = new ByteArrayOutputStream();
+            DataOutputStream headerOutput = new DataOutputStream(headers);
+            IO.writeInt(headerOutput, schemasByCatalog.size());
+            for (Map.Entry<String, List<Schema>> entry : schemasByCatalog.entrySet()) {
+                IO.writeString(headerOutput, entry.getKey());
+                IO.writeInt(headerOutput, entry.getValue().size());
+                for (Schema schema : entry.getValue()) {
+                    IO.writeString(headerOutput, schema.getName());
+                    List<Table> tables = Schema.sortedByName(schema.getTables());
+                    IO.writeInt(headerOutput, tables.size());
+                    for (int start = 0; start < tables.size(); start += SEGMENT_TABLES) {
+                        pending.add(done(headers.toByteArray()));
+                        headers.reset();
+                        final List<Table> segment = tables.subList(start, Math.min(start + SEGMENT_TABLES, tables.size()));
+                        pending.add(submit(pool, new Callable<byte[]>() {
+
+                            @Override
+                            public byte[] call() {
+                                return encode(segment);
+                            }
+                        }));
+                        while (pending.size() > window) {
+                            writeBytes(out, waitFor(pending.poll()));
+                        }
+                    }
+                }
+            }
+            pending.add(done(headers.toByteArray()));
+            while (!pending.isEmpty()) {
+                writeBytes(out, waitFor(pending.poll()));
+            }
+        } finally {
+            shutdown(pool, parallelism);
+        }
+    }
+
+    private static Future<byte[]> done(byte[] bytes) {
+        final byte[] result = bytes;
+        FutureTask<byte[]> task = new FutureTask<byte[]>(new Callable<byte[]>() {
+
+            @Override
+            public byte[] call() {
+                return result;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    /**
+     * @return The number of tables, the length and the tables of a segment
+     */
+    private static byte[] encode(List<Table> tables) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Table table : tables) {
+            table.writeTo(out);
+        }
+        ByteArrayOutputStream segment = new ByteArrayOutputStream(bytes.size() + 8);
+        DataOutputStream segmentOutput = new DataOutputStream(segment);
+        IO.writeInt(segmentOutput, tables.size());
+        IO.writeInt(segmentOutput, bytes.size());
+        writeBytes(segmentOutput, bytes.toByteArray());
+        return segment.toByteArray();
+    }
+
+    /**
+     * @return <code>null</code> to run the tasks on the caller thread
+     */
+    private static ExecutorService poolOf(int parallelism) {
+        if (parallelism < 0) {
+            throw new IllegalArgumentException("parallelism can't be negative");
+        }
+        if (parallelism == 1) {
+            return null;
+        }
+        return parallelism == 0 ? ForkJoinPool.commonPool() : new ForkJoinPool(parallelism);
+    }
+
+    private static byte[] readSegment(DataInputStream in) {
+        byte[] segment = new byte[IO.readInt(in)];
+        try {
+            in.readFully(segment);
+        } catch (IOException e) {
+            throw UncheckedException.wrap(e);
+        }
+        return segment;
+    }
+
+    private static void shutdown(ExecutorService pool, int parallelism) {
+        if (pool != null && parallelism > 1) {
+            pool.shutdown();
+        }
+    }
+
+    private static <T> Future<T> submit(ExecutorService pool, Callable<T> task) {
+        if (pool != null) {
+            return pool.submit(task);
+        }
+        FutureTask<T> future = new FutureTask<T>(task);
+        future.run();
+        return future;
+    }
+
+    private static <T> T waitFor(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw UncheckedException.wrap(e);
+        } catch (ExecutionException e) {
+            throw UncheckedException.wrap(e.getCause());
+        }
+    }
+
+    private static int windowOf(ExecutorService pool) {
+        if (pool == null) {
+            return 1;
+        }
+        int threads = pool instanceof ForkJoinPool ? ((ForkJoinPool) pool).getParallelism() : 1;
+        return threads * SEGMENTS_PER_THREAD;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) {
+        try {
+            out.write(bytes);
+        } catch (IOException e) {
+            throw UncheckedException.wrap(e);
+        }
+    }
+
+    private SegmentedSnapshot() {}
+}
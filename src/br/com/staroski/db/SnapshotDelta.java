@@ -0,0 +1,329 @@
+package br.com.staroski.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import br.com.staroski.IO;
+
+/**
+ * This class writes and applies the changes between two snapshots of the same database<br>
+ * A delta has the header of the newer database and, for each of its schemas, the names of the tables removed and the tables added or changed,
+ * a changed table keeps the unchanged columns as references to the columns of the base table<br>
+ * The statistics and profiles of a table, which change much more often than its definition, are written apart from it and only when they
+ * changed, so a table that only got new statistics takes a few bytes<br>
+ * A delta can only be applied to the base it was written from, which is checked by the hash of the base snapshot, and it also has the hash
+ * of the newer snapshot, which is kept by the database rebuilt, so a chain of deltas is applied without writing each database again to hash
+ * it
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class SnapshotDelta {
+
+    private static final byte DELTA_MARKER = (byte) 0xDE;
+    private static final int DELTA_VERSION = 3;
+
+    private static final byte TABLE_ADDED = 1;
+    private static final byte TABLE_CHANGED = 2;
+    private static final byte TABLE_MEASURED = 3;
+
+    private static final int NEW_COLUMN = -1;
+
+    static Database apply(Database base, DataInputStream in) {
+        byte marker = IO.readByte(in);
+        int deltaVersion = IO.readInt(in);
+        if (marker != DELTA_MARKER || deltaVersion > DELTA_VERSION) {
+            throw new IllegalArgumentException("not a snapshot delta");
+        }
+        String baseHash = IO.readString(in);
+        if (!baseHash.equals(base.getSnapshotHash())) {
+            throw new IllegalArgumentException("the delta was not written from this base snapshot");
+        }
+        String targetHash = deltaVersion >= 2 ? IO.readString(in) : null;
+        List<Catalog> catalogs = new LinkedList<Catalog>();
+        Map<String, Catalog> catalogMap = new HashMap<String, Catalog>();
+        Database database = Database.readHeader(in, catalogs, catalogMap).setSnapshotHash(targetHash);
+        int version = database.getFormatVersion();
+        int catalogCount = IO.readInt(in);
+        for (int i = 0; i < catalogCount; i++) {
+            String catalogName = IO.readString(in);
+            Catalog baseCatalog = base.getCatalog(catalogName);
+            List<Schema> schemas = new LinkedList<Schema>();
+            Catalog catalog = new Catalog(catalogName, schemas, new HashMap<String, Schema>()).setDatabase(database);
+            int schemaCount = IO.readInt(in);
+            for (int j = 0; j < schemaCount; j++) {
+                String schemaName = IO.readString(in);
+                Schema baseSchema = baseCatalog == null ? null : baseCatalog.getSchema(schemaName);
+                schemas.add(applySchema(baseSchema, in, version, deltaVersion, schemaName).setCatalog(catalog));
+            }
+            catalogs.add(catalog);
+            catalogMap.put(catalogName, catalog);
+        }
+        return database;
+    }
+
+    static void write(Database base, Database target, DataOutputStream out) {
+        IO.writeByte(out, DELTA_MARKER);
+        IO.writeInt(out, DELTA_VERSION);
+        IO.writeString(out, base.getSnapshotHash());
+        IO.writeString(out, target.getSnapshotHash());
+        target.writeHeader(out);
+        List<Catalog> catalogs = target.getCatalogs();
+        IO.writeInt(out, catalogs.size());
+        for (Catalog catalog : catalogs) {
+            IO.writeString(out, catalog.getName());
+            Catalog baseCatalog = base.getCatalog(catalog.getName());
+            List<Schema> schemas = catalog.getSchemas();
+            IO.writeInt(out, schemas.size());
+            for (Schema schema : schemas) {
+                IO.writeString(out, schema.getName());
+                writeSchema(baseCatalog == null ? null : baseCatalog.getSchema(schema.getName()), schema, out);
+            }
+        }
+    }
+
+    private static Schema applySchema(Schema baseSchema, DataInputStream in, int version, int deltaVersion, String schemaName) {
+        Map<String, Table> tables = new TreeMap<String, Table>();
+        if (baseSchema != null) {
+            for (Table table : baseSchema.getTables()) {
+                // the tables of a snapshot are not attached to more than one schema, the kept ones are copies that share their columns
+                tables.put(table.getName(), table.copy());
+            }
+        }
+        int removedCount = IO.readInt(in);
+        for (int i = 0; i < removedCount; i++) {
+            tables.remove(IO.readString(in));
+        }
+        int changedCount = IO.readInt(in);
+        for (int i = 0; i < changedCount; i++) {
+            byte kind = IO.readByte(in);
+            Table table;
+            if (kind == TABLE_ADDED) {
+                table = Table.readFrom(in, version);
+            } else if (kind == TABLE_CHANGED) {
+                table = applyTable(baseSchema.getTable(IO.readString(in)), in, version, deltaVersion);
+            } else {
+                table = readMeasures(baseSchema.getTable(IO.readString(in)).copy(), in);
+            }
+            tables.put(table.getName(), table);
+        }
+        List<Table> tableList = new LinkedList<Table>();
+        Map<String, Table> tableMap = new HashMap<String, Table>();
+        Schema schema = new Schema(schemaName, tableList, tableMap);
+        for (Table table : tables.values()) {
+            tableList.add(table.setSchema(schema));
+            tableMap.put(table.getName(), table);
+        }
+        return schema;
+    }
+
+    private static Table applyTable(Table baseTable, DataInputStream in, int version, int deltaVersion) {
+        String type = IO.readString(in);
+        List<Column> baseColumns = baseTable.getColumns();
+        List<Column> columns = new ArrayList<Column>();
+        int columnCount = IO.readInt(in);
+        for (int i = 0; i < columnCount; i++) {
+            int baseIndex = IO.readInt(in);
+            columns.add(baseIndex == NEW_COLUMN ? Column.readFrom(in) : baseColumns.get(baseIndex));
+        }
+        Index primaryKey = baseTable.getPrimaryKey();
+        List<Index> indexes = baseTable.getIndexes();
+        List<ForeignKey> foreignKeys = baseTable.getForeignKeys();
+        if (IO.readBoolean(in)) {
+            primaryKey = IO.readBoolean(in) ? Index.readFrom(in) : null;
+            indexes = new LinkedList<Index>();
+            int indexCount = IO.readInt(in);
+            for (int i = 0; i < indexCount; i++) {
+                indexes.add(Index.readFrom(in));
+            }
+            foreignKeys = new LinkedList<ForeignKey>();
+            int foreignKeyCount = IO.readInt(in);
+            for (int i = 0; i < foreignKeyCount; i++) {
+                foreignKeys.add(ForeignKey.readFrom(in));
+            }
+        }
+        if (deltaVersion >= 3) {
+            Table table = Table.create(baseTable.getName(), type, columns, primaryKey, indexes, foreignKeys, baseTable.getStatistics());
+            return readMeasures(table.setProfile(baseTable.getProfile()), in);
+        }
+        TableStatistics statistics = IO.readBoolean(in) ? TableStatistics.readFrom(in) : null;
+        TableProfile profile = version >= 4 && IO.readBoolean(in) ? TableProfile.readFrom(in) : null;
+        return Table.create(baseTable.getName(), type, columns, primaryKey, indexes, foreignKeys, statistics).setProfile(profile);
+    }
+
+    private static byte[] bytesOf(Column column) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        column.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static byte[] definitionBytesOf(Table table) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.writeDefinitionTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static byte[] profileBytesOf(Table table) {
+        TableProfile profile = table.getProfile();
+        if (profile == null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        profile.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static byte[] statisticsBytesOf(Table table) {
+        TableStatistics statistics = table.getStatistics();
+        if (statistics == null) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        statistics.writeTo(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    private static byte[] keyBytesOf(Table table) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        writeKeys(table, new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replaces the statistics and the profile of the given table by the ones that changed
+     *
+     * @return The given table
+     */
+    private static Table readMeasures(Table table, DataInputStream in) {
+        if (IO.readBoolean(in)) {
+            table.setStatistics(IO.readBoolean(in) ? TableStatistics.readFrom(in) : null);
+        }
+        if (IO.readBoolean(in)) {
+            table.setProfile(IO.readBoolean(in) ? TableProfile.readFrom(in) : null);
+        }
+        return table;
+    }
+
+    private static void writeKeys(Table table, DataOutputStream out) {
+        Index primaryKey = table.getPrimaryKey();
+        IO.writeBoolean(out, primaryKey != null);
+        if (primaryKey != null) {
+            primaryKey.writeTo(out);
+        }
+        List<Index> indexes = table.getIndexes();
+        IO.writeInt(out, indexes.size());
+        for (Index index : indexes) {
+            index.writeTo(out);
+        }
+        List<ForeignKey> foreignKeys = table.getForeignKeys();
+        IO.writeInt(out, foreignKeys.size());
+        for (ForeignKey foreignKey : foreignKeys) {
+            foreignKey.writeTo(out);
+        }
+    }
+
+    private static void writeSchema(Schema baseSchema, Schema schema, DataOutputStream out) {
+        List<String> removed = new ArrayList<String>();
+        if (baseSchema != null) {
+            for (Table baseTable : baseSchema.getTables()) {
+                if (!schema.contains(baseTable.getName())) {
+                    removed.add(baseTable.getName());
+                }
+            }
+        }
+        IO.writeInt(out, removed.size());
+        for (String tableName : removed) {
+            IO.writeString(out, tableName);
+        }
+        List<Table> changed = new ArrayList<Table>();
+        List<Byte> kinds = new ArrayList<Byte>();
+        for (Table table : Schema.sortedByName(schema.getTables())) {
+            Table baseTable = baseSchema == null ? null : baseSchema.getTable(table.getName());
+            if (baseTable == null) {
+                changed.add(table);
+                kinds.add(TABLE_ADDED);
+            } else if (!Arrays.equals(definitionBytesOf(baseTable), definitionBytesOf(table))) {
+                changed.add(table);
+                kinds.add(TABLE_CHANGED);
+            } else if (!Arrays.equals(statisticsBytesOf(baseTable), statisticsBytesOf(table))
+                    || !Arrays.equals(profileBytesOf(baseTable), profileBytesOf(table))) {
+                changed.add(table);
+                kinds.add(TABLE_MEASURED);
+            }
+        }
+        IO.writeInt(out, changed.size());
+        for (int i = 0; i < changed.size(); i++) {
+            Table table = changed.get(i);
+            byte kind = kinds.get(i);
+            IO.writeByte(out, kind);
+            if (kind == TABLE_ADDED) {
+                table.writeTo(out);
+                continue;
+            }
+            Table baseTable = baseSchema.getTable(table.getName());
+            IO.writeString(out, table.getName());
+            if (kind == TABLE_CHANGED) {
+                writeTable(baseTable, table, out);
+            }
+            writeMeasures(baseTable, table, out);
+        }
+    }
+
+    /**
+     * Writes the statistics and the profile of the given table, each one only if it changed since the base table
+     */
+    private static void writeMeasures(Table baseTable, Table table, DataOutputStream out) {
+        byte[] statistics = statisticsBytesOf(table);
+        boolean statisticsChanged = !Arrays.equals(statisticsBytesOf(baseTable), statistics);
+        IO.writeBoolean(out, statisticsChanged);
+        if (statisticsChanged) {
+            IO.writeBoolean(out, statistics != null);
+            if (statistics != null) {
+                table.getStatistics().writeTo(out);
+            }
+        }
+        byte[] profile = profileBytesOf(table);
+        boolean profileChanged = !Arrays.equals(profileBytesOf(baseTable), profile);
+        IO.writeBoolean(out, profileChanged);
+        if (profileChanged) {
+            IO.writeBoolean(out, profile != null);
+            if (profile != null) {
+                table.getProfile().writeTo(out);
+            }
+        }
+    }
+
+    private static void writeTable(Table baseTable, Table table, DataOutputStream out) {
+        IO.writeString(out, table.getType());
+        List<Column> baseColumns = baseTable.getColumns();
+        Map<String, Integer> baseIndexes = new HashMap<String, Integer>();
+        for (int i = 0; i < baseColumns.size(); i++) {
+            baseIndexes.put(baseColumns.get(i).getName(), i);
+        }
+        List<Column> columns = table.getColumns();
+        IO.writeInt(out, columns.size());
+        for (Column column : columns) {
+            Integer baseIndex = baseIndexes.get(column.getName());
+            if (baseIndex != null && Arrays.equals(bytesOf(baseColumns.get(baseIndex)), bytesOf(column))) {
+                IO.writeInt(out, baseIndex);
+            } else {
+                IO.writeInt(out, NEW_COLUMN);
+                column.writeTo(out);
+            }
+        }
+        boolean keysChanged = !Arrays.equals(keyBytesOf(baseTable), keyBytesOf(table));
+        IO.writeBoolean(out, keysChanged);
+        if (keysChanged) {
+            writeKeys(table, out);
+        }
+    }
+
+    private SnapshotDelta() {}
+}
@@ -0,0 +1,228 @@
+package br.com.staroski.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import br.com.staroski.IO;
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class keeps database snapshots in a local directory, deduplicated by content<br>
+ * The structure of each table is stored once as a block named after its hash, and a snapshot is a small manifest that lists the hashes of
+ * its tables, so the store grows with the changes, not with the number of databases and days<br>
+ * The statistics change almost every day, so they are kept in the manifest, not in the blocks<br>
+ * The blocks read are kept in a memory cache shared by all the snapshots loaded from the same store
+ *
+ * @author Ricardo Artur Staroski
+ */
+public final class SnapshotStore {
+
+    private static final byte MANIFEST_MARKER = (byte) 0x4D;
+    private static final int MANIFEST_VERSION = 2;
+    private static final String HASH_ALGORITHM = "SHA-256";
+    private static final long DEFAULT_CACHE_SIZE = 64 * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static String hash(byte[] data) {
+        try {
+            return toHex(MessageDigest.getInstance(HASH_ALGORITHM).digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw UncheckedException.wrap(e);
+        }
+    }
+
+    static String toHex(byte[] digest) {
+        char[] text = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            text[i * 2] = HEX[(digest[i] >> 4) & 0xF];
+            text[i * 2 + 1] = HEX[digest[i] & 0xF];
+        }
+        return new String(text);
+    }
+
+    private final File blockDirectory;
+    private final File manifestDirectory;
+    private final BlockCache cache;
+
+    public SnapshotStore(File directory) {
+        this(directory, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param cacheSize Maximum number of bytes of blocks kept in memory
+     */
+    public SnapshotStore(File directory, long cacheSize) {
+        this.blockDirectory = new File(directory, "blocks");
+        this.manifestDirectory = new File(directory, "manifests");
+        this.cache = new BlockCache(cacheSize);
+        blockDirectory.mkdirs();
+        manifestDirectory.mkdirs();
+    }
+
+    public boolean contains(String manifestId) {
+        return manifestFile(manifestId).isFile();
+    }
+
+    /**
+     * @return The identifiers of all manifests of this store, in no particular order
+     */
+    public List<String> getManifestIds() {
+        List<String> ids = new ArrayList<String>();
+        String[] names = manifestDirectory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (!name.endsWith(".tmp")) {
+                    ids.add(name);
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Rebuilds the snapshot with the given manifest identifier
+     */
+    public Database load(String manifestId) {
+        if (!contains(manifestId)) {
+            throw new IllegalArgumentException("manifest not found: " + manifestId);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(IO.readBytes(manifestFile(manifestId))));
+        byte marker = IO.readByte(in);
+        int manifestVersion = IO.readInt(in);
+        if (marker != MANIFEST_MARKER || manifestVersion > MANIFEST_VERSION) {
+            throw new IllegalArgumentException("unsupported manifest: " + manifestId);
+        }
+        List<Catalog> catalogs = new LinkedList<Catalog>();
+        Map<String, Catalog> catalogMap = new HashMap<String, Catalog>();
+        Database database = Database.readHeader(in, catalogs, catalogMap);
+        int version = database.getFormatVersion();
+        int catalogCount = IO.readInt(in);
+        for (int i = 0; i < catalogCount; i++) {
+            String catalogName = IO.readString(in);
+            List<Schema> schemas = new LinkedList<Schema>();
+            Catalog catalog = new Catalog(catalogName, schemas, new HashMap<String, Schema>()).setDatabase(database);
+            int schemaCount = IO.readInt(in);
+            for (int j = 0; j < schemaCount; j++) {
+                String schemaName = IO.readString(in);
+                List<Table> tables = new LinkedList<Table>();
+                Map<String, Table> tableMap = new HashMap<String, Table>();
+                Schema schema = new Schema(schemaName, tables, tableMap).setCatalog(catalog);
+                int tableCount = IO.readInt(in);
+                for (int k = 0; k < tableCount; k++) {
+                    byte[] block = readBlock(IO.readString(in));
+                    Table table = Table.readDefinitionFrom(new DataInputStream(new ByteArrayInputStream(block)), version).setSchema(schema);
+                    if (IO.readBoolean(in)) {
+                        table.setStatistics(TableStatistics.readFrom(in));
+                    }
+                    if (manifestVersion >= 2 && IO.readBoolean(in)) {
+                        table.setProfile(TableProfile.readFrom(in));
+                    }
+                    tables.add(table);
+                    tableMap.put(table.getName(), table);
+                }
+                schemas.add(schema);
+            }
+            catalogs.add(catalog);
+            catalogMap.put(catalogName, catalog);
+        }
+        return database;
+    }
+
+    /**
+     * Stores the given database, writing only the blocks that are not stored yet
+     *
+     * @return The manifest identifier, used to {@link #load(String) load} the snapshot, equal snapshots get the same identifier
+     */
+    public String save(Database database) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        IO.writeByte(out, MANIFEST_MARKER);
+        IO.writeInt(out, MANIFEST_VERSION);
+        database.writeHeader(out);
+        List<Catalog> catalogs = database.getCatalogs();
+        IO.writeInt(out, catalogs.size());
+        for (Catalog catalog : catalogs) {
+            IO.writeString(out, catalog.getName());
+            List<Schema> schemas = catalog.getSchemas();
+            IO.writeInt(out, schemas.size());
+            for (Schema schema : schemas) {
+                IO.writeString(out, schema.getName());
+                List<Table> tables = Schema.sortedByName(schema.getTables());
+                IO.writeInt(out, tables.size());
+                for (Table table : tables) {
+                    IO.writeString(out, writeBlock(table));
+                    TableStatistics statistics = table.getStatistics();
+                    IO.writeBoolean(out, statistics != null);
+                    if (statistics != null) {
+                        statistics.writeTo(out);
+                    }
+                    TableProfile profile = table.getProfile();
+                    IO.writeBoolean(out, profile != null);
+                    if (profile != null) {
+                        profile.writeTo(out);
+                    }
+                }
+            }
+        }
+        byte[] manifest = bytes.toByteArray();
+        String manifestId = hash(manifest);
+        File file = manifestFile(manifestId);
+        if (!file.isFile()) {
+            IO.writeAtomically(file, manifest);
+        }
+        return manifestId;
+    }
+
+    private File blockFile(String hash) {
+        return new File(new File(blockDirectory, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    private File manifestFile(String manifestId) {
+        return new File(manifestDirectory, manifestId);
+    }
+
+    private byte[] readBlock(String hash) {
+        byte[] block = cache.get(hash);
+        if (block == null) {
+            File file = blockFile(hash);
+            if (!file.isFile()) {
+                throw new IllegalStateException("block not found: " + hash);
+            }
+            block = IO.readBytes(file);
+            if (!hash.equals(hash(block))) {
+                throw new IllegalStateException("corrupted block: " + file);
+            }
+            cache.put(hash, block);
+        }
+        return block;
+    }
+
+    /**
+     * @return The hash of the block
+     */
+    private String writeBlock(Table table) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.writeDefinitionTo(new DataOutputStream(bytes));
+        byte[] block = bytes.toByteArray();
+        String hash = hash(block);
+        if (cache.get(hash) == null) {
+            File file = blockFile(hash);
+            if (!file.isFile()) {
+                IO.writeAtomically(file, block);
+            }
+            cache.put(hash, block);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,125 @@
+package br.com.staroski.db;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import br.com.staroski.IO;
+import br.com.staroski.Utils;
+
+/**
+ * This class streams the tables of one schema of a snapshot written by {@link Database#writeTo(java.io.OutputStream)}<br>
+ * The tables of the other schemas are read and discarded one by one, so only one table is in memory at a time, from format version 5 their
+ * segments are skipped without being decoded<br>
+ * The tables returned belong to a schema that does not list them, since the schema is never fully loaded<br>
+ * Snapshots older than format version 3 may not have their tables sorted, {@link MergeDiff} reports that when it happens, unless they are
+ * sorted by a {@link SpillingTableSource}
+ * 
+ * @author Ricardo Artur Staroski
+ */
+final class SnapshotTableSource implements TableSource {
+
+    private final DataInputStream in;
+    private final int version;
+    private Schema schema;
+    private int remaining;
+
+    /**
+     * The tables not read yet of the current segment, from format version 5
+     */
+    private int segmentRemaining;
+
+    SnapshotTableSource(InputStream in, String catalogName, String schemaName) {
+        this.in = in instanceof DataInputStream
+                ? (DataInputStream) in
+                : new DataInputStream(new BufferedInputStream(in));
+        List<Catalog> catalogs = new LinkedList<Catalog>();
+        Map<String, Catalog> catalogMap = new HashMap<String, Catalog>();
+        Database database = Database.readHeader(this.in, catalogs, catalogMap);
+        this.version = database.getFormatVersion();
+        seek(database, catalogs, catalogMap, catalogName, schemaName);
+    }
+
+    @Override
+    public void close() {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // nothing to do, the stream is being discarded
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return remaining > 0;
+    }
+
+    @Override
+    public Table next() {
+        if (remaining <= 0) {
+            throw new NoSuchElementException();
+        }
+        remaining--;
+        if (version >= 5) {
+            if (segmentRemaining == 0) {
+                segmentRemaining = IO.readInt(in);
+                IO.readInt(in); // the length of the segment, its tables are read one by one
+            }
+            segmentRemaining--;
+        }
+        return Table.readFrom(in, version).setSchema(schema);
+    }
+
+    /**
+     * @return <code>false</code> if the snapshot is older than format version 3, so its tables may not be sorted
+     */
+    boolean isSorted() {
+        return version >= 3;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Walks the catalog and schema headers, in the layout written by {@link Database#writeTo(java.io.OutputStream)}, until the wanted
+     * schema is reached<br>
+     * If the schema is not in the snapshot, this source is empty
+     */
+    private void seek(Database database, List<Catalog> catalogs, Map<String, Catalog> catalogMap, String catalogName, String schemaName) {
+        int catalogCount = IO.readInt(in);
+        for (int c = 0; c < catalogCount; c++) {
+            String thisCatalogName = IO.readString(in);
+            int schemaCount = IO.readInt(in);
+            for (int s = 0; s < schemaCount; s++) {
+                String thisSchemaName = IO.readString(in);
+                int tableCount = IO.readInt(in);
+                if (Utils.areEqualsIgnoreCase(catalogName, thisCatalogName) && Utils.areEqualsIgnoreCase(schemaName, thisSchemaName)) {
+                    List<Schema> schemas = new LinkedList<Schema>();
+                    Catalog catalog = new Catalog(thisCatalogName, schemas, new HashMap<String, Schema>()).setDatabase(database);
+                    catalogs.add(catalog);
+                    catalogMap.put(thisCatalogName, catalog);
+                    schema = new Schema(thisSchemaName, new LinkedList<Table>(), new HashMap<String, Table>()).setCatalog(catalog);
+                    schemas.add(schema);
+                    remaining = tableCount;
+                    return;
+                }
+                if (version >= 5) {
+                    SegmentedSnapshot.skipTables(in, tableCount);
+                    continue;
+                }
+                for (int t = 0; t < tableCount; t++) {
+                    Table.readFrom(in, version);
+                }
+            }
+        }
+        remaining = 0;
+    }
+}
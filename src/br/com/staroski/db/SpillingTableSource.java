@@ -0,0 +1,380 @@
+package br.com.staroski.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class sorts by name the tables of any stream, so they can be compared by a {@link MergeDiff}, keeping in memory at most a given
+ * number of bytes<br>
+ * The tables are kept encoded, as in a snapshot, and past the budget they are written to a temporary file in ascending name order, a sorted
+ * run, at the end the runs are merged and each table is decoded only when it is returned, so a schema of any size is sorted on a modest heap
+ * <br>
+ * The tables of the same name keep the order of the stream, so {@link MergeDiff} still compares the first one<br>
+ * The stream is read by the first call to {@link #hasNext()} or {@link #next()}, the tables returned belong to the schemas of the tables
+ * read, which do not list them, and the temporary files are deleted when this source is closed
+ *
+ * @author Ricardo Artur Staroski
+ */
+public final class SpillingTableSource implements TableSource {
+
+    /**
+     * A table encoded, in memory or at the head of a run
+     */
+    private static final class Entry {
+
+        final String name;
+        final int schemaIndex;
+        final byte[] table;
+
+        Entry(String name, int schemaIndex, byte[] table) {
+            this.name = name;
+            this.schemaIndex = schemaIndex;
+            this.table = table;
+        }
+
+        /**
+         * An estimate of the heap used by this entry
+         */
+        long size() {
+            return table.length + 2L * name.length() + 96;
+        }
+    }
+
+    /**
+     * A sorted run being merged, it holds only its head
+     */
+    private static final class Run {
+
+        final int order;
+        final DataInputStream in;
+        Entry head;
+
+        Run(int order, File file, int bufferSize) throws IOException {
+            this.order = order;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), bufferSize));
+        }
+
+        /**
+         * @return <code>false</code> if the run ended
+         */
+        boolean advance() {
+            try {
+                String name = in.readUTF();
+                int schemaIndex = in.readInt();
+                byte[] table = new byte[in.readInt()];
+                in.readFully(table);
+                head = new Entry(name, schemaIndex, table);
+                return true;
+            } catch (EOFException e) {
+                head = null;
+                return false;
+            } catch (IOException e) {
+                throw UncheckedException.wrap(e);
+            }
+        }
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // nothing to do, the run is being discarded
+            }
+        }
+    }
+
+    private static final Comparator<Entry> BY_NAME = new Comparator<Entry>() {
+
+        @Override
+        public int compare(Entry a, Entry b) {
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    private static final Comparator<Run> BY_HEAD = new Comparator<Run>() {
+
+        @Override
+        public int compare(Run a, Run b) {
+            int order = a.head.name.compareTo(b.head.name);
+            return order != 0 ? order : a.order - b.order; // the earlier run first, as its tables came first
+        }
+    };
+
+    static final int MIN_MEMORY_BUDGET = 1024;
+
+    /**
+     * The runs merged at the same time, more runs are merged in several passes, so the buffers of the runs also fit in the budget
+     */
+    private static final int MAX_MERGED_RUNS = 64;
+
+    private static void close(PriorityQueue<Run> runs) {
+        for (Run run : runs) {
+            run.close();
+        }
+    }
+
+    /**
+     * @return The head of the first run, which advances
+     */
+    private static Entry poll(PriorityQueue<Run> runs) {
+        Run run = runs.poll();
+        Entry entry = run.head;
+        if (run.advance()) {
+            runs.add(run);
+        } else {
+            run.close();
+        }
+        return entry;
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        out.writeUTF(entry.name);
+        out.writeInt(entry.schemaIndex);
+        out.writeInt(entry.table.length);
+        out.write(entry.table);
+    }
+
+    private final Iterator<Table> tables;
+    private final long memoryBudget;
+    private final int bufferSize;
+    private final List<Schema> schemas = new ArrayList<Schema>();
+    private final Map<Schema, Integer> schemaIndexes = new IdentityHashMap<Schema, Integer>();
+    private final List<Entry> buffer = new ArrayList<Entry>();
+    private final List<File> runFiles = new ArrayList<File>();
+
+    private File directory;
+    private int runCount;
+    private boolean sorted;
+    private Iterator<Entry> buffered;
+    private PriorityQueue<Run> runs;
+
+    /**
+     * @param tables The tables, in any order, if they come from a {@link TableSource} it is closed with this source
+     * @param memoryBudget Maximum number of bytes of the tables kept in memory, an estimate, at least 1024
+     */
+    public SpillingTableSource(Iterator<Table> tables, long memoryBudget) {
+        if (memoryBudget < MIN_MEMORY_BUDGET) {
+            throw new IllegalArgumentException("the memory budget must be at least " + MIN_MEMORY_BUDGET + " bytes: " + memoryBudget);
+        }
+        this.tables = tables;
+        this.memoryBudget = memoryBudget;
+        this.bufferSize = (int) Math.max(512, Math.min(64 * 1024, memoryBudget / MAX_MERGED_RUNS));
+    }
+
+    /**
+     * Closes the stream of tables and deletes the sorted runs
+     */
+    @Override
+    public void close() {
+        sorted = true;
+        if (runs != null) {
+            close(runs);
+            runs = null;
+        }
+        buffered = null;
+        buffer.clear();
+        if (tables instanceof Closeable) {
+            try {
+                ((Closeable) tables).close();
+            } catch (IOException e) {
+                // nothing to do, the tables were already read
+            }
+        }
+        for (File file : runFiles) {
+            file.delete();
+        }
+        runFiles.clear();
+        if (directory != null) {
+            directory.delete();
+            directory = null;
+        }
+    }
+
+    /**
+     * @return The number of sorted runs written to disk, including the ones written by the merge passes, 0 if all tables fit in the memory
+     *         budget
+     */
+    public int getRunCount() {
+        sort();
+        return runCount;
+    }
+
+    @Override
+    public boolean hasNext() {
+        sort();
+        return runs != null ? !runs.isEmpty() : buffered != null && buffered.hasNext();
+    }
+
+    @Override
+    public Table next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (runs == null) {
+            return decode(buffered.next());
+        }
+        return decode(poll(runs));
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private Table decode(Entry entry) {
+        Table table = Table.readFrom(new DataInputStream(new ByteArrayInputStream(entry.table)), Database.FORMAT_VERSION);
+        return table.setSchema(schemas.get(entry.schemaIndex));
+    }
+
+    private Entry encode(Table table) {
+        Schema schema = table.getSchema();
+        Integer schemaIndex = schemaIndexes.get(schema);
+        if (schemaIndex == null) {
+            schemaIndex = schemas.size();
+            schemas.add(schema);
+            schemaIndexes.put(schema, schemaIndex);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        table.writeTo(new DataOutputStream(bytes));
+        return new Entry(table.getName(), schemaIndex, bytes.toByteArray());
+    }
+
+    /**
+     * Merges the given runs into a new one, which is returned, and deletes them
+     */
+    private File merge(List<File> files) throws IOException {
+        File file = newRunFile();
+        PriorityQueue<Run> queue = open(files);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), bufferSize));
+            try {
+                while (!queue.isEmpty()) {
+                    write(out, poll(queue));
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            close(queue);
+        }
+        for (File merged : files) {
+            merged.delete();
+        }
+        return file;
+    }
+
+    private File newRunFile() throws IOException {
+        if (directory == null) {
+            directory = Files.createTempDirectory("table-runs").toFile();
+        }
+        return new File(directory, String.format("run%06d", runCount++));
+    }
+
+    /**
+     * @return The runs, each one at its first table, ordered by it
+     */
+    private PriorityQueue<Run> open(List<File> files) throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<Run>(files.size(), BY_HEAD);
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                Run run = new Run(i, files.get(i), bufferSize);
+                if (run.advance()) {
+                    queue.add(run);
+                } else {
+                    run.close();
+                }
+            }
+        } catch (IOException e) {
+            close(queue);
+            throw e;
+        }
+        return queue;
+    }
+
+    /**
+     * Reads all tables, spilling the sorted runs, and prepares the merge
+     */
+    private void sort() {
+        if (sorted) {
+            return;
+        }
+        sorted = true;
+        long bufferedSize = 0;
+        while (tables.hasNext()) {
+            Entry entry = encode(tables.next());
+            buffer.add(entry);
+            bufferedSize += entry.size();
+            if (bufferedSize > memoryBudget) {
+                spill();
+                bufferedSize = 0;
+            }
+        }
+        Collections.sort(buffer, BY_NAME); // stable, the tables of the same name keep their order
+        if (runFiles.isEmpty()) {
+            buffered = buffer.iterator();
+            return;
+        }
+        spill();
+        try {
+            while (runFiles.size() > MAX_MERGED_RUNS) {
+                // the groups are consecutive, so the tables of the same name still keep their order
+                List<File> merged = new ArrayList<File>();
+                for (int i = 0; i < runFiles.size(); i += MAX_MERGED_RUNS) {
+                    List<File> group = runFiles.subList(i, Math.min(i + MAX_MERGED_RUNS, runFiles.size()));
+                    merged.add(group.size() == 1 ? group.get(0) : merge(group));
+                }
+                runFiles.clear();
+                runFiles.addAll(merged);
+            }
+            runs = open(runFiles);
+        } catch (IOException e) {
+            throw UncheckedException.wrap(e);
+        }
+    }
+
+    /**
+     * Writes the buffer, in ascending name order, to a new run
+     */
+    private void spill() {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        Collections.sort(buffer, BY_NAME);
+        try {
+            File file = newRunFile();
+            runFiles.add(file);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), bufferSize));
+            try {
+                for (Entry entry : buffer) {
+                    write(out, entry);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw UncheckedException.wrap(e);
+        }
+        buffer.clear();
+    }
+}
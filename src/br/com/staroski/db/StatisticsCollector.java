@@ -0,0 +1,225 @@
+package br.com.staroski.db;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import br.com.staroski.UncheckedException;
+import br.com.staroski.Utils;
+
+/**
+ * This class collects the {@link TableStatistics} of all tables of a database<br>
+ * The catalog statistics of the {@link Dialect} are used when available, otherwise the rows are counted with at most <code>maxConnections</code>
+ * parallel <code>COUNT(*)</code> queries<br>
+ * Only base tables are counted, views are left without statistics, and no table is counted while the {@link QueryRateLimiter} of the database
+ * is overloaded
+ * 
+ * @author Ricardo Artur Staroski
+ */
+final class StatisticsCollector {
+
+    static void close(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // nothing to do, the connection is being discarded
+        }
+    }
+
+    static String identifierQuote(DatabaseMetaData metaData) throws SQLException {
+        String quote = metaData.getIdentifierQuoteString();
+        return quote == null || quote.trim().isEmpty() ? "" : quote.trim();
+    }
+
+    static List<String> listCatalogs(DatabaseMetaData metaData) throws SQLException {
+        List<String> names = new LinkedList<String>();
+        ResultSet result = metaData.getCatalogs();
+        try {
+            while (result.next()) {
+                names.add(result.getString("TABLE_CAT"));
+            }
+        } finally {
+            result.close();
+        }
+        return names;
+    }
+
+    static List<String> listSchemas(DatabaseMetaData metaData, String catalogName) throws SQLException {
+        List<String> names = new LinkedList<String>();
+        ResultSet result = metaData.getSchemas();
+        try {
+            while (result.next()) {
+                String schemaCatalogName;
+                try {
+                    schemaCatalogName = result.getString("TABLE_CAT"); // same workaround used by Catalog.getSchemas()
+                } catch (Exception e) {
+                    schemaCatalogName = result.getString("TABLE_CATALOG");
+                }
+                if (Utils.areEqualsIgnoreCase(catalogName, schemaCatalogName)) {
+                    names.add(result.getString("TABLE_SCHEM"));
+                }
+            }
+        } finally {
+            result.close();
+        }
+        return names;
+    }
+
+    /**
+     * @return The name of the given table, qualified by its schema and catalog when they exist, as the database expects them
+     */
+    static String qualifiedName(DatabaseMetaData metaData, String catalogName, String schemaName, String tableName) throws SQLException {
+        String quote = identifierQuote(metaData);
+        String name = schemaName == null ? quote(tableName, quote) : quote(schemaName, quote) + "." + quote(tableName, quote);
+        if (catalogName == null || catalogName.isEmpty()) {
+            return name;
+        }
+        String separator = metaData.getCatalogSeparator();
+        if (separator == null || separator.isEmpty()) {
+            separator = ".";
+        }
+        return metaData.isCatalogAtStart() ? quote(catalogName, quote) + separator + name : name + separator + quote(catalogName, quote);
+    }
+
+    static String quote(String identifier, String quote) {
+        if (quote.isEmpty()) {
+            return identifier;
+        }
+        return quote + identifier.replace(quote, quote + quote) + quote;
+    }
+
+    static void waitFor(Future<?> future) {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw UncheckedException.wrap(e);
+        } catch (ExecutionException e) {
+            throw UncheckedException.wrap(e.getCause());
+        }
+    }
+
+    private final Database database;
+    private final int maxConnections;
+    private final BlockingQueue<Connection> connections = new LinkedBlockingQueue<Connection>();
+
+    StatisticsCollector(Database database, int maxConnections) {
+        if (maxConnections < 1) {
+            throw new IllegalArgumentException("maxConnections must be at least 1");
+        }
+        this.database = database;
+        this.maxConnections = maxConnections;
+    }
+
+    Future<Database> start() {
+        FutureTask<Database> task = new FutureTask<Database>(new Callable<Database>() {
+
+            @Override
+            public Database call() throws Exception {
+                collect();
+                return database;
+            }
+        });
+        new DaemonThreadFactory("statistics-" + database.getAlias()).newThread(task).start();
+        return task;
+    }
+
+    private void collect() throws SQLException {
+        ExecutorService executor = Executors.newFixedThreadPool(maxConnections, new DaemonThreadFactory("count-" + database.getAlias()));
+        Connection connection = database.openConnection();
+        try {
+            List<Future<?>> counts = new LinkedList<Future<?>>();
+            DatabaseMetaData metaData = connection.getMetaData();
+            for (String catalogName : listCatalogs(metaData)) {
+                for (String schemaName : listSchemas(metaData, catalogName)) {
+                    collect(connection, executor, counts, catalogName, schemaName);
+                }
+            }
+            for (Future<?> count : counts) {
+                waitFor(count);
+            }
+        } finally {
+            executor.shutdownNow();
+            close(connection);
+            for (Connection pooled : connections) {
+                close(pooled);
+            }
+        }
+    }
+
+    private void collect(Connection connection, ExecutorService executor, List<Future<?>> counts, final String catalogName, final String schemaName)
+            throws SQLException {
+        Map<String, TableStatistics> catalogStatistics;
+        try {
+            catalogStatistics = database.getDialect().loadStatistics(connection, catalogName, schemaName);
+        } catch (SQLException e) {
+            catalogStatistics = null; // usually a missing privilege on the system views, the rows still can be counted
+        }
+        DatabaseMetaData metaData = connection.getMetaData();
+        ResultSet result = metaData.getTables(catalogName, schemaName, null, new String[] { "TABLE" });
+        try {
+            while (result.next()) {
+                if (!Utils.areEqualsIgnoreCase(schemaName, result.getString("TABLE_SCHEM"))) {
+                    continue;
+                }
+                final String tableName = result.getString("TABLE_NAME");
+                TableStatistics statistics = catalogStatistics == null ? null : catalogStatistics.get(tableName);
+                if (statistics != null) {
+                    database.putStatistics(catalogName, schemaName, tableName, statistics);
+                    continue;
+                }
+                final String qualifiedName = qualifiedName(metaData, catalogName, schemaName, tableName);
+                counts.add(executor.submit(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        count(catalogName, schemaName, tableName, qualifiedName);
+                    }
+                }));
+            }
+        } finally {
+            result.close();
+        }
+    }
+
+    private void count(String catalogName, String schemaName, String tableName, String qualifiedName) {
+        if (database.isOverloaded()) {
+            return; // load shedding, the counts are optional and the server is already too slow for the metadata queries
+        }
+        Connection connection = connections.poll();
+        try {
+            if (connection == null) {
+                connection = database.openConnection();
+            }
+            Statement statement = connection.createStatement();
+            try {
+                ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM " + qualifiedName);
+                if (result.next()) {
+                    database.putStatistics(catalogName, schemaName, tableName, new TableStatistics(result.getLong(1), TableStatistics.UNKNOWN, true));
+                }
+                result.close();
+            } finally {
+                statement.close();
+            }
+            connections.offer(connection);
+        } catch (SQLException e) {
+            // the table is left without statistics, usually it can't be read by this user
+            if (connection != null) {
+                close(connection); // the connection may be broken, or in an aborted transaction, it is not reused
+            }
+        }
+    }
+}
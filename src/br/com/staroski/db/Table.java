@@ -1,10 +1,12 @@
 package br.com.staroski.db;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -23,7 +25,35 @@ import br.com.staroski.Utils;
  */
 public final class Table implements Comparable<Table> {
 
-    static Table readFrom(DataInputStream in) {
+    /**
+     * Creates a table that is not attached to any schema yet, like the ones read from a snapshot
+     */
+    static Table create(String name, String type, List<Column> columns, Index primaryKey, List<Index> indexes, List<ForeignKey> foreignKeys,
+            TableStatistics statistics) {
+        Map<String, Column> columnMap = new HashMap<String, Column>();
+        for (Column column : columns) {
+            columnMap.put(column.getName(), column);
+        }
+        Table table = new Table(name, type, new ArrayList<Column>(columns), columnMap);
+        table.statistics = statistics;
+        return table.setKeys(primaryKey, indexes, foreignKeys);
+    }
+
+    static Table readFrom(DataInputStream in, int version) {
+        Table table = readDefinitionFrom(in, version);
+        if (version >= 2 && IO.readBoolean(in)) {
+            table.statistics = TableStatistics.readFrom(in);
+        }
+        if (version >= 4 && IO.readBoolean(in)) {
+            table.profile = TableProfile.readFrom(in);
+        }
+        return table;
+    }
+
+    /**
+     * Reads everything written by {@link #writeDefinitionTo(DataOutputStream)}
+     */
+    static Table readDefinitionFrom(DataInputStream in, int version) {
         String name = IO.readString(in);
         String type = IO.readString(in);
         List<Column> columns = new LinkedList<Column>();
@@ -35,7 +65,23 @@ public final class Table implements Comparable<Table> {
             columns.add(column);
             columnMap.put(column.getName(), column);
         }
-        return table;
+        Index primaryKey = null;
+        List<Index> indexes = new LinkedList<Index>();
+        List<ForeignKey> foreignKeys = new LinkedList<ForeignKey>();
+        if (version >= 1) {
+            if (IO.readBoolean(in)) {
+                primaryKey = Index.readFrom(in);
+            }
+            int indexCount = IO.readInt(in);
+            for (int i = 0; i < indexCount; i++) {
+                indexes.add(Index.readFrom(in));
+            }
+            int foreignKeyCount = IO.readInt(in);
+            for (int i = 0; i < foreignKeyCount; i++) {
+                foreignKeys.add(ForeignKey.readFrom(in));
+            }
+        }
+        return table.setKeys(primaryKey, indexes, foreignKeys);
     }
 
     private final String name;
@@ -45,6 +91,12 @@ public final class Table implements Comparable<Table> {
     private Schema schema;
     private List<Column> columns;
     private Map<String, Column> columnMap;
+    private Index primaryKey;
+    private List<Index> indexes;
+    private List<ForeignKey> foreignKeys;
+    private TableStatistics statistics;
+    private TableProfile profile;
+    private volatile String definitionHash;
 
     private Table(String name, String type, List<Column> columns, Map<String, Column> columnMap) {
         this.name = name;
@@ -138,49 +190,90 @@ public final class Table implements Comparable<Table> {
         if (columns != null) {
             return columns;
         }
-        columnMap = new HashMap<String, Column>();
-        List<Column> list = new LinkedList<Column>();
-        if (connection != null) {
-            Schema thisSchema = getSchema();
-            try {
-                String thisCatalogName = thisSchema.getCatalog().getName();
-                String thisSchemaName = thisSchema.getName();
-                String thisTableName = getName();
-                ResultSet result = connection.getMetaData().getColumns(thisCatalogName, thisSchemaName, thisTableName, null);
-                while (result.next()) {
-                    String catalogName = result.getString("TABLE_CAT");
-                    String schemaName = result.getString("TABLE_SCHEM");
-                    String tableName = result.getString("TABLE_NAME");
-                    if (!Utils.areEqualsIgnoreCase(thisCatalogName, catalogName)
-                            || !Utils.areEqualsIgnoreCase(thisSchemaName, schemaName)
-                            || !Utils.areEqualsIgnoreCase(thisTableName, tableName)) {
-                        continue;
-                    }
-                    String columnName = result.getString("COLUMN_NAME");
-                    String columnType = result.getString("TYPE_NAME");
-                    int size = result.getInt("COLUMN_SIZE");
-                    int decimalDigits = result.getInt("DECIMAL_DIGITS");
-                    int javaSqlType = result.getInt("DATA_TYPE");
-                    Column column = new Column(columnName, columnType, size, decimalDigits, javaSqlType);
-                    list.add(column);
-                    columnMap.put(columnName, column);
-                }
-            } catch (SQLException e) {
-                throw UncheckedException.wrap(e);
-            }
-        }
+        Map<String, Column> map = new HashMap<String, Column>();
+        List<Column> list = readColumns(map);
+        columnMap = map;
         columns = Collections.unmodifiableList(list);
         return columns;
     }
 
+    public ForeignKey getForeignKey(String name) {
+        for (ForeignKey foreignKey : getForeignKeys()) {
+            if (Utils.areEquals(name, foreignKey.getName())) {
+                return foreignKey;
+            }
+        }
+        return null;
+    }
+
+    public List<ForeignKey> getForeignKeys() {
+        loadKeys();
+        return foreignKeys;
+    }
+
+    public Index getIndex(String name) {
+        for (Index index : getIndexes()) {
+            if (Utils.areEquals(name, index.getName())) {
+                return index;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The unique and non-unique indexes of this table, the primary key is available through {@link #getPrimaryKey()}
+     */
+    public List<Index> getIndexes() {
+        loadKeys();
+        return indexes;
+    }
+
     public String getName() {
         return name;
     }
 
+    /**
+     * @return The primary key of this table or <code>null</code> if it has no primary key
+     */
+    public Index getPrimaryKey() {
+        loadKeys();
+        return primaryKey;
+    }
+
+    /**
+     * @return The profiles of the columns of this table or <code>null</code> if they were not collected
+     * @see Database#collectProfiles(int, int)
+     */
+    public TableProfile getProfile() {
+        if (profile != null) {
+            return profile;
+        }
+        if (connection == null) {
+            return null;
+        }
+        Schema thisSchema = getSchema();
+        return thisSchema.getCatalog().getDatabase().getProfile(thisSchema.getCatalog().getName(), thisSchema.getName(), getName());
+    }
+
     public Schema getSchema() {
         return schema;
     }
 
+    /**
+     * @return The row count and size of this table or <code>null</code> if they were not collected
+     * @see Database#collectStatistics(int)
+     */
+    public TableStatistics getStatistics() {
+        if (statistics != null) {
+            return statistics;
+        }
+        if (connection == null) {
+            return null;
+        }
+        Schema thisSchema = getSchema();
+        return thisSchema.getCatalog().getDatabase().getStatistics(thisSchema.getCatalog().getName(), thisSchema.getName(), getName());
+    }
+
     public String getType() {
         return type;
     }
@@ -200,12 +293,94 @@ public final class Table implements Comparable<Table> {
         return String.format("%s[%s]", Table.class.getSimpleName(), tableName);
     }
 
+    /**
+     * @return A copy of this table, loaded and not attached to any schema, that shares its columns and keys, which never change
+     */
+    Table copy() {
+        Table copy = new Table(name, type, getColumns(), columnMap);
+        copy.statistics = getStatistics();
+        copy.profile = getProfile();
+        copy.setKeys(getPrimaryKey(), getIndexes(), getForeignKeys());
+        copy.definitionHash = definitionHash;
+        return copy;
+    }
+
+    /**
+     * @return This table if it is already loaded, otherwise a loaded copy of it, so the columns read are not kept by this table
+     */
+    Table detach() {
+        if (connection == null || columns != null) {
+            return this;
+        }
+        Map<String, Column> map = new HashMap<String, Column>();
+        Table copy = new Table(name, type, readColumns(map), map);
+        copy.schema = schema;
+        copy.statistics = getStatistics();
+        copy.profile = getProfile();
+        return copy.setKeys(getPrimaryKey(), getIndexes(), getForeignKeys());
+    }
+
+    /**
+     * @return The hash of the {@link #writeDefinitionTo(DataOutputStream) definition} of this table and of the canonical types of its
+     *         columns, which depend on the {@link TypeNormalizer} active when they were created, computed once
+     */
+    String getDefinitionHash() {
+        String hash = definitionHash;
+        if (hash == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            writeDefinitionTo(out);
+            for (Column column : getColumns()) {
+                column.writeCanonicalTypeTo(out);
+            }
+            hash = SnapshotStore.hash(bytes.toByteArray());
+            definitionHash = hash;
+        }
+        return hash;
+    }
+
+    boolean hasKeysLoaded() {
+        return indexes != null;
+    }
+
+    /**
+     * Takes the columns and keys of the given table, recorded by an earlier crawl, so they are not queried
+     */
+    void restoreDefinition(Table saved) {
+        columnMap = saved.columnMap;
+        columns = saved.getColumns();
+        definitionHash = null;
+        setKeys(saved.getPrimaryKey(), saved.getIndexes(), saved.getForeignKeys());
+    }
+
+    Table setKeys(Index primaryKey, List<Index> indexes, List<ForeignKey> foreignKeys) {
+        this.primaryKey = primaryKey;
+        this.indexes = Collections.unmodifiableList(indexes);
+        this.foreignKeys = Collections.unmodifiableList(foreignKeys);
+        this.definitionHash = null;
+        return this;
+    }
+
+    Table setProfile(TableProfile profile) {
+        this.profile = profile;
+        return this;
+    }
+
     Table setSchema(Schema schema) {
         this.schema = schema;
         return this;
     }
 
-    void writeTo(DataOutputStream out) {
+    Table setStatistics(TableStatistics statistics) {
+        this.statistics = statistics;
+        return this;
+    }
+
+    /**
+     * Writes the structure of this table, which is everything but the statistics and profiles, that usually change even when the structure
+     * does not
+     */
+    void writeDefinitionTo(DataOutputStream out) {
         IO.writeString(out, name);
         IO.writeString(out, type);
         List<Column> columns = getColumns();
@@ -213,5 +388,81 @@ public final class Table implements Comparable<Table> {
         for (Column column : columns) {
             column.writeTo(out);
         }
+        Index primaryKey = getPrimaryKey();
+        IO.writeBoolean(out, primaryKey != null);
+        if (primaryKey != null) {
+            primaryKey.writeTo(out);
+        }
+        List<Index> indexes = getIndexes();
+        IO.writeInt(out, indexes.size());
+        for (Index index : indexes) {
+            index.writeTo(out);
+        }
+        List<ForeignKey> foreignKeys = getForeignKeys();
+        IO.writeInt(out, foreignKeys.size());
+        for (ForeignKey foreignKey : foreignKeys) {
+            foreignKey.writeTo(out);
+        }
+    }
+
+    void writeTo(DataOutputStream out) {
+        writeDefinitionTo(out);
+        TableStatistics statistics = getStatistics();
+        IO.writeBoolean(out, statistics != null);
+        if (statistics != null) {
+            statistics.writeTo(out);
+        }
+        TableProfile profile = getProfile();
+        IO.writeBoolean(out, profile != null);
+        if (profile != null) {
+            profile.writeTo(out);
+        }
+    }
+
+    private List<Column> readColumns(Map<String, Column> map) {
+        List<Column> list = new LinkedList<Column>();
+        if (connection != null) {
+            Schema thisSchema = getSchema();
+            try {
+                String thisCatalogName = thisSchema.getCatalog().getName();
+                String thisSchemaName = thisSchema.getName();
+                String thisTableName = getName();
+                ResultSet result = connection.getMetaData().getColumns(thisCatalogName, thisSchemaName, thisTableName, null);
+                while (result.next()) {
+                    String catalogName = result.getString("TABLE_CAT");
+                    String schemaName = result.getString("TABLE_SCHEM");
+                    String tableName = result.getString("TABLE_NAME");
+                    if (!Utils.areEqualsIgnoreCase(thisCatalogName, catalogName)
+                            || !Utils.areEqualsIgnoreCase(thisSchemaName, schemaName)
+                            || !Utils.areEqualsIgnoreCase(thisTableName, tableName)) {
+                        continue;
+                    }
+                    String columnName = result.getString("COLUMN_NAME");
+                    String columnType = result.getString("TYPE_NAME");
+                    int size = result.getInt("COLUMN_SIZE");
+                    int decimalDigits = result.getInt("DECIMAL_DIGITS");
+                    int javaSqlType = result.getInt("DATA_TYPE");
+                    Column column = new Column(columnName, columnType, size, decimalDigits, javaSqlType);
+                    list.add(column);
+                    map.put(columnName, column);
+                }
+            } catch (SQLException e) {
+                throw UncheckedException.wrap(e);
+            }
+        }
+        return list;
+    }
+
+    private void loadKeys() {
+        if (indexes != null) {
+            return;
+        }
+        if (connection != null) {
+            // all the tables of the schema are loaded at once, one query per key kind instead of one per table
+            getSchema().loadKeys();
+        }
+        if (indexes == null) {
+            setKeys(null, new LinkedList<Index>(), new LinkedList<ForeignKey>());
+        }
     }
 }
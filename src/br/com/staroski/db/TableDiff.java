@@ -1,27 +1,72 @@
 package br.com.staroski.db;
 
+import java.util.BitSet;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 /**
- * This class keeps the differences between some tables
+ * This class keeps the differences between some tables<br>
+ * The comparisons are kept in a cache shared by the whole process, by the definitions of the compared tables, so the tables compared again
+ * are not compared again, see {@link #setCacheSize(int)}
  * 
  * @author Ricardo Artur Staroski
  */
 public final class TableDiff {
 
+    /**
+     * Removes all comparisons from the cache shared by the process
+     */
+    public static void clearCache() {
+        TableDiffCache.getInstance().clear();
+    }
+
+    /**
+     * Sets the maximum number of comparisons kept in the cache shared by the process, the least recently used ones are removed first, 0 turns
+     * the cache off, the default is 10000<br>
+     * The comparisons made with custom filters are kept only for the same filter instance, so the filter should be reused
+     */
+    public static void setCacheSize(int maxComparisons) {
+        TableDiffCache.getInstance().setMaxComparisons(maxComparisons);
+    }
+
+    /**
+     * <code>true</code> if some column is missing or has another canonical type in some table, or if some key is different
+     */
     public final boolean hasDifferences;
     public final List<String> columnNames;
+    public final List<String> indexNames;
+    public final List<String> foreignKeyNames;
     public final List<Table> tables;
 
     private final DiffFilter filter;
+    private final TableDiffCache.Comparison comparison;
+
+    private double renameThreshold = RenameDetector.DEFAULT_THRESHOLD;
+    private List<Rename> columnRenames;
+    private Map<String, Rename> columnRenameMap;
 
     protected TableDiff(DiffFilter filter, List<Table> tables) {
         this.filter = filter != null ? filter : new DiffFilter();
         this.tables = tables;
-        this.columnNames = getColumnNames(tables, this.filter);
-        this.hasDifferences = checkDifferences(columnNames);
+        TableDiffCache cache = TableDiffCache.getInstance();
+        TableDiffCache.Comparison cached = cache.get(this.filter, tables);
+        if (cached != null) {
+            this.columnNames = cached.columnNames;
+            this.indexNames = cached.indexNames;
+            this.foreignKeyNames = cached.foreignKeyNames;
+            this.hasDifferences = cached.hasDifferences;
+            this.comparison = cached;
+        } else {
+            this.columnNames = getColumnNames(tables, this.filter);
+            this.indexNames = getIndexNames(tables, this.filter);
+            this.foreignKeyNames = getForeignKeyNames(tables, this.filter);
+            this.hasDifferences = checkDifferences(columnNames) || checkKeyDifferences();
+            this.comparison = new TableDiffCache.Comparison(columnNames, indexNames, foreignKeyNames, hasDifferences);
+            cache.put(this.filter, tables, comparison);
+        }
     }
 
     public boolean allTablesContains(String columnName) {
@@ -36,6 +81,152 @@ public final class TableDiff {
         return true;
     }
 
+    public boolean allTablesContainsForeignKey(String foreignKeyName) {
+        if (!filter.acceptForeignKey(foreignKeyName)) {
+            return false;
+        }
+        for (Table table : tables) {
+            if (table.getForeignKey(foreignKeyName) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean allTablesContainsIndex(String indexName) {
+        if (!filter.acceptIndex(indexName)) {
+            return false;
+        }
+        for (Table table : tables) {
+            if (table.getIndex(indexName) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return <code>true</code> if all tables have the given column with the same canonical type, size and scale, see {@link TypeNormalizer}
+     */
+    public boolean areColumnsEquals(String columnName) {
+        Column column1 = tables.get(0).getColumn(columnName);
+        for (int i = 1; i < tables.size(); i++) {
+            Column columnN = tables.get(i).getColumn(columnName);
+            if (column1 == columnN) {
+                continue;
+            }
+            if (column1 == null) {
+                return false;
+            }
+            if (!column1.hasSameDefinition(columnN)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean areForeignKeysEquals(String foreignKeyName) {
+        if (!allTablesContainsForeignKey(foreignKeyName)) {
+            return false;
+        }
+        ForeignKey foreignKey1 = tables.get(0).getForeignKey(foreignKeyName);
+        for (int i = 1; i < tables.size(); i++) {
+            if (!foreignKey1.hasSameDefinition(tables.get(i).getForeignKey(foreignKeyName))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean areIndexesEquals(String indexName) {
+        if (!allTablesContainsIndex(indexName)) {
+            return false;
+        }
+        Index index1 = tables.get(0).getIndex(indexName);
+        for (int i = 1; i < tables.size(); i++) {
+            if (!index1.hasSameDefinition(tables.get(i).getIndex(indexName))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Primary keys are compared by definition only, because their names are usually generated by the database
+     */
+    public boolean arePrimaryKeysEquals() {
+        Index primaryKey1 = tables.get(0).getPrimaryKey();
+        for (int i = 1; i < tables.size(); i++) {
+            Index primaryKeyN = tables.get(i).getPrimaryKey();
+            if (primaryKey1 == null) {
+                if (primaryKeyN != null) {
+                    return false;
+                }
+            } else if (!primaryKey1.hasSameDefinition(primaryKeyN)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param table One of the compared {@link #tables}
+     */
+    public DiffStatus getColumnStatus(Table table, String columnName) {
+        if (areColumnsEquals(columnName)) {
+            return DiffStatus.EQUAL;
+        }
+        return table.contains(columnName) ? DiffStatus.DIFFERENT : DiffStatus.MISSING;
+    }
+
+    /**
+     * @return The rename the given column takes part in, <code>null</code> if none
+     * @see #getColumnRenames()
+     */
+    public Rename getColumnRename(String columnName) {
+        return columnRenameMap().get(columnName);
+    }
+
+    /**
+     * @return The columns missing in some tables that were probably renamed to columns found only in those tables, from the most to the
+     *         least similar, the columns are compared by the trigrams of their names and by their canonical types, see
+     *         {@link SchemaDiff#setRenameThreshold(double)}
+     */
+    public synchronized List<Rename> getColumnRenames() {
+        columnRenameMap();
+        return columnRenames;
+    }
+
+    /**
+     * @param table One of the compared {@link #tables}
+     */
+    public DiffStatus getForeignKeyStatus(Table table, String foreignKeyName) {
+        if (areForeignKeysEquals(foreignKeyName)) {
+            return DiffStatus.EQUAL;
+        }
+        return table.getForeignKey(foreignKeyName) != null ? DiffStatus.DIFFERENT : DiffStatus.MISSING;
+    }
+
+    /**
+     * @param table One of the compared {@link #tables}
+     */
+    public DiffStatus getIndexStatus(Table table, String indexName) {
+        if (areIndexesEquals(indexName)) {
+            return DiffStatus.EQUAL;
+        }
+        return table.getIndex(indexName) != null ? DiffStatus.DIFFERENT : DiffStatus.MISSING;
+    }
+
+    /**
+     * @param table One of the compared {@link #tables}
+     */
+    public DiffStatus getPrimaryKeyStatus(Table table) {
+        if (arePrimaryKeysEquals()) {
+            return DiffStatus.EQUAL;
+        }
+        return table.getPrimaryKey() != null ? DiffStatus.DIFFERENT : DiffStatus.MISSING;
+    }
+
     public List<Table> getTablesWithColumn(String columnName) {
         List<Table> containing = new LinkedList<Table>();
         if (!filter.acceptColumn(columnName)) {
@@ -48,15 +239,84 @@ public final class TableDiff {
         return containing;
     }
 
+    /**
+     * @param threshold The minimum similarity of a column rename, 0 turns the detection off
+     */
+    void setRenameThreshold(double threshold) {
+        this.renameThreshold = threshold;
+        this.columnRenameMap = null;
+    }
+
     private boolean checkDifferences(List<String> columnNames) {
         for (String columnName : columnNames) {
-            if (!allTablesContains(columnName)) {
+            if (!allTablesContains(columnName) || !areColumnsEquals(columnName)) {
                 return true;
             }
         }
         return false;
     }
 
+    private boolean checkKeyDifferences() {
+        if (!arePrimaryKeysEquals()) {
+            return true;
+        }
+        for (String indexName : indexNames) {
+            if (!areIndexesEquals(indexName)) {
+                return true;
+            }
+        }
+        for (String foreignKeyName : foreignKeyNames) {
+            if (!areForeignKeysEquals(foreignKeyName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return The renames by old and new column names
+     */
+    private synchronized Map<String, Rename> columnRenameMap() {
+        if (columnRenameMap != null) {
+            return columnRenameMap;
+        }
+        columnRenameMap = new HashMap<String, Rename>();
+        columnRenames = Collections.emptyList();
+        if (renameThreshold <= 0) {
+            return columnRenameMap;
+        }
+        List<Rename> renames = comparison.getColumnRenames(renameThreshold);
+        if (renames == null) {
+            renames = Collections.unmodifiableList(detectColumnRenames());
+            comparison.putColumnRenames(renameThreshold, renames);
+        }
+        columnRenames = renames;
+        for (Rename rename : columnRenames) {
+            columnRenameMap.put(rename.name, rename);
+            columnRenameMap.put(rename.newName, rename);
+        }
+        return columnRenameMap;
+    }
+
+    private List<Rename> detectColumnRenames() {
+        RenameDetector detector = new RenameDetector(renameThreshold);
+        for (String columnName : columnNames) {
+            BitSet presence = new BitSet(tables.size());
+            Column column = null;
+            for (int i = 0; i < tables.size(); i++) {
+                Column columnN = tables.get(i).getColumn(columnName);
+                if (columnN != null) {
+                    presence.set(i);
+                    column = column == null ? columnN : column;
+                }
+            }
+            if (presence.cardinality() < tables.size()) {
+                detector.add(columnName, presence, RenameDetector.columnFeatures(column));
+            }
+        }
+        return detector.detect();
+    }
+
     private List<String> getColumnNames(List<Table> tables, DiffFilter filter) {
         final List<String> names = new LinkedList<String>();
         for (Table table : tables) {
@@ -70,4 +330,32 @@ public final class TableDiff {
         Collections.sort(names);
         return Collections.unmodifiableList(names);
     }
+
+    private List<String> getForeignKeyNames(List<Table> tables, DiffFilter filter) {
+        final List<String> names = new LinkedList<String>();
+        for (Table table : tables) {
+            for (ForeignKey foreignKey : table.getForeignKeys()) {
+                String name = foreignKey.getName();
+                if (filter.acceptForeignKey(name) && !names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        Collections.sort(names);
+        return Collections.unmodifiableList(names);
+    }
+
+    private List<String> getIndexNames(List<Table> tables, DiffFilter filter) {
+        final List<String> names = new LinkedList<String>();
+        for (Table table : tables) {
+            for (Index index : table.getIndexes()) {
+                String name = index.getName();
+                if (filter.acceptIndex(name) && !names.contains(name)) {
+                    names.add(name);
+                }
+            }
+        }
+        Collections.sort(names);
+        return Collections.unmodifiableList(names);
+    }
 }
@@ -0,0 +1,150 @@
+package br.com.staroski.db;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class keeps the most recently used comparisons of tables, shared by all {@link TableDiff}s of the process, so the tables that are
+ * compared again, like the same table of an environment compared with 50 others, or a report that runs again, are not compared again<br>
+ * A comparison is found by the hashes of the definitions of the compared tables, in the same order, and by the {@link DiffFilter}, which
+ * is compared by identity, except the default filter, that accepts everything<br>
+ * The hashes include the canonical types of the columns, so the tables loaded after a change of the {@link TypeNormalizer} do not get the
+ * comparisons of the tables loaded before it
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class TableDiffCache {
+
+    /**
+     * The results of comparing some table definitions, which do not depend on the tables themselves, only on their definitions
+     */
+    static final class Comparison {
+
+        final List<String> columnNames;
+        final List<String> indexNames;
+        final List<String> foreignKeyNames;
+        final boolean hasDifferences;
+
+        /**
+         * The renames of the columns by threshold
+         */
+        private final Map<Double, List<Rename>> columnRenames = new HashMap<Double, List<Rename>>();
+
+        Comparison(List<String> columnNames, List<String> indexNames, List<String> foreignKeyNames, boolean hasDifferences) {
+            this.columnNames = columnNames;
+            this.indexNames = indexNames;
+            this.foreignKeyNames = foreignKeyNames;
+            this.hasDifferences = hasDifferences;
+        }
+
+        synchronized List<Rename> getColumnRenames(double threshold) {
+            return columnRenames.get(threshold);
+        }
+
+        synchronized void putColumnRenames(double threshold, List<Rename> renames) {
+            columnRenames.put(threshold, renames);
+        }
+    }
+
+    private static final class Key {
+
+        private final DiffFilter filter;
+        private final String hashes;
+
+        Key(DiffFilter filter, String hashes) {
+            this.filter = filter;
+            this.hashes = hashes;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return filter == other.filter && hashes.equals(other.hashes);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(filter) + hashes.hashCode();
+        }
+    }
+
+    static final int DEFAULT_MAX_COMPARISONS = 10000;
+
+    private static final TableDiffCache INSTANCE = new TableDiffCache(DEFAULT_MAX_COMPARISONS);
+
+    static TableDiffCache getInstance() {
+        return INSTANCE;
+    }
+
+    private final Map<Key, Comparison> comparisons = new LinkedHashMap<Key, Comparison>(16, 0.75f, true);
+    private int maxComparisons;
+
+    private TableDiffCache(int maxComparisons) {
+        this.maxComparisons = maxComparisons;
+    }
+
+    synchronized void clear() {
+        comparisons.clear();
+    }
+
+    /**
+     * @return The comparison of the given tables, <code>null</code> if they were not compared yet, or if the cache is disabled
+     */
+    Comparison get(DiffFilter filter, List<Table> tables) {
+        synchronized (this) {
+            if (maxComparisons == 0) {
+                return null;
+            }
+        }
+        Key key = keyOf(filter, tables); // hashed outside the lock, it may load the tables
+        synchronized (this) {
+            return comparisons.get(key);
+        }
+    }
+
+    void put(DiffFilter filter, List<Table> tables, Comparison comparison) {
+        synchronized (this) {
+            if (maxComparisons == 0) {
+                return;
+            }
+        }
+        Key key = keyOf(filter, tables);
+        synchronized (this) {
+            comparisons.put(key, comparison);
+            trim();
+        }
+    }
+
+    synchronized void setMaxComparisons(int maxComparisons) {
+        if (maxComparisons < 0) {
+            throw new IllegalArgumentException("the size of the cache can't be negative");
+        }
+        this.maxComparisons = maxComparisons;
+        trim();
+    }
+
+    private Key keyOf(DiffFilter filter, List<Table> tables) {
+        StringBuilder hashes = new StringBuilder(tables.size() * 65);
+        for (Table table : tables) {
+            hashes.append(table.getDefinitionHash()).append(',');
+        }
+        return new Key(filter.getClass() == DiffFilter.class ? null : filter, hashes.toString());
+    }
+
+    private void trim() {
+        Iterator<Comparison> eldest = comparisons.values().iterator();
+        while (comparisons.size() > maxComparisons) {
+            eldest.next();
+            eldest.remove();
+        }
+    }
+}
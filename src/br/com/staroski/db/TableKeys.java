@@ -0,0 +1,106 @@
+package br.com.staroski.db;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This class accumulates the primary key, index and foreign key rows of a single table while they are read from the bulk metadata queries
+ * 
+ * @author Ricardo Artur Staroski
+ */
+final class TableKeys {
+
+    private static final class KeyColumns {
+
+        final String name;
+        final boolean unique;
+        final TreeMap<Integer, String> columns = new TreeMap<Integer, String>();
+        final TreeMap<Integer, String> referencedColumns = new TreeMap<Integer, String>();
+        String referencedCatalog;
+        String referencedSchema;
+        String referencedTable;
+
+        KeyColumns(String name, boolean unique) {
+            this.name = name;
+            this.unique = unique;
+        }
+
+        List<String> columnNames() {
+            return new LinkedList<String>(columns.values());
+        }
+
+        List<String> referencedColumnNames() {
+            return new LinkedList<String>(referencedColumns.values());
+        }
+    }
+
+    private KeyColumns primaryKey;
+    private final Map<String, KeyColumns> indexes = new LinkedHashMap<String, KeyColumns>();
+    private final Map<String, KeyColumns> foreignKeys = new LinkedHashMap<String, KeyColumns>();
+
+    void addForeignKeyColumn(String name, int sequence, String columnName, String referencedCatalog, String referencedSchema, String referencedTable,
+                             String referencedColumnName) {
+        KeyColumns key = foreignKeys.get(name);
+        if (key == null) {
+            key = new KeyColumns(name, false);
+            key.referencedCatalog = referencedCatalog;
+            key.referencedSchema = referencedSchema;
+            key.referencedTable = referencedTable;
+            foreignKeys.put(name, key);
+        }
+        key.columns.put(sequence, columnName);
+        key.referencedColumns.put(sequence, referencedColumnName);
+    }
+
+    void addIndexColumn(String name, boolean unique, int position, String columnName) {
+        KeyColumns key = indexes.get(name);
+        if (key == null) {
+            key = new KeyColumns(name, unique);
+            indexes.put(name, key);
+        }
+        key.columns.put(position, columnName);
+    }
+
+    void addPrimaryKeyColumn(String name, int sequence, String columnName) {
+        if (primaryKey == null) {
+            primaryKey = new KeyColumns(name, true);
+        }
+        primaryKey.columns.put(sequence, columnName);
+    }
+
+    List<ForeignKey> foreignKeys() {
+        List<ForeignKey> list = new LinkedList<ForeignKey>();
+        for (KeyColumns key : foreignKeys.values()) {
+            list.add(new ForeignKey(key.name, key.columnNames(), key.referencedCatalog, key.referencedSchema, key.referencedTable,
+                                    key.referencedColumnNames()));
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * The index that backs the primary key is not listed here, it is already represented by {@link #primaryKey()}
+     */
+    List<Index> indexes() {
+        List<Index> list = new LinkedList<Index>();
+        for (KeyColumns key : indexes.values()) {
+            if (primaryKey != null && key.name.equals(primaryKey.name)) {
+                continue;
+            }
+            list.add(new Index(key.name, false, key.unique, key.columnNames()));
+        }
+        Collections.sort(list);
+        return list;
+    }
+
+    Index primaryKey() {
+        if (primaryKey == null) {
+            return null;
+        }
+        return new Index(primaryKey.name, true, true, primaryKey.columnNames());
+    }
+}
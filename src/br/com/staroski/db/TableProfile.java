@@ -0,0 +1,86 @@
+package br.com.staroski.db;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import br.com.staroski.IO;
+
+/**
+ * This class keeps the {@link ColumnProfile profiles} of the columns of a database table, which describe the shape of its data, so tables
+ * of different environments can be compared without moving their rows
+ *
+ * @author Ricardo Artur Staroski
+ * @see Database#collectProfiles(int, int)
+ */
+public final class TableProfile {
+
+    static TableProfile readFrom(DataInputStream in) {
+        boolean sampled = IO.readBoolean(in);
+        Map<String, ColumnProfile> columns = new LinkedHashMap<String, ColumnProfile>();
+        int columnCount = IO.readInt(in);
+        for (int i = 0; i < columnCount; i++) {
+            String columnName = IO.readString(in);
+            columns.put(columnName, ColumnProfile.readFrom(in));
+        }
+        return new TableProfile(columns, sampled);
+    }
+
+    private final Map<String, ColumnProfile> columns;
+    private final boolean sampled;
+
+    TableProfile(Map<String, ColumnProfile> columns, boolean sampled) {
+        this.columns = Collections.unmodifiableMap(columns);
+        this.sampled = sampled;
+    }
+
+    /**
+     * @return The profile of the given column, <code>null</code> if it was not profiled
+     */
+    public ColumnProfile getColumnProfile(String columnName) {
+        return columns.get(columnName);
+    }
+
+    /**
+     * @return The profiles by column name, in the order of the columns
+     */
+    public Map<String, ColumnProfile> getColumnProfiles() {
+        return columns;
+    }
+
+    /**
+     * @return <code>true</code> if only some of the rows were read
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @return A new profile of the rows of both profiles, like two partitions of the same table, the columns profiled in only one of them
+     *         are kept as they are
+     */
+    public TableProfile merge(TableProfile other) {
+        Map<String, ColumnProfile> merged = new LinkedHashMap<String, ColumnProfile>(columns);
+        for (Map.Entry<String, ColumnProfile> column : other.columns.entrySet()) {
+            ColumnProfile profile = merged.get(column.getKey());
+            merged.put(column.getKey(), profile == null ? column.getValue() : profile.merge(column.getValue()));
+        }
+        return new TableProfile(merged, sampled || other.sampled);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[columns=%d, sampled=%s]", TableProfile.class.getSimpleName(), columns.size(), sampled);
+    }
+
+    void writeTo(DataOutputStream out) {
+        IO.writeBoolean(out, sampled);
+        IO.writeInt(out, columns.size());
+        for (Map.Entry<String, ColumnProfile> column : columns.entrySet()) {
+            IO.writeString(out, column.getKey());
+            column.getValue().writeTo(out);
+        }
+    }
+}
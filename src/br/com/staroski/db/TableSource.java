@@ -0,0 +1,21 @@
+package br.com.staroski.db;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * This interface represents a stream of tables in ascending name order, which is what {@link MergeDiff} consumes<br>
+ * A source holds at most the table it is returning, so very large schemas can be compared without being loaded
+ * 
+ * @author Ricardo Artur Staroski
+ * @see Schema#tableSource()
+ * @see Database#readTablesFrom(java.io.InputStream, String, String)
+ */
+public interface TableSource extends Iterator<Table>, Closeable {
+
+    /**
+     * Releases the resources of this source, like the snapshot stream it reads from
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,68 @@
+package br.com.staroski.db;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import br.com.staroski.IO;
+
+/**
+ * This class keeps the size statistics of a database table
+ * 
+ * @author Ricardo Artur Staroski
+ */
+public final class TableStatistics {
+
+    /**
+     * Value used when a statistic is not available
+     */
+    public static final long UNKNOWN = -1;
+
+    static TableStatistics readFrom(DataInputStream in) {
+        long rowCount = IO.readLong(in);
+        long sizeInBytes = IO.readLong(in);
+        boolean exact = IO.readBoolean(in);
+        return new TableStatistics(rowCount, sizeInBytes, exact);
+    }
+
+    private final long rowCount;
+    private final long sizeInBytes;
+    private final boolean exact;
+
+    TableStatistics(long rowCount, long sizeInBytes, boolean exact) {
+        this.rowCount = rowCount;
+        this.sizeInBytes = sizeInBytes;
+        this.exact = exact;
+    }
+
+    /**
+     * @return The number of rows or {@link #UNKNOWN}
+     */
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * @return The on-disk size, including indexes, or {@link #UNKNOWN}
+     */
+    public long getSizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * @return <code>true</code> if the row count came from a <code>COUNT(*)</code> and <code>false</code> if it is a catalog estimate
+     */
+    public boolean isExact() {
+        return exact;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[rows=%d, size=%d, exact=%s]", TableStatistics.class.getSimpleName(), rowCount, sizeInBytes, exact);
+    }
+
+    void writeTo(DataOutputStream out) {
+        IO.writeLong(out, rowCount);
+        IO.writeLong(out, sizeInBytes);
+        IO.writeBoolean(out, exact);
+    }
+}
@@ -0,0 +1,100 @@
+package br.com.staroski.db;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * This class writes a compact plain-text summary of a diff, listing only what is not equal<br>
+ * The last line tells whether the schemas are in sync, which is usually all a CI gate needs
+ * 
+ * @author Ricardo Artur Staroski
+ */
+public final class TextDiffWriter extends DiffWriter {
+
+    private List<String> schemaNames;
+
+    public TextDiffWriter(OutputStream out) {
+        super(out);
+    }
+
+    public TextDiffWriter(Writer out) {
+        super(out);
+    }
+
+    @Override
+    protected void writeBegin(List<String> schemaNames) throws IOException {
+        this.schemaNames = schemaNames;
+        out.write("Comparing ");
+        String separator = "";
+        for (String schemaName : schemaNames) {
+            out.write(separator);
+            out.write(schemaName);
+            separator = ", ";
+        }
+        out.write('\n');
+    }
+
+    @Override
+    protected void writeEnd(int tableCount, int differentCount, int missingCount) throws IOException {
+        int equalCount = tableCount - differentCount - missingCount;
+        boolean inSync = differentCount == 0 && missingCount == 0;
+        out.write(String.format("%d tables: %d equal, %d different, %d missing - %s%n", tableCount, equalCount, differentCount, missingCount,
+                                inSync ? "IN SYNC" : "OUT OF SYNC"));
+    }
+
+    @Override
+    protected void writeEntry(DiffEntry entry, List<Item> items) throws IOException {
+        if (!entry.allSchemasContains()) {
+            out.write(entry.tableName);
+            out.write(": MISSING in ");
+            out.write(missingIn(entry));
+            out.write('\n');
+        }
+        for (Item item : items) {
+            if (item.isEqual()) {
+                continue;
+            }
+            out.write(entry.tableName);
+            out.write(": ");
+            out.write(item.kind);
+            if (item.name != null) {
+                out.write(' ');
+                out.write(item.name);
+            }
+            for (int i = 0; i < item.status.length; i++) {
+                out.write(i == 0 ? " [" : ", ");
+                out.write(schemaNames.get(i));
+                out.write('=');
+                if (item.status[i] == DiffStatus.MISSING) {
+                    out.write(DiffStatus.MISSING.name());
+                    if (item.definitions[i] != null) {
+                        out.write(" - ");
+                        out.write(item.definitions[i]);
+                    }
+                } else {
+                    out.write(item.definitions[i]);
+                }
+            }
+            out.write("]\n");
+        }
+    }
+
+    private String missingIn(DiffEntry entry) {
+        StringBuilder names = new StringBuilder();
+        for (int i = 0, count = entry.tables.size(); i < count; i++) {
+            if (!entry.contains(i)) {
+                if (names.length() > 0) {
+                    names.append(", ");
+                }
+                names.append(schemaNames.get(i));
+                String rename = renameOf(entry, i);
+                if (rename != null) {
+                    names.append(" (").append(rename).append(')');
+                }
+            }
+        }
+        return names.toString();
+    }
+}
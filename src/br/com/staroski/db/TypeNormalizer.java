@@ -0,0 +1,258 @@
+package br.com.staroski.db;
+
+import java.sql.JDBCType;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class maps the types reported by each vendor to canonical types, so columns of different databases can be compared, like an
+ * Oracle <code>VARCHAR2(50)</code> and a PostgreSQL <code>varchar(50)</code><br>
+ * Each {@link Column} is normalized once, when it is created, by the {@link #getDefault() default normalizer}, and keeps its canonical
+ * type as an integer {@link #codeOf(String) code}, so the comparisons do not depend on type names anymore<br>
+ * The canonical types are named after {@link JDBCType}, like <code>VARCHAR</code> and <code>INTEGER</code>, and the unknown types keep
+ * their own names in upper case, an array is its element type followed by <code>[]</code><br>
+ * Other mappings can be added by {@link #alias(String, String)}, or by extending this class, like mapping the Oracle <code>DATE</code>
+ * to <code>TIMESTAMP</code>
+ *
+ * @author Ricardo Artur Staroski
+ */
+public class TypeNormalizer {
+
+    private static final Map<String, Integer> CODES = new ConcurrentHashMap<String, Integer>();
+    private static final List<String> NAMES = new ArrayList<String>();
+
+    private static final Map<Integer, String> SQL_TYPES = new HashMap<Integer, String>();
+
+    static {
+        sqlType("CHAR", Types.CHAR, Types.NCHAR);
+        sqlType("VARCHAR", Types.VARCHAR, Types.NVARCHAR);
+        sqlType("LONGVARCHAR", Types.LONGVARCHAR, Types.LONGNVARCHAR, Types.CLOB, Types.NCLOB);
+        sqlType("BOOLEAN", Types.BOOLEAN, Types.BIT);
+        sqlType("TINYINT", Types.TINYINT);
+        sqlType("SMALLINT", Types.SMALLINT);
+        sqlType("INTEGER", Types.INTEGER);
+        sqlType("BIGINT", Types.BIGINT);
+        sqlType("NUMERIC", Types.NUMERIC, Types.DECIMAL);
+        sqlType("REAL", Types.REAL);
+        sqlType("DOUBLE", Types.DOUBLE, Types.FLOAT);
+        sqlType("DATE", Types.DATE);
+        sqlType("TIME", Types.TIME);
+        sqlType("TIME_WITH_TIMEZONE", Types.TIME_WITH_TIMEZONE);
+        sqlType("TIMESTAMP", Types.TIMESTAMP);
+        sqlType("TIMESTAMP_WITH_TIMEZONE", Types.TIMESTAMP_WITH_TIMEZONE);
+        sqlType("BINARY", Types.BINARY);
+        sqlType("VARBINARY", Types.VARBINARY);
+        sqlType("LONGVARBINARY", Types.LONGVARBINARY, Types.BLOB);
+        sqlType("SQLXML", Types.SQLXML);
+    }
+
+    private static volatile TypeNormalizer defaultNormalizer = new TypeNormalizer();
+
+    /**
+     * @return The code of the given canonical type, the same name always has the same code while the application runs
+     */
+    public static int codeOf(String canonicalName) {
+        Integer code = CODES.get(canonicalName);
+        if (code != null) {
+            return code;
+        }
+        synchronized (NAMES) {
+            code = CODES.get(canonicalName);
+            if (code == null) {
+                code = NAMES.size();
+                NAMES.add(canonicalName);
+                CODES.put(canonicalName, code);
+            }
+            return code;
+        }
+    }
+
+    /**
+     * @return The normalizer of the columns created from now on
+     */
+    public static TypeNormalizer getDefault() {
+        return defaultNormalizer;
+    }
+
+    /**
+     * @return The canonical type of the given {@link #codeOf(String) code}
+     */
+    public static String nameOf(int code) {
+        synchronized (NAMES) {
+            return NAMES.get(code);
+        }
+    }
+
+    /**
+     * Sets the normalizer of the columns created from now on, the columns already loaded keep their types
+     */
+    public static void setDefault(TypeNormalizer normalizer) {
+        defaultNormalizer = normalizer != null ? normalizer : new TypeNormalizer();
+    }
+
+    /**
+     * @return The {@link Types} constant of the given canonical type, {@link Types#OTHER} for the unknown ones
+     */
+    static int sqlTypeOf(String canonicalName) {
+        if (canonicalName.endsWith("[]")) {
+            return Types.ARRAY;
+        }
+        try {
+            return JDBCType.valueOf(canonicalName).getVendorTypeNumber();
+        } catch (IllegalArgumentException e) {
+            return Types.OTHER;
+        }
+    }
+
+    private static void sqlType(String canonicalName, int... sqlTypes) {
+        for (int sqlType : sqlTypes) {
+            SQL_TYPES.put(sqlType, canonicalName);
+        }
+    }
+
+    private final Map<String, String> aliases = new ConcurrentHashMap<String, String>();
+
+    /**
+     * The canonical types already found, by type name and {@link Types} constant
+     */
+    private final Map<String, String> normalized = new ConcurrentHashMap<String, String>();
+
+    public TypeNormalizer() {
+        alias("CHAR", "CHARACTER", "BPCHAR", "NCHAR", "NATIONAL CHAR", "NATIONAL CHARACTER");
+        alias("VARCHAR", "VARCHAR2", "NVARCHAR", "NVARCHAR2", "CHAR VARYING", "CHARACTER VARYING", "NATIONAL CHAR VARYING",
+                "NATIONAL CHARACTER VARYING", "VARCHAR_IGNORECASE", "STRING");
+        alias("LONGVARCHAR", "TEXT", "TINYTEXT", "MEDIUMTEXT", "LONGTEXT", "NTEXT", "LONG", "LONG VARCHAR", "CLOB", "NCLOB",
+                "CHARACTER LARGE OBJECT");
+        alias("BOOLEAN", "BOOL", "BIT");
+        alias("TINYINT", "INT1");
+        alias("SMALLINT", "INT2", "SMALLSERIAL", "SERIAL2");
+        alias("INTEGER", "INT", "INT4", "MEDIUMINT", "SERIAL", "SERIAL4");
+        alias("BIGINT", "INT8", "BIGSERIAL", "SERIAL8");
+        alias("NUMERIC", "DECIMAL", "DEC", "NUMBER", "MONEY", "SMALLMONEY");
+        alias("REAL", "FLOAT4", "BINARY_FLOAT");
+        alias("DOUBLE", "DOUBLE PRECISION", "FLOAT", "FLOAT8", "BINARY_DOUBLE");
+        alias("DATE");
+        alias("TIME", "TIME WITHOUT TIME ZONE");
+        alias("TIME_WITH_TIMEZONE", "TIMETZ", "TIME WITH TIME ZONE");
+        alias("TIMESTAMP", "DATETIME", "DATETIME2", "SMALLDATETIME", "TIMESTAMP WITHOUT TIME ZONE");
+        alias("TIMESTAMP_WITH_TIMEZONE", "TIMESTAMPTZ", "DATETIMEOFFSET", "TIMESTAMP WITH TIME ZONE", "TIMESTAMP WITH LOCAL TIME ZONE");
+        alias("BINARY");
+        alias("VARBINARY", "RAW", "BINARY VARYING");
+        alias("LONGVARBINARY", "BYTEA", "IMAGE", "LONG RAW", "BLOB", "TINYBLOB", "MEDIUMBLOB", "LONGBLOB", "BINARY LARGE OBJECT");
+        alias("SQLXML", "XML", "XMLTYPE");
+    }
+
+    /**
+     * Maps the given vendor types, written without size, to the given canonical type, replacing any previous mapping of them<br>
+     * Only the columns created afterwards use the new mapping
+     *
+     * @return This normalizer
+     */
+    public final TypeNormalizer alias(String canonicalName, String... vendorTypes) {
+        String canonical = canonicalName.toUpperCase();
+        aliases.put(canonical, canonical);
+        for (String vendorType : vendorTypes) {
+            aliases.put(vendorType.toUpperCase(), canonical);
+        }
+        normalized.clear();
+        return this;
+    }
+
+    /**
+     * @param type The type reported by the database, like <code>VARCHAR2</code> or <code>_int4</code>, it may have sizes and modifiers,
+     *            like <code>TIMESTAMP(6) WITH TIME ZONE</code> or <code>INT UNSIGNED</code>
+     * @param javaSqlType The {@link Types} constant reported for the type, used when its name is unknown
+     * @return The canonical type
+     */
+    protected String canonicalName(String type, int javaSqlType) {
+        String name = type == null ? "" : simplify(type);
+        if (name.endsWith("[]")) {
+            return canonicalName(name.substring(0, name.length() - 2), Types.OTHER) + "[]";
+        }
+        if (name.startsWith("_") && javaSqlType == Types.ARRAY) { // PostgreSQL names the arrays after their elements
+            return canonicalName(name.substring(1), Types.OTHER) + "[]";
+        }
+        String canonical = aliases.get(name);
+        if (canonical != null) {
+            return canonical;
+        }
+        canonical = SQL_TYPES.get(javaSqlType);
+        return canonical != null ? canonical : name;
+    }
+
+    /**
+     * @return The scale compared for the given canonical type, only the numeric types have one
+     */
+    protected int canonicalScale(String canonicalName, int size, int scale) {
+        if (!"NUMERIC".equals(canonicalName) || canonicalSize(canonicalName, size, scale) == 0) {
+            return 0;
+        }
+        return Math.max(scale, 0);
+    }
+
+    /**
+     * @return The size compared for the given canonical type, only the lengths of the characters and binaries and the precision of the
+     *         numeric types are kept, the other sizes depend on the vendor
+     */
+    protected int canonicalSize(String canonicalName, int size, int scale) {
+        if ("CHAR".equals(canonicalName) || "VARCHAR".equals(canonicalName) || "BINARY".equals(canonicalName)
+                || "VARBINARY".equals(canonicalName)) {
+            return Math.max(size, 0);
+        }
+        if ("NUMERIC".equals(canonicalName)) {
+            return size > 0 && size <= 1000 ? size : 0; // an unbounded numeric is reported as 0 by some vendors and 131089 by others
+        }
+        return 0;
+    }
+
+    /**
+     * @return The canonical type of the given column type, normalized only once for each type name and {@link Types} constant
+     */
+    final String normalize(String type, int javaSqlType) {
+        String key = type + "\u0000" + javaSqlType;
+        String canonical = normalized.get(key);
+        if (canonical == null) {
+            canonical = canonicalName(type, javaSqlType);
+            normalized.put(key, canonical);
+        }
+        return canonical;
+    }
+
+    /**
+     * @return The type in upper case, without sizes, modifiers and repeated spaces
+     */
+    private String simplify(String type) {
+        StringBuilder name = new StringBuilder(type.length());
+        int depth = 0;
+        for (int i = 0; i < type.length(); i++) {
+            char c = type.charAt(i);
+            if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (depth == 0) {
+                if (Character.isWhitespace(c)) {
+                    if (name.length() > 0 && name.charAt(name.length() - 1) != ' ') {
+                        name.append(' ');
+                    }
+                } else {
+                    name.append(Character.toUpperCase(c));
+                }
+            }
+        }
+        String simple = name.toString().trim();
+        for (String modifier : new String[] { " UNSIGNED", " SIGNED", " ZEROFILL", " IDENTITY", " ARRAY" }) {
+            if (simple.endsWith(modifier)) {
+                simple = simple.substring(0, simple.length() - modifier.length());
+                if (modifier.equals(" ARRAY")) {
+                    simple += "[]";
+                }
+            }
+        }
+        return simple;
+    }
+}
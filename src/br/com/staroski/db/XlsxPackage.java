@@ -0,0 +1,354 @@
+package br.com.staroski.db;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.poi.hssf.util.HSSFColor.HSSFColorPredefined;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.CellReference;
+
+import br.com.staroski.UncheckedException;
+
+/**
+ * This class writes an excel report in the Office Open XML format (xlsx), without keeping the sheets in memory<br>
+ * The sheets are rendered with the same code of the excel 97 reports, to a {@link #createSheet(File) sheet} that writes each row as
+ * SpreadsheetML to a temporary file as soon as it is rendered, which can be done by many threads at once<br>
+ * The package is assembled at the end, with the parts in the order they were added, a single styles part with the styles of
+ * {@link ExcelStyles} and, if asked, an index of the sheets as the first one
+ *
+ * @author Ricardo Artur Staroski
+ */
+final class XlsxPackage {
+
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n";
+    private static final String MAIN_NAMESPACE = "http://schemas.openxmlformats.org/spreadsheetml/2006/main";
+    private static final String RELATIONSHIPS_NAMESPACE = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+    private static final String PACKAGE_RELATIONSHIPS_NAMESPACE = "http://schemas.openxmlformats.org/package/2006/relationships";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A worksheet part, the column widths and the frozen rows are kept until the first cell and the merged cells until the end, because
+     * SpreadsheetML puts them around the rows
+     */
+    private static final class SheetPart extends ReportSheet {
+
+        private final Writer out;
+        private final StringBuilder columns = new StringBuilder();
+        private final List<String> mergedCells = new ArrayList<String>();
+        private int frozenRows;
+        private int line = -1;
+        private boolean started;
+
+        SheetPart(File part) throws IOException {
+            this.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(part), StandardCharsets.UTF_8), BUFFER_SIZE);
+        }
+
+        @Override
+        void close() throws IOException {
+            try {
+                start();
+                if (line >= 0) {
+                    out.write("</row>");
+                }
+                out.write("</sheetData>");
+                if (!mergedCells.isEmpty()) {
+                    out.write("<mergeCells count=\"" + mergedCells.size() + "\">");
+                    for (String mergedCell : mergedCells) {
+                        out.write("<mergeCell ref=\"" + mergedCell + "\"/>");
+                    }
+                    out.write("</mergeCells>");
+                }
+                out.write("</worksheet>");
+            } finally {
+                out.close();
+            }
+        }
+
+        @Override
+        void freezeRows(int rows) {
+            frozenRows = rows;
+        }
+
+        @Override
+        void merge(int line, int firstColumn, int lastColumn) {
+            mergedCells.add(new CellRangeAddress(line, line, firstColumn, lastColumn).formatAsString());
+        }
+
+        @Override
+        void setColumnWidth(int column, int width) {
+            columns.append("<col min=\"").append(column + 1).append("\" max=\"").append(column + 1).append("\" width=\"").append(width);
+            columns.append("\" customWidth=\"1\"/>");
+        }
+
+        @Override
+        void writeCell(int line, int column, int style, Object value) {
+            try {
+                start();
+                if (line != this.line) {
+                    if (this.line >= 0) {
+                        out.write("</row>");
+                    }
+                    out.write("<row r=\"" + (line + 1) + "\">");
+                    this.line = line;
+                }
+                if (value instanceof Number) {
+                    writeNumber(out, line, column, style, ((Number) value).doubleValue());
+                } else if (value != null) {
+                    writeInlineString(out, line, column, style, value.toString());
+                } else if (style != 0) {
+                    out.write("<c r=\"" + reference(line, column) + "\"" + styleAttribute(style) + "/>");
+                }
+            } catch (IOException e) {
+                throw UncheckedException.wrap(e);
+            }
+        }
+
+        private void start() throws IOException {
+            if (started) {
+                return;
+            }
+            started = true;
+            out.write(XML_HEADER);
+            out.write("<worksheet xmlns=\"" + MAIN_NAMESPACE + "\" xmlns:r=\"" + RELATIONSHIPS_NAMESPACE + "\">");
+            if (frozenRows > 0) {
+                out.write("<sheetViews><sheetView workbookViewId=\"0\"><pane ySplit=\"" + frozenRows + "\" topLeftCell=\"A" + (frozenRows + 1)
+                        + "\" activePane=\"bottomLeft\" state=\"frozen\"/></sheetView></sheetViews>");
+            }
+            if (columns.length() > 0) {
+                out.write("<cols>" + columns + "</cols>");
+            }
+            out.write("<sheetData>");
+        }
+    }
+
+    /**
+     * @return A sheet written as a SpreadsheetML worksheet part to the given file, which is complete once the sheet is closed
+     */
+    static ReportSheet createSheet(File part) throws IOException {
+        return new SheetPart(part);
+    }
+
+    private static String colorOf(HSSFColorPredefined color) {
+        short[] rgb = color.getTriplet();
+        return String.format("FF%02X%02X%02X", rgb[0], rgb[1], rgb[2]);
+    }
+
+    private static void copy(File part, OutputStream out) throws IOException {
+        InputStream in = new FileInputStream(part);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    escaped.append("&amp;");
+                    break;
+                case '<':
+                    escaped.append("&lt;");
+                    break;
+                case '>':
+                    escaped.append("&gt;");
+                    break;
+                case '"':
+                    escaped.append("&quot;");
+                    break;
+                default:
+                    if (c >= 0x20 || c == '\t' || c == '\n' || c == '\r') { // the other control characters are not valid in XML
+                        escaped.append(c);
+                    }
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String stylesPart() {
+        StringBuilder xml = new StringBuilder(XML_HEADER);
+        xml.append("<styleSheet xmlns=\"").append(MAIN_NAMESPACE).append("\">");
+        xml.append("<fonts count=\"2\"><font><sz val=\"10\"/><name val=\"Arial\"/></font>");
+        xml.append("<font><b/><sz val=\"10\"/><name val=\"Arial\"/></font></fonts>");
+        xml.append("<fills count=\"6\"><fill><patternFill patternType=\"none\"/></fill><fill><patternFill patternType=\"gray125\"/></fill>");
+        for (HSSFColorPredefined color : new HSSFColorPredefined[] { ExcelStyles.HEADER_COLOR, ExcelStyles.EQUAL_COLOR, ExcelStyles.DIFFERENT_COLOR,
+                ExcelStyles.MISSING_COLOR }) {
+            xml.append("<fill><patternFill patternType=\"solid\"><fgColor rgb=\"").append(colorOf(color)).append("\"/></patternFill></fill>");
+        }
+        xml.append("</fills>");
+        xml.append("<borders count=\"2\"><border><left/><right/><top/><bottom/><diagonal/></border>");
+        xml.append("<border><left style=\"thin\"/><right style=\"thin\"/><top style=\"thin\"/><bottom style=\"thin\"/><diagonal/></border></borders>");
+        xml.append("<cellStyleXfs count=\"1\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\"/></cellStyleXfs>");
+        xml.append("<cellXfs count=\"5\"><xf numFmtId=\"0\" fontId=\"0\" fillId=\"0\" borderId=\"0\" xfId=\"0\"/>");
+        xml.append("<xf numFmtId=\"0\" fontId=\"1\" fillId=\"2\" borderId=\"1\" xfId=\"0\" applyFont=\"1\" applyFill=\"1\" applyBorder=\"1\"");
+        xml.append(" applyAlignment=\"1\"><alignment horizontal=\"center\"/></xf>");
+        xml.append("<xf numFmtId=\"0\" fontId=\"0\" fillId=\"3\" borderId=\"1\" xfId=\"0\" applyFill=\"1\" applyBorder=\"1\"/>");
+        xml.append("<xf numFmtId=\"0\" fontId=\"0\" fillId=\"4\" borderId=\"1\" xfId=\"0\" applyFill=\"1\" applyBorder=\"1\"/>");
+        xml.append("<xf numFmtId=\"0\" fontId=\"0\" fillId=\"5\" borderId=\"1\" xfId=\"0\" applyFill=\"1\" applyBorder=\"1\"");
+        xml.append(" applyAlignment=\"1\"><alignment horizontal=\"center\"/></xf></cellXfs>");
+        xml.append("<cellStyles count=\"1\"><cellStyle name=\"Normal\" xfId=\"0\" builtinId=\"0\"/></cellStyles>");
+        return xml.append("</styleSheet>").toString();
+    }
+
+    private static String reference(int row, int column) {
+        return CellReference.convertNumToColString(column) + (row + 1);
+    }
+
+    private static String styleAttribute(int style) {
+        return style == 0 ? "" : " s=\"" + style + "\"";
+    }
+
+    private static void writeInlineString(Writer out, int row, int column, int style, String text) throws IOException {
+        out.write("<c r=\"" + reference(row, column) + "\"" + styleAttribute(style) + " t=\"inlineStr\"><is><t xml:space=\"preserve\">" + escape(text)
+                + "</t></is></c>");
+    }
+
+    private static void writeNumber(Writer out, int row, int column, int style, double value) throws IOException {
+        String text = value == Math.rint(value) && Math.abs(value) < 1e15 ? Long.toString((long) value) : Double.toString(value);
+        out.write("<c r=\"" + reference(row, column) + "\"" + styleAttribute(style) + "><v>" + text + "</v></c>");
+    }
+
+    private final Set<String> sheetNames = new HashSet<String>();
+    private final List<String> names = new ArrayList<String>();
+    private final List<String> descriptions = new ArrayList<String>();
+    private final List<File> parts = new ArrayList<File>();
+
+    /**
+     * Adds a sheet written by {@link #createSheet(File)}, the name is made unique among the sheets of this package
+     */
+    void addSheet(String name, String description, File part) {
+        names.add(ExcelReport.uniqueName(sheetNames, name));
+        descriptions.add(description);
+        parts.add(part);
+    }
+
+    int getSheetCount() {
+        return parts.size();
+    }
+
+    /**
+     * Writes the package, the parts of the sheets are not deleted
+     *
+     * @param indexTitle The title of the index of the sheets, <code>null</code> to write no index
+     */
+    void write(OutputStream out, String indexTitle) throws IOException {
+        List<String> sheets = new ArrayList<String>();
+        if (indexTitle != null) {
+            sheets.add(ExcelReport.uniqueName(sheetNames, ExcelReport.INDEX));
+        }
+        sheets.addAll(names);
+
+        ZipOutputStream zip = new ZipOutputStream(out);
+        zip.setLevel(Deflater.BEST_SPEED); // the sheets are compressed here, on a single thread
+        Writer text = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+
+        zip.putNextEntry(new ZipEntry("[Content_Types].xml"));
+        text.write(XML_HEADER);
+        text.write("<Types xmlns=\"http://schemas.openxmlformats.org/package/2006/content-types\">");
+        text.write("<Default Extension=\"rels\" ContentType=\"application/vnd.openxmlformats-package.relationships+xml\"/>");
+        text.write("<Default Extension=\"xml\" ContentType=\"application/xml\"/>");
+        text.write("<Override PartName=\"/xl/workbook.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.sheet.main+xml\"/>");
+        text.write("<Override PartName=\"/xl/styles.xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.styles+xml\"/>");
+        for (int i = 1; i <= sheets.size(); i++) {
+            text.write("<Override PartName=\"/xl/worksheets/sheet" + i
+                    + ".xml\" ContentType=\"application/vnd.openxmlformats-officedocument.spreadsheetml.worksheet+xml\"/>");
+        }
+        text.write("</Types>");
+        text.flush();
+
+        zip.putNextEntry(new ZipEntry("_rels/.rels"));
+        text.write(XML_HEADER);
+        text.write("<Relationships xmlns=\"" + PACKAGE_RELATIONSHIPS_NAMESPACE + "\">");
+        text.write("<Relationship Id=\"rId1\" Type=\"" + RELATIONSHIPS_NAMESPACE + "/officeDocument\" Target=\"xl/workbook.xml\"/>");
+        text.write("</Relationships>");
+        text.flush();
+
+        zip.putNextEntry(new ZipEntry("xl/workbook.xml"));
+        text.write(XML_HEADER);
+        text.write("<workbook xmlns=\"" + MAIN_NAMESPACE + "\" xmlns:r=\"" + RELATIONSHIPS_NAMESPACE + "\"><sheets>");
+        for (int i = 1; i <= sheets.size(); i++) {
+            text.write("<sheet name=\"" + escape(sheets.get(i - 1)) + "\" sheetId=\"" + i + "\" r:id=\"rId" + i + "\"/>");
+        }
+        text.write("</sheets></workbook>");
+        text.flush();
+
+        zip.putNextEntry(new ZipEntry("xl/_rels/workbook.xml.rels"));
+        text.write(XML_HEADER);
+        text.write("<Relationships xmlns=\"" + PACKAGE_RELATIONSHIPS_NAMESPACE + "\">");
+        for (int i = 1; i <= sheets.size(); i++) {
+            text.write("<Relationship Id=\"rId" + i + "\" Type=\"" + RELATIONSHIPS_NAMESPACE + "/worksheet\" Target=\"worksheets/sheet" + i + ".xml\"/>");
+        }
+        text.write("<Relationship Id=\"rId" + (sheets.size() + 1) + "\" Type=\"" + RELATIONSHIPS_NAMESPACE + "/styles\" Target=\"styles.xml\"/>");
+        text.write("</Relationships>");
+        text.flush();
+
+        zip.putNextEntry(new ZipEntry("xl/styles.xml"));
+        text.write(stylesPart());
+        text.flush();
+
+        int sheetNumber = 0;
+        if (indexTitle != null) {
+            zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + (++sheetNumber) + ".xml"));
+            writeIndex(text, indexTitle);
+            text.flush();
+        }
+        for (File part : parts) {
+            zip.putNextEntry(new ZipEntry("xl/worksheets/sheet" + (++sheetNumber) + ".xml"));
+            copy(part, zip);
+        }
+        zip.finish();
+    }
+
+    /**
+     * The same index of {@link ExcelReport#createIndex(String)}
+     */
+    private void writeIndex(Writer out, String title) throws IOException {
+        out.write(XML_HEADER);
+        out.write("<worksheet xmlns=\"" + MAIN_NAMESPACE + "\" xmlns:r=\"" + RELATIONSHIPS_NAMESPACE + "\">");
+        out.write("<cols><col min=\"1\" max=\"1\" width=\"40\" customWidth=\"1\"/><col min=\"2\" max=\"2\" width=\"80\" customWidth=\"1\"/></cols>");
+        out.write("<sheetData><row r=\"1\">");
+        writeInlineString(out, 0, 0, ExcelStyles.HEADER_STYLE, title);
+        out.write("<c r=\"B1\" s=\"" + ExcelStyles.HEADER_STYLE + "\"/></row><row r=\"2\">");
+        writeInlineString(out, 1, 0, ExcelStyles.HEADER_STYLE, "Sheet");
+        writeInlineString(out, 1, 1, ExcelStyles.HEADER_STYLE, "Contents");
+        out.write("</row>");
+        for (int i = 0; i < names.size(); i++) {
+            out.write("<row r=\"" + (i + 3) + "\">");
+            writeInlineString(out, i + 2, 0, 0, names.get(i));
+            writeInlineString(out, i + 2, 1, 0, descriptions.get(i));
+            out.write("</row>");
+        }
+        out.write("</sheetData>");
+        if (!names.isEmpty()) {
+            out.write("<hyperlinks>");
+            for (int i = 0; i < names.size(); i++) {
+                String location = "'" + names.get(i).replace("'", "''") + "'!A1";
+                out.write("<hyperlink ref=\"A" + (i + 3) + "\" location=\"" + escape(location) + "\" display=\"" + escape(names.get(i)) + "\"/>");
+            }
+            out.write("</hyperlinks>");
+        }
+        out.write("</worksheet>");
+    }
+}